@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One refresh cycle's worth of work on a route response, stage by stage and end to end: parsing the
+ * Syncromatics vehicles JSON, converting the vehicles to GTFS-realtime vehicle positions, publishing them to the
+ * exporter (which serializes and gzips the feed once per update) and serializing the feed alone.
+ * <p>
+ * The responses are built from syncromatics/route-vehicles.json, a recorded routes/{id}/vehicles response
+ * with one vehicle per line, repeated with new vehicle ids up to the fleet size. Run with -prof gc to get the
+ * allocation rates, which is where most of a regression shows first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefreshPipelineBenchmark {
+
+    private static final String FIXTURE = "/syncromatics/route-vehicles.json";
+
+    /**
+     * Share of the vehicles that moved since the last refresh, for the incremental publish
+     */
+    private static final double MOVED_SHARE = 0.1;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int vehicles;
+
+    private byte[] mResponse;
+    private List<SyncromaticsVehicle> mVehicles;
+    private GtfsRealtimeProviderImpl mProvider;
+    private List<FeedEntity> mEntities;
+    private FeedMessage mFeed;
+    private BullRunnerGtfsRealtimeExporter mExporter;
+
+    /**
+     * Two alternating versions of the entities of the vehicles that moved, so that every incremental update
+     * changes them
+     */
+    private GtfsRealtimeIncrementalUpdate[] mIncrementalUpdates;
+    private int mNextIncrementalUpdate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<String> recorded = readFixture();
+        StringBuilder response = new StringBuilder("[\n");
+        for (int i = 0; i < vehicles; i++) {
+            if (i > 0) {
+                response.append(",\n");
+            }
+            // Each recorded vehicle starts with its id
+            String vehicle = recorded.get(i % recorded.size());
+            response.append(vehicle.replaceFirst("\"id\": *\\d+", "\"id\": " + (10000 + i)));
+        }
+        mResponse = response.append("\n]\n").toString().getBytes(StandardCharsets.UTF_8);
+
+        mVehicles = SyncromaticsJsonReader.readVehicles(new ByteArrayInputStream(mResponse));
+        mProvider = new GtfsRealtimeProviderImpl();
+        mEntities = convert(mVehicles);
+        mExporter = new BullRunnerGtfsRealtimeExporter();
+        GtfsRealtimeFullUpdate fullUpdate = new GtfsRealtimeFullUpdate();
+        for (FeedEntity entity : mEntities) {
+            fullUpdate.addEntity(entity);
+        }
+        mExporter.handleFullUpdate(fullUpdate);
+        mFeed = mExporter.getFeed();
+
+        int moved = Math.max(1, (int) (vehicles * MOVED_SHARE));
+        mIncrementalUpdates = new GtfsRealtimeIncrementalUpdate[2];
+        for (int version = 0; version < mIncrementalUpdates.length; version++) {
+            mIncrementalUpdates[version] = new GtfsRealtimeIncrementalUpdate();
+            for (int i = 0; i < moved; i++) {
+                SyncromaticsVehicle vehicle = mVehicles.get(i * (vehicles / moved));
+                SyncromaticsVehicle movedVehicle = new SyncromaticsVehicle(vehicle.mId, vehicle.mName,
+                        vehicle.mLat + 0.0001 * (version + 1), vehicle.mLon, vehicle.mHeadingDegrees, vehicle.mSpeed,
+                        vehicle.mLastUpdated + 10 * (version + 1), vehicle.mPassengerLoad, vehicle.mTripId, null);
+                mIncrementalUpdates[version].addUpdatedEntity(
+                        mProvider.buildVehiclePosition(movedVehicle, "A", "1", null));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mExporter.stop();
+    }
+
+    @Benchmark
+    public List<SyncromaticsVehicle> parse() throws IOException {
+        return SyncromaticsJsonReader.readVehicles(new ByteArrayInputStream(mResponse));
+    }
+
+    @Benchmark
+    public List<FeedEntity> convert() {
+        return convert(mVehicles);
+    }
+
+    @Benchmark
+    public FeedSnapshot publishFull() {
+        GtfsRealtimeFullUpdate fullUpdate = new GtfsRealtimeFullUpdate();
+        for (FeedEntity entity : mEntities) {
+            fullUpdate.addEntity(entity);
+        }
+        mExporter.handleFullUpdate(fullUpdate);
+        return mExporter.getSnapshot();
+    }
+
+    @Benchmark
+    public FeedSnapshot publishIncremental() {
+        mExporter.handleIncrementalUpdate(mIncrementalUpdates[mNextIncrementalUpdate]);
+        mNextIncrementalUpdate = 1 - mNextIncrementalUpdate;
+        return mExporter.getSnapshot();
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return mFeed.toByteArray();
+    }
+
+    /**
+     * Parse, convert and publish a full update, as the first refresh does
+     */
+    @Benchmark
+    public FeedSnapshot endToEnd() throws IOException {
+        List<SyncromaticsVehicle> vehicles = parse();
+        GtfsRealtimeFullUpdate fullUpdate = new GtfsRealtimeFullUpdate();
+        for (FeedEntity entity : convert(vehicles)) {
+            fullUpdate.addEntity(entity);
+        }
+        mExporter.handleFullUpdate(fullUpdate);
+        return mExporter.getSnapshot();
+    }
+
+    private List<FeedEntity> convert(List<SyncromaticsVehicle> vehicles) {
+        List<FeedEntity> entities = new ArrayList<>(vehicles.size());
+        for (SyncromaticsVehicle vehicle : vehicles) {
+            entities.add(mProvider.buildVehiclePosition(vehicle, "A", "1", null));
+        }
+        return entities;
+    }
+
+    private static List<String> readFixture() throws IOException {
+        List<String> recorded = new ArrayList<>();
+        try (InputStream in = RefreshPipelineBenchmark.class.getResourceAsStream(FIXTURE);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("{")) {
+                    recorded.add(line.endsWith(",") ? line.substring(0, line.length() - 1) : line);
+                }
+            }
+        }
+        return recorded;
+    }
+}
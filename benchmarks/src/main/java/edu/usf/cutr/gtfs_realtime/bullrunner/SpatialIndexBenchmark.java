@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snaps vehicle positions to the Bull Runner shapes and stops with the SpatialIndex grid, against a brute force
+ * scan of every shape segment, and measures building the index.
+ * <p>
+ * The positions are random points within 100 m of the shapes, as reported by vehicles on their routes. Run from
+ * the repository root, so that bullrunner-gtfs.zip is found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialIndexBenchmark {
+
+    private static final int POSITIONS = 1024;
+
+    private static final double MAX_DISTANCE_METERS = 150;
+
+    private GtfsStaticIndex mIndex;
+    private SpatialIndex mSpatialIndex;
+    private final SpatialIndex.Snap mSnap = new SpatialIndex.Snap();
+
+    private double[] mLats;
+    private double[] mLons;
+    private double[] mX;
+    private double[] mY;
+
+    /**
+     * The shape points, projected, for the brute force scan
+     */
+    private double[] mPointX;
+    private double[] mPointY;
+    private int[] mPointShapes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+        config.findPaths();
+        mIndex = config.readIndex();
+        mSpatialIndex = new SpatialIndex(mIndex);
+
+        int pointCount = mIndex.getShapePointsEnd(mIndex.getShapeCount() - 1);
+        mPointX = new double[pointCount];
+        mPointY = new double[pointCount];
+        mPointShapes = new int[pointCount];
+        for (int shape = 0; shape < mIndex.getShapeCount(); shape++) {
+            for (int point = mIndex.getShapePointsStart(shape); point < mIndex.getShapePointsEnd(shape); point++) {
+                mPointX[point] = mSpatialIndex.x(mIndex.getShapePointLon(point));
+                mPointY[point] = mSpatialIndex.y(mIndex.getShapePointLat(point));
+                mPointShapes[point] = shape;
+            }
+        }
+
+        Random random = new Random(42);
+        mLats = new double[POSITIONS];
+        mLons = new double[POSITIONS];
+        mX = new double[POSITIONS];
+        mY = new double[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            int point = random.nextInt(pointCount);
+            // About 100 m either way
+            mLats[i] = mIndex.getShapePointLat(point) + (random.nextDouble() - 0.5) * 0.0018;
+            mLons[i] = mIndex.getShapePointLon(point) + (random.nextDouble() - 0.5) * 0.002;
+            mX[i] = mSpatialIndex.x(mLons[i]);
+            mY[i] = mSpatialIndex.y(mLats[i]);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SpatialIndex build() {
+        return new SpatialIndex(mIndex);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void snap(Blackhole blackhole) {
+        for (int i = 0; i < POSITIONS; i++) {
+            blackhole.consume(mSpatialIndex.snap(GtfsStaticIndex.NONE, mX[i], mY[i], MAX_DISTANCE_METERS, mSnap));
+            blackhole.consume(mSnap.mDistanceAlong);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void snapBruteForce(Blackhole blackhole) {
+        for (int i = 0; i < POSITIONS; i++) {
+            int best = GtfsStaticIndex.NONE;
+            double bestDistance = MAX_DISTANCE_METERS;
+            for (int segment = 0; segment + 1 < mPointX.length; segment++) {
+                if (mPointShapes[segment + 1] != mPointShapes[segment]) {
+                    continue;
+                }
+                double distance = distanceToSegment(segment, mX[i], mY[i]);
+                if (distance <= bestDistance) {
+                    bestDistance = distance;
+                    best = segment;
+                }
+            }
+            blackhole.consume(best);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void nearestStop(Blackhole blackhole) {
+        for (int i = 0; i < POSITIONS; i++) {
+            blackhole.consume(mSpatialIndex.nearestStop(mLats[i], mLons[i], MAX_DISTANCE_METERS));
+        }
+    }
+
+    /**
+     * Snap to the shape of a trip and find the next stop, as done for each vehicle
+     */
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void snapToTripAndNextStop(Blackhole blackhole) {
+        for (int i = 0; i < POSITIONS; i++) {
+            int trip = i % mIndex.getTripCount();
+            if (mSpatialIndex.snap(mSpatialIndex.getTripShape(trip), mX[i], mY[i], MAX_DISTANCE_METERS, mSnap)) {
+                blackhole.consume(mSpatialIndex.nextStopTime(trip, mSnap.mDistanceAlong));
+            }
+        }
+    }
+
+    private double distanceToSegment(int segment, double x, double y) {
+        double dx = mPointX[segment + 1] - mPointX[segment];
+        double dy = mPointY[segment + 1] - mPointY[segment];
+        double lengthSquared = dx * dx + dy * dy;
+        double fraction = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1,
+                ((x - mPointX[segment]) * dx + (y - mPointY[segment]) * dy) / lengthSquared));
+        double ex = x - mPointX[segment] - fraction * dx;
+        double ey = y - mPointY[segment] - fraction * dy;
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the vehicle refresh cycle with a delay that adapts to what the last cycle saw, instead of at a fixed rate.
+ * <p>
+ * The next cycle is only scheduled once the previous one has finished, so cycles never overlap or queue up.
+ * The delay after a cycle is then:
+ * <ul>
+ * <li>after a failed cycle (an exception, or more than half of the routes failing), an exponential backoff from
+ * the base interval with random jitter, so that retries don't hammer an API that is already struggling</li>
+ * <li>on a day without service in the GTFS calendar, the idle interval</li>
+ * <li>while no vehicles are reported (e.g. overnight), a delay growing from the base interval to the idle
+ * interval</li>
+ * <li>otherwise, between the minimum interval (all vehicles moved) and the base interval (none moved)</li>
+ * </ul>
+ * and never less than twice the time the cycle took, so slow upstream responses don't keep us fetching
+ * back to back.
+ */
+final class AdaptiveRefreshScheduler {
+
+    private static final Logger mLog = LoggerFactory.getLogger(AdaptiveRefreshScheduler.class);
+
+    /**
+     * Share of the routes that may fail without the cycle counting as a failure
+     */
+    private static final double MAX_ROUTE_ERROR_RATE = 0.5;
+
+    /**
+     * Caps the backoff exponent, the delay is capped by mMaxBackoffMs long before that anyway
+     */
+    private static final int MAX_BACKOFF_EXPONENT = 16;
+
+    /**
+     * One refresh cycle
+     */
+    interface RefreshCycle {
+        RefreshOutcome refresh() throws Exception;
+    }
+
+    /**
+     * What a refresh cycle observed
+     */
+    static final class RefreshOutcome {
+        final int mRoutes;
+        final int mFailedRoutes;
+        final int mVehicles;
+        /**
+         * Vehicles whose position, or any other published field, changed since the previous cycle
+         */
+        final int mChangedVehicles;
+
+        RefreshOutcome(int routes, int failedRoutes, int vehicles, int changedVehicles) {
+            mRoutes = routes;
+            mFailedRoutes = failedRoutes;
+            mVehicles = vehicles;
+            mChangedVehicles = changedVehicles;
+        }
+    }
+
+    private final ScheduledExecutorService mExecutor;
+    private final RefreshCycle mCycle;
+    private final BooleanSupplier mServiceToday;
+    private final long mMinIntervalMs;
+    private final long mIntervalMs;
+    private final long mIdleIntervalMs;
+    private final long mMaxBackoffMs;
+
+    // Only used on the executor thread
+    private int mConsecutiveFailures = 0;
+    private int mConsecutiveIdleCycles = 0;
+
+    /**
+     * @param executor       executor the cycles run on
+     * @param cycle          the refresh cycle
+     * @param serviceToday   whether the GTFS calendar has service today
+     * @param minIntervalMs  delay after a cycle in which every vehicle moved
+     * @param intervalMs     delay after a cycle in which no vehicle moved, and base of the backoff
+     * @param idleIntervalMs delay while there is no service or no vehicles
+     * @param maxBackoffMs   maximum delay after failed cycles
+     */
+    AdaptiveRefreshScheduler(ScheduledExecutorService executor, RefreshCycle cycle, BooleanSupplier serviceToday,
+                             long minIntervalMs, long intervalMs, long idleIntervalMs, long maxBackoffMs) {
+        mExecutor = executor;
+        mCycle = cycle;
+        mServiceToday = serviceToday;
+        mMinIntervalMs = Math.min(minIntervalMs, intervalMs);
+        mIntervalMs = intervalMs;
+        mIdleIntervalMs = Math.max(idleIntervalMs, intervalMs);
+        mMaxBackoffMs = Math.max(maxBackoffMs, intervalMs);
+    }
+
+    /**
+     * Run the first cycle right away
+     */
+    void start() {
+        schedule(0);
+    }
+
+    private void schedule(long delayMs) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        try {
+            mExecutor.schedule(this::runCycle, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Shut down concurrently
+        }
+    }
+
+    private void runCycle() {
+        long start = System.nanoTime();
+        RefreshOutcome outcome = null;
+        try {
+            outcome = mCycle.refresh();
+        } catch (InterruptedException ex) {
+            // Being shut down
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable ex) {
+            // Errors too, as nothing would schedule the next cycle otherwise
+            mLog.warn("Error in vehicle refresh task", ex);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long delayMs = nextDelay(outcome, elapsedMs);
+        mLog.debug("Refresh took " + elapsedMs + " ms, next one in " + delayMs + " ms");
+        schedule(delayMs);
+    }
+
+    /**
+     * @param outcome   the outcome of the cycle, or null if it failed with an exception
+     * @param elapsedMs how long the cycle took
+     * @return the delay before the next cycle. Package-private for the tests.
+     */
+    long nextDelay(RefreshOutcome outcome, long elapsedMs) {
+        boolean failed = outcome == null
+                || (outcome.mRoutes > 0 && outcome.mFailedRoutes > outcome.mRoutes * MAX_ROUTE_ERROR_RATE);
+        if (failed) {
+            mConsecutiveFailures++;
+            long backoff = Math.min(mMaxBackoffMs,
+                    mIntervalMs << Math.min(mConsecutiveFailures, MAX_BACKOFF_EXPONENT));
+            // Equal jitter: at least half the backoff, so that it still grows, plus a random share of the rest
+            long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            mLog.info("Refresh failed " + mConsecutiveFailures + " time(s) in a row, backing off for " + delay + " ms");
+            return delay;
+        }
+        mConsecutiveFailures = 0;
+
+        long delay;
+        if (!mServiceToday.getAsBoolean()) {
+            delay = mIdleIntervalMs;
+        } else if (outcome.mVehicles == 0) {
+            mConsecutiveIdleCycles++;
+            delay = Math.min(mIdleIntervalMs, mIntervalMs * (1 + mConsecutiveIdleCycles));
+        } else {
+            mConsecutiveIdleCycles = 0;
+            double changed = (double) outcome.mChangedVehicles / outcome.mVehicles;
+            delay = mIntervalMs - Math.round((mIntervalMs - mMinIntervalMs) * changed);
+        }
+        return Math.max(delay, 2 * elapsedMs);
+    }
+}
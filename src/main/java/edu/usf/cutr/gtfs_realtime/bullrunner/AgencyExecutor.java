@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One agency's view of the threads shared by all the agencies: tasks run on the shared workers, but at most
+ * maxConcurrency of them at once, the others waiting in a queue of their own. An agency with a slow API therefore
+ * only ties up as many workers as its limit, and with a limit of 1 its tasks run one after the other as on a
+ * single thread, each seeing everything the previous one did.
+ * <p>
+ * Delayed and periodic tasks are timed by the shared timer, which only hands them over to the queue when they're
+ * due. Shutting down only affects this agency: its queued and delayed tasks are dropped, and shutdownNow()
+ * interrupts the ones running.
+ */
+final class AgencyExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final Logger mLog = LoggerFactory.getLogger(AgencyExecutor.class);
+
+    private final ScheduledExecutorService mTimer;
+    private final Executor mWorkers;
+    private final int mMaxConcurrency;
+
+    // Guarded by this
+    private final Queue<Runnable> mQueue = new ArrayDeque<>();
+    private final Set<Thread> mRunning = new HashSet<>();
+    private int mActive;
+    private boolean mShutdown;
+
+    /**
+     * Delayed and periodic tasks not handed over yet, cancelled on shutdown
+     */
+    private final Set<ScheduledTask<?>> mScheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param timer          times the delayed tasks, which must not run anything long on it
+     * @param workers        runs the tasks
+     * @param maxConcurrency maximum number of tasks of this executor running at once
+     */
+    AgencyExecutor(ScheduledExecutorService timer, Executor workers, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1: " + maxConcurrency);
+        }
+        mTimer = timer;
+        mWorkers = workers;
+        mMaxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("Executor shut down");
+            }
+            if (mActive == mMaxConcurrency) {
+                mQueue.add(task);
+                return;
+            }
+            mActive++;
+        }
+        try {
+            mWorkers.execute(() -> runTasks(task));
+        } catch (RejectedExecutionException ex) {
+            finished();
+            throw ex;
+        }
+    }
+
+    /**
+     * Run a task and then the queued ones, keeping the slot until the queue is empty
+     */
+    private void runTasks(Runnable task) {
+        Thread thread = Thread.currentThread();
+        while (task != null) {
+            synchronized (this) {
+                mRunning.add(thread);
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                // A plain Runnable has no future to report this to, and must not take the slot down with it
+                mLog.error("Uncaught error in agency task " + task, t);
+            } finally {
+                synchronized (this) {
+                    mRunning.remove(thread);
+                    task = mQueue.poll();
+                    if (task == null) {
+                        // Under the same lock as the poll, so that execute() can't queue a task nobody will run
+                        finished();
+                    }
+                }
+                // An interrupt from shutdownNow() is meant for this executor's task, not the worker's next one
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private synchronized void finished() {
+        mActive--;
+        if (mActive == 0) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        ScheduledTask<V> task = new ScheduledTask<>(callable, 0, false);
+        task.schedule(unit.toNanos(delay));
+        return task;
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                  TimeUnit unit) {
+        return schedulePeriodic(command, initialDelay, period, unit, true);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                     TimeUnit unit) {
+        return schedulePeriodic(command, initialDelay, delay, unit, false);
+    }
+
+    private ScheduledFuture<?> schedulePeriodic(Runnable command, long initialDelay, long period, TimeUnit unit,
+                                                boolean fixedRate) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        ScheduledTask<Object> task = new ScheduledTask<>(Executors.callable(command), unit.toNanos(period),
+                fixedRate);
+        task.schedule(unit.toNanos(initialDelay));
+        return task;
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        for (ScheduledTask<?> task : mScheduled) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        synchronized (this) {
+            List<Runnable> pending = new ArrayList<>(mQueue);
+            mQueue.clear();
+            for (Thread thread : mRunning) {
+                thread.interrupt();
+            }
+            return pending;
+        }
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return mShutdown && mActive == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * A delayed or periodic task, handed over to the queue by the timer when it's due
+     */
+    private class ScheduledTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        /**
+         * 0 for a one-shot task
+         */
+        private final long mPeriodNanos;
+        private final boolean mFixedRate;
+        private volatile long mNextRunNanos;
+        private volatile ScheduledFuture<?> mTimerFuture;
+
+        ScheduledTask(Callable<V> callable, long periodNanos, boolean fixedRate) {
+            super(callable);
+            mPeriodNanos = periodNanos;
+            mFixedRate = fixedRate;
+        }
+
+        void schedule(long delayNanos) {
+            if (isShutdown()) {
+                throw new RejectedExecutionException("Executor shut down");
+            }
+            mNextRunNanos = System.nanoTime() + delayNanos;
+            mScheduled.add(this);
+            mTimerFuture = mTimer.schedule(this::handOver, delayNanos, TimeUnit.NANOSECONDS);
+            if (isShutdown()) {
+                // Raced with shutdown(), which may have missed this task
+                cancel(false);
+            }
+        }
+
+        private void handOver() {
+            mScheduled.remove(this);
+            try {
+                execute(this);
+            } catch (RejectedExecutionException ex) {
+                cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mPeriodNanos == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                long next = mFixedRate ? mNextRunNanos + mPeriodNanos : System.nanoTime() + mPeriodNanos;
+                try {
+                    schedule(Math.max(0, next - System.nanoTime()));
+                } catch (RejectedExecutionException ex) {
+                    cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mScheduled.remove(this);
+            ScheduledFuture<?> timerFuture = mTimerFuture;
+            if (timerFuture != null) {
+                timerFuture.cancel(false);
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mNextRunNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -15,223 +15,477 @@
  */
 package edu.usf.cutr.gtfs_realtime.bullrunner;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 
 public class BullRunnerConfigExtract {
-    private static String mPath2tripsFile;
-    private static String mPath2calFile;
-    private static String mPath2routeFile;
-    private static String mPath2stopTimesFile;
-    private static String mPath2frequenciesFile;
+    /**
+     * calendar.txt day columns, by day of week (Sunday = 0)
+     */
+    private static final String[] DAY_COLUMNS = {"sunday", "monday", "tuesday", "wednesday", "thursday", "friday",
+            "saturday"};
 
-    Map<String, Integer> mRoutesMap = new HashMap<>();
-    String[] mServiceIds = new String[7];
-    BiHashMap<String, String, String> mTripIDMap = new BiHashMap<>();
-    Map<String, String> mStartTimeByTripIDMap = new HashMap<>();
-    Map<String, String> mExternalIDMap = new HashMap<>();
-    BiHashMap<String, String, String> mStopSeqIdMap = new BiHashMap<>();
+    /**
+     * Where findPaths() looks for the GTFS, in order: extracted first, then the zip itself
+     */
+    private static final String[] DEFAULT_GTFS_PATHS = {"./bullrunner-gtfs", "../bullrunner-gtfs",
+            "./bullrunner-gtfs.zip", "../bullrunner-gtfs.zip"};
 
     /**
-     * Find the USF Bull Runner GTFS directory in the current directory or the parent directory.
-     * If not found, throw an Error and exit
+     * Files of the GTFS that are loaded, and whose changes trigger a reload
      */
-    public void findPaths() {
-        String GTFS_path;
-        if (Files.exists(Paths.get("./bullrunner-gtfs"))) {
-            GTFS_path = "./bullrunner-gtfs";
-        } else if (Files.exists(Paths.get("../bullrunner-gtfs"))) {
-            GTFS_path = "../bullrunner-gtfs";
-        } else {
-            throw new IllegalArgumentException("GTFS FILE NOT FOUND! MAKE SURE YOU HAVE EXTRACTED THE GTFS ZIP FILE IN THE MAIN DIRECTORY OR IN THE TARGET DIRECTORY");
-        }
-        mPath2tripsFile = GTFS_path + "/trips.txt";
-        mPath2calFile = GTFS_path + "/calendar.txt";
-        mPath2routeFile = GTFS_path + "/routes.txt";
-        mPath2stopTimesFile = GTFS_path + "/stop_times.txt";
-        mPath2frequenciesFile = GTFS_path + "/frequencies.txt";
-    }
+    private static final String[] GTFS_FILES = {"trips.txt", "calendar.txt", "calendar_dates.txt",
+            "frequencies.txt", "routes.txt", "stop_times.txt", "stops.txt", "shapes.txt"};
 
     /**
-     * @return a JSON array parsed from the data pulled from the USF Bull Runner Syncromatics API.
+     * stop_times.txt is only split into parts parsed in parallel if the parts are at least this large
      */
-    public JSONArray downloadCofiguration(URL url) throws IOException, JSONException {
+    private static final int MIN_STOP_TIMES_PART_SIZE = 1 << 20;
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
+    /**
+     * GTFS directory or zip file
+     */
+    private File mGtfsPath;
 
-        StringBuilder builder = new StringBuilder();
-        String inputLine;
+    Map<String, Integer> mRoutesMap = new HashMap<>();
 
-        while ((inputLine = reader.readLine()) != null) {
-            builder.append(inputLine).append("\n");
-        }
+    /**
+     * Index of the static GTFS data, replaced by loadIndex(), or by the provider between refresh cycles when
+     * the GTFS has been reloaded. Volatile, as the lookup tasks of a cycle read it from other threads.
+     */
+    volatile GtfsStaticIndex mIndex = new GtfsStaticIndex.Builder().build();
 
-        JSONArray object = (JSONArray) new JSONTokener(builder.toString())
-                .nextValue();
+    /**
+     * @param gtfsPath GTFS directory or zip file, instead of the default locations of findPaths()
+     */
+    public void setGtfsPath(File gtfsPath) {
+        mGtfsPath = gtfsPath;
+    }
 
-        return object;
+    /**
+     * @return the GTFS directory or zip file, null until findPaths() has been called
+     */
+    public File getGtfsPath() {
+        return mGtfsPath;
     }
 
-    public void generatesRouteMap(URL url) throws IOException, JSONException {
+    /**
+     * Find the USF Bull Runner GTFS, either extracted or as bullrunner-gtfs.zip, in the current directory or
+     * the parent directory, unless a path was set.
+     * If not found, throw an Error and exit
+     */
+    public void findPaths() {
+        if (mGtfsPath != null) {
+            if (!mGtfsPath.exists()) {
+                throw new IllegalArgumentException("GTFS FILE NOT FOUND! " + mGtfsPath + " DOES NOT EXIST");
+            }
+            return;
+        }
+        for (String path : DEFAULT_GTFS_PATHS) {
+            File file = new File(path);
+            if (file.exists()) {
+                mGtfsPath = file;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("GTFS FILE NOT FOUND! MAKE SURE YOU HAVE THE GTFS ZIP FILE OR ITS EXTRACTED DIRECTORY IN THE MAIN DIRECTORY OR IN THE TARGET DIRECTORY");
+    }
 
-        JSONArray configArray = downloadCofiguration(url);
+    /**
+     * Read the route configuration downloaded from the USF Bull Runner Syncromatics API and map each route
+     * ("DisplayName":"A Route A") to its Syncromatics id ("ID":423)
+     *
+     * @param in the route configuration response, closed by the caller
+     */
+    public void generatesRouteMap(InputStream in) throws IOException {
+        Map<String, Integer> routes = new HashMap<>();
+        SyncromaticsJsonReader.readRoutes(in, routes);
+        mRoutesMap = routes;
+    }
 
-        for (int i = 0; i < configArray.length(); i++) {
+    /**
+     * Load the static GTFS index from the GTFS directory or zip file found by findPaths()
+     *
+     * @throws IOException
+     */
+    public void loadIndex() throws IOException {
+        mIndex = readIndex();
+    }
 
-            JSONObject obj = configArray.getJSONObject(i);
-            /*
-             * "ID":423,
-      			"DisplayName":"A Route A",
-             */
-            int ID = obj.getInt("ID");
-            String route = obj.getString("DisplayName").substring(0, 1);
-            mRoutesMap.put(route, ID);
+    /**
+     * @return a value that changes when the GTFS directory or zip file found by findPaths() changes, from the
+     * size and modification time of its files
+     */
+    public long getGtfsVersion() {
+        if (mGtfsPath == null) {
+            return 0;
+        }
+        if (!mGtfsPath.isDirectory()) {
+            return 31 * mGtfsPath.lastModified() + mGtfsPath.length();
+        }
+        long version = 0;
+        for (String name : GTFS_FILES) {
+            File file = new File(mGtfsPath, name);
+            version = 31 * (31 * version + file.lastModified()) + file.length();
         }
+        return version;
     }
 
-    //
-
     /**
-     * Extract the service_id for day of week
+     * Read the static GTFS index from the GTFS directory or zip file found by findPaths(), leaving mIndex as is.
+     * <p>
+     * Zip files are read in place, without extracting them. Each file is parsed into a GtfsStaticIndex.Builder
+     * of its own, and stop_times.txt, by far the largest, into one per part, all in parallel across the
+     * available cores. The builders are then merged in a fixed order, so the index doesn't depend on which
+     * file finished first.
      *
+     * @return the new index
      * @throws IOException
      */
-    public void generateServiceMap() throws IOException {
-        String splitBy = ",";
-        String line;
-        BufferedReader servicesBuffer = new BufferedReader(new FileReader(mPath2calFile));
-        line = servicesBuffer.readLine();
-        while ((line = servicesBuffer.readLine()) != null) {
-            String[] tokens = line.split(splitBy);
-            for (int i = 1; i <= 7; i++) {
-                int day = Integer.parseInt(tokens[i]);
-                if (day == 1) {
-                    if (i != 7) {
-                        mServiceIds[i] = tokens[0];
-                    } else {
-                        mServiceIds[0] = tokens[0];
-                    }
+    public GtfsStaticIndex readIndex() throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(cores, r -> {
+            Thread thread = new Thread(r, "gtfs-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (GtfsFiles files = GtfsFiles.open(mGtfsPath)) {
+            // In the order the files used to be read one after the other, which sets the order of the codes
+            Future<GtfsStaticIndex.Builder> trips = executor.submit(() -> readTrips(files.open("trips.txt")));
+            // Either calendar file may be missing, as long as there is one of them
+            if (!files.exists("calendar.txt") && !files.exists("calendar_dates.txt")) {
+                throw new FileNotFoundException(mGtfsPath + " has neither calendar.txt nor calendar_dates.txt");
+            }
+            Future<GtfsStaticIndex.Builder> calendar = executor.submit(() -> files.exists("calendar.txt")
+                    ? readCalendar(files.open("calendar.txt")) : new GtfsStaticIndex.Builder());
+            Future<GtfsStaticIndex.Builder> calendarDates = executor.submit(() -> files.exists("calendar_dates.txt")
+                    ? readCalendarDates(files.open("calendar_dates.txt")) : new GtfsStaticIndex.Builder());
+            Future<GtfsStaticIndex.Builder> frequencies =
+                    executor.submit(() -> readFrequencies(files.open("frequencies.txt")));
+            Future<GtfsStaticIndex.Builder> routes = executor.submit(() -> readRoutes(files.open("routes.txt")));
+            // Only needed to match vehicles to trips
+            Future<GtfsStaticIndex.Builder> stops = executor.submit(() -> files.exists("stops.txt")
+                    ? readStops(files.open("stops.txt")) : new GtfsStaticIndex.Builder());
+            Future<GtfsStaticIndex.Builder> shapes = executor.submit(() -> files.exists("shapes.txt")
+                    ? readShapes(files.open("shapes.txt")) : new GtfsStaticIndex.Builder());
+
+            // Read on this thread while the other files are parsed, then split across the pool
+            GtfsCsvReader stopTimes = files.open("stop_times.txt");
+            int parts = Math.max(1, Math.min(cores, stopTimes.remaining() / MIN_STOP_TIMES_PART_SIZE));
+            List<Future<GtfsStaticIndex.Builder>> stopTimesParts = new ArrayList<>(parts);
+            for (GtfsCsvReader part : stopTimes.split(parts)) {
+                stopTimesParts.add(executor.submit(() -> readStopTimes(part)));
+            }
+
+            GtfsStaticIndex.Builder builder = get(trips);
+            builder.merge(get(calendar));
+            builder.merge(get(calendarDates));
+            for (Future<GtfsStaticIndex.Builder> part : stopTimesParts) {
+                builder.merge(get(part));
+            }
+            if (builder.getStopTimeCount() == 0) {
+                throw new RuntimeException("Cannot find any stop_sequence in stop_times.txt of " + mGtfsPath);
+            }
+            builder.merge(get(frequencies));
+            builder.merge(get(routes));
+            builder.merge(get(stops));
+            builder.merge(get(shapes));
+            return builder.build();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the result of the given parsing task, rethrowing its exception if it failed
+     */
+    private static GtfsStaticIndex.Builder get(Future<GtfsStaticIndex.Builder> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading the GTFS", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Extract the days of the week and the date range of each service_id
+     */
+    private static GtfsStaticIndex.Builder readCalendar(GtfsCsvReader calendar) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int serviceIdColumn = calendar.requireColumn("service_id");
+        int[] dayColumns = new int[DAY_COLUMNS.length];
+        for (int day = 0; day < DAY_COLUMNS.length; day++) {
+            dayColumns[day] = calendar.requireColumn(DAY_COLUMNS[day]);
+        }
+        // Required by the GTFS spec, but older feeds may not have them: the service then never expires
+        int startDateColumn = calendar.column("start_date");
+        int endDateColumn = calendar.column("end_date");
+        while (calendar.next()) {
+            int daysOfWeek = 0;
+            for (int day = 0; day < dayColumns.length; day++) {
+                if (calendar.getInt(dayColumns[day]) == 1) {
+                    daysOfWeek |= 1 << day;
                 }
             }
+            int startDate = startDateColumn < 0 || calendar.isEmpty(startDateColumn) ? 0
+                    : calendar.getInt(startDateColumn);
+            int endDate = endDateColumn < 0 || calendar.isEmpty(endDateColumn) ? Integer.MAX_VALUE
+                    : calendar.getInt(endDateColumn);
+            builder.addService(calendar.get(serviceIdColumn), daysOfWeek, startDate, endDate);
         }
+        return builder;
     }
 
-    public void generateTripMap() throws IOException {
-        String line;
-        BufferedReader tripsBuffer = new BufferedReader(new FileReader(mPath2tripsFile));
+    /**
+     * Extract the dates each service_id is added or removed on
+     */
+    private static GtfsStaticIndex.Builder readCalendarDates(GtfsCsvReader calendarDates) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int serviceIdColumn = calendarDates.requireColumn("service_id");
+        int dateColumn = calendarDates.requireColumn("date");
+        int exceptionTypeColumn = calendarDates.requireColumn("exception_type");
+        while (calendarDates.next()) {
+            builder.addServiceException(calendarDates.get(serviceIdColumn), calendarDates.getInt(dateColumn),
+                    calendarDates.getInt(exceptionTypeColumn));
+        }
+        return builder;
+    }
 
-        String splitBy = ",";
-        line = tripsBuffer.readLine();
-        while ((line = tripsBuffer.readLine()) != null) {
-            String[] tripRoute = line.split(splitBy);
-            //System.out.println(tripRoute[0]+" , "+ tripRoute[1]+" , "+ tripRoute[2]);
-            mTripIDMap.put(tripRoute[0], tripRoute[1], tripRoute[2]);
+    private static GtfsStaticIndex.Builder readTrips(GtfsCsvReader trips) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int routeIdColumn = trips.requireColumn("route_id");
+        int serviceIdColumn = trips.requireColumn("service_id");
+        int tripIdColumn = trips.requireColumn("trip_id");
+        int shapeIdColumn = trips.column("shape_id");
+        while (trips.next()) {
+            builder.addTrip(trips.get(routeIdColumn), trips.get(serviceIdColumn), trips.get(tripIdColumn),
+                    shapeIdColumn < 0 ? null : trips.get(shapeIdColumn));
         }
+        return builder;
+    }
 
+    /**
+     * Extract the stop times of each trip (stop_id, stop_sequence, arrival and departure time) from
+     * stop_times.txt, or a part of it
+     */
+    private static GtfsStaticIndex.Builder readStopTimes(GtfsCsvReader stopTimes) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int tripIdColumn = stopTimes.requireColumn("trip_id");
+        int arrivalTimeColumn = stopTimes.requireColumn("arrival_time");
+        int departureTimeColumn = stopTimes.requireColumn("departure_time");
+        int stopIdColumn = stopTimes.requireColumn("stop_id");
+        int stopSequenceColumn = stopTimes.requireColumn("stop_sequence");
+        while (stopTimes.next()) {
+            builder.addStopTime(stopTimes.get(tripIdColumn), stopTimes.get(stopIdColumn),
+                    stopTimes.getInt(stopSequenceColumn), stopTimes.getTime(arrivalTimeColumn),
+                    stopTimes.getTime(departureTimeColumn));
+        }
+        return builder;
     }
 
+    /**
+     * Extract the start_time, end_time and headway of each trip ID from frequencies.txt
+     */
+    private static GtfsStaticIndex.Builder readFrequencies(GtfsCsvReader frequencies) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int tripIdColumn = frequencies.requireColumn("trip_id");
+        int startTimeColumn = frequencies.requireColumn("start_time");
+        int endTimeColumn = frequencies.requireColumn("end_time");
+        int headwayColumn = frequencies.requireColumn("headway_secs");
+        while (frequencies.next()) {
+            builder.addFrequency(frequencies.get(tripIdColumn), frequencies.getTime(startTimeColumn),
+                    frequencies.getTime(endTimeColumn), frequencies.getInt(headwayColumn));
+        }
+        return builder;
+    }
 
     /**
-     * This function extract the corresponding sequence ID for each stop ID from stop_times.txt in GTFS files.
-     * We need tripID and stopID to extract stop sequence.
-     *
-     * @throws IOException
+     * Extract the position of each stop from stops.txt
      */
-    public void extractSeqId() throws IOException {
+    private static GtfsStaticIndex.Builder readStops(GtfsCsvReader stops) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int stopIdColumn = stops.requireColumn("stop_id");
+        int latColumn = stops.requireColumn("stop_lat");
+        int lonColumn = stops.requireColumn("stop_lon");
+        while (stops.next()) {
+            // Entrances and generic nodes may have no position
+            if (!stops.isEmpty(latColumn) && !stops.isEmpty(lonColumn)) {
+                builder.addStop(stops.get(stopIdColumn), stops.getDouble(latColumn), stops.getDouble(lonColumn));
+            }
+        }
+        return builder;
+    }
 
-        String line;
-        String[] tokens;
-        String delims = "[,]+";
-        String stop_id = "", trip_id = "", stop_sequence = "";
+    /**
+     * Extract the points of each shape from shapes.txt
+     */
+    private static GtfsStaticIndex.Builder readShapes(GtfsCsvReader shapes) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int shapeIdColumn = shapes.requireColumn("shape_id");
+        int latColumn = shapes.requireColumn("shape_pt_lat");
+        int lonColumn = shapes.requireColumn("shape_pt_lon");
+        int sequenceColumn = shapes.requireColumn("shape_pt_sequence");
+        while (shapes.next()) {
+            builder.addShapePoint(shapes.get(shapeIdColumn), shapes.getInt(sequenceColumn),
+                    shapes.getDouble(latColumn), shapes.getDouble(lonColumn));
+        }
+        return builder;
+    }
 
-        BufferedReader stop_times = new BufferedReader(new FileReader(mPath2stopTimesFile));
-        line = stop_times.readLine();
+    /**
+     * Create a mapping between Syncromatics' route id and Bull Runner GTFS route id (A, B, C, etc.)
+     */
+    private static GtfsStaticIndex.Builder readRoutes(GtfsCsvReader routes) throws IOException {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        int routeIdColumn = routes.requireColumn("route_id");
+        int externalIdColumn = routes.requireColumn("external_id");
+        while (routes.next()) {
+            builder.addRoute(routes.get(routeIdColumn), routes.getString(externalIdColumn));
+        }
+        return builder;
+    }
 
-        try {
-            line = stop_times.readLine();
-            while (line != null) {
-
-                tokens = line.split(delims);
-                trip_id = tokens[0];
-                stop_id = tokens[3];
-                stop_sequence = tokens[4];
-                String preStopSeq = "";
-                try {
-                    preStopSeq = mStopSeqIdMap.get(trip_id, stop_id);
-                } catch (NullPointerException e) {
+    /**
+     * The files of a GTFS directory or zip file
+     */
+    private static abstract class GtfsFiles implements AutoCloseable {
 
-                }
-                if (preStopSeq == null)
-                    mStopSeqIdMap.put(trip_id, stop_id, stop_sequence);
-                line = stop_times.readLine();
+        static GtfsFiles open(File path) throws IOException {
+            if (path == null) {
+                throw new IllegalStateException("No GTFS path, call findPaths() first");
             }
-
-        } finally {
-            stop_times.close();
-        }
-        if (stop_sequence.equals("")) {
-            throw new RuntimeException("Cannot find the stop_sequence = " + stop_sequence + ", or stop_id= " + stop_id);
+            return path.isDirectory() ? new DirectoryFiles(path.toPath()) : new ZipFiles(new ZipFile(path));
         }
 
+        abstract boolean exists(String name);
+
+        /**
+         * Can be called from several threads at once
+         */
+        abstract GtfsCsvReader open(String name) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
     }
 
     /**
-     * Extract the corresponding start_time for each trip ID from frequencies.txt in GTFS files
-     *
-     * @throws IOException
+     * Files of an extracted GTFS, memory-mapped
      */
-    public void extractStartTime() throws IOException {
-        String line;
-        String[] tokens;
-        String delims = "[,]+";
-        BufferedReader frequencies = null;
-        try {
-            frequencies = new BufferedReader(new FileReader(mPath2frequenciesFile));
-            line = frequencies.readLine();
-        } catch (IOException e) {
-            System.err.println("Error, not able to open" + e);
+    private static final class DirectoryFiles extends GtfsFiles {
+
+        private final Path mDirectory;
+
+        DirectoryFiles(Path directory) {
+            mDirectory = directory;
         }
-        String start_time = "";
-        String trip_id = "";
 
-        try {
-            line = frequencies.readLine();
-            while (line != null) {
-                tokens = line.split(delims);
-                trip_id = tokens[0];
-                start_time = tokens[1];
-                mStartTimeByTripIDMap.put(trip_id, start_time);
-                line = frequencies.readLine();
-            }
-        } finally {
-            frequencies.close();
+        @Override
+        boolean exists(String name) {
+            return Files.exists(mDirectory.resolve(name));
+        }
+
+        @Override
+        GtfsCsvReader open(String name) throws IOException {
+            return GtfsCsvReader.open(mDirectory.resolve(name));
         }
     }
 
     /**
-     * Create a mapping between Syncromatics' route id and Bull Runner GTFS route id (A, B, C, etc.)
-     *
-     * @throws IOException
+     * Entries of a GTFS zip file, inflated into memory as they are opened. Entries are also found in a
+     * directory of the zip, as some tools zip the GTFS directory rather than its files.
      */
-    public void generateExternalIDMap() throws IOException {
-        BufferedReader routesBuffer = new BufferedReader(new FileReader(mPath2routeFile));
-        String line = routesBuffer.readLine();
-        while ((line = routesBuffer.readLine()) != null) {
-            String[] Route = line.split(",");
-            mExternalIDMap.put(Route[0], Route[7].toString());
+    private static final class ZipFiles extends GtfsFiles {
+
+        private final ZipFile mZip;
+
+        ZipFiles(ZipFile zip) {
+            mZip = zip;
+        }
+
+        @Override
+        boolean exists(String name) {
+            return findEntry(name) != null;
+        }
+
+        private ZipEntry findEntry(String name) {
+            ZipEntry entry = mZip.getEntry(name);
+            if (entry == null) {
+                Enumeration<? extends ZipEntry> entries = mZip.entries();
+                while (entries.hasMoreElements() && entry == null) {
+                    ZipEntry candidate = entries.nextElement();
+                    if (!candidate.isDirectory() && candidate.getName().endsWith("/" + name)) {
+                        entry = candidate;
+                    }
+                }
+            }
+            return entry;
+        }
+
+        @Override
+        GtfsCsvReader open(String name) throws IOException {
+            ZipEntry entry = findEntry(name);
+            if (entry == null) {
+                throw new FileNotFoundException(mZip.getName() + " has no " + name);
+            }
+            if (entry.getSize() > Integer.MAX_VALUE) {
+                throw new IOException(name + " in " + mZip.getName() + " is too large to be read");
+            }
+            byte[] bytes = new byte[entry.getSize() >= 0 ? (int) entry.getSize() : 1 << 16];
+            int length = 0;
+            try (InputStream in = mZip.getInputStream(entry)) {
+                while (true) {
+                    if (length == bytes.length) {
+                        // The size isn't known, or was wrong
+                        int next = in.read();
+                        if (next < 0) {
+                            break;
+                        }
+                        bytes = Arrays.copyOf(bytes, 2 * bytes.length + 1);
+                        bytes[length++] = (byte) next;
+                    }
+                    int read = in.read(bytes, length, bytes.length - length);
+                    if (read < 0) {
+                        break;
+                    }
+                    length += read;
+                }
+            }
+            return new GtfsCsvReader(name, ByteBuffer.wrap(bytes, 0, length));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mZip.close();
         }
     }
 }
\ No newline at end of file
@@ -29,77 +29,127 @@ import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.VehiclePositio
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Exports a GTFS-realtime feed for the USF Bull Runner
+ * <p>
+ * Updates are applied under a writer lock and end by swapping in a new, fully built {@link FeedSnapshot}.
+ * Readers just read the current snapshot and never block, not even while an update is being applied.
+ * Listeners are notified on a separate dispatcher thread, in update order, so a slow listener can't hold up
+ * the writer.
  */
 class BullRunnerGtfsRealtimeExporter implements AlertsExporter, TripUpdatesExporter,
         VehiclePositionsExporter, MixedFeedExporter {
 
-    private List<GtfsRealtimeIncrementalListener> _listeners = new CopyOnWriteArrayList<GtfsRealtimeIncrementalListener>();
+    private static final Logger _log = LoggerFactory.getLogger(BullRunnerGtfsRealtimeExporter.class);
+
+    private final List<GtfsRealtimeIncrementalListener> _listeners = new CopyOnWriteArrayList<GtfsRealtimeIncrementalListener>();
+
+    private final ExecutorService _dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gtfs-realtime-listener-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Guards the writer state below: _header, _feedEntities and _incrementalIndex. Updates are queued to the
+     * listeners while holding it, so they get them in the order of their incremental indexes.
+     */
+    private final Object _writeLock = new Object();
 
     private FeedHeader _header;
 
     private Map<String, FeedEntity> _feedEntities = new HashMap<String, FeedEntity>();
 
-    private FeedMessage _cachedFeed = null;
-
     private long _incrementalIndex = 1;
 
     private int _incrementalHeartbeatInterval = 60;
 
-    @Override
-    public synchronized void setFeedHeaderDefaults(FeedHeader header) {
-        _header = header;
-        _cachedFeed = null;
+    private volatile FeedSnapshot _snapshot;
+
+    BullRunnerGtfsRealtimeExporter() {
+        _snapshot = buildSnapshot(System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Serve a feed published before a restart until the first update. The feed keeps its own header
+     * timestamp, so consumers can tell it's stale, and its incremental index, so the indexes of the updates
+     * that follow keep growing.
+     */
+    void restoreFeed(FeedMessage feed) {
+        synchronized (_writeLock) {
+            _feedEntities.clear();
+            for (FeedEntity entity : feed.getEntityList()) {
+                _feedEntities.put(entity.getId(), entity);
+            }
+            FeedHeader header = feed.getHeader();
+            if (header.hasExtension(GtfsRealtimeOneBusAway.obaFeedHeader)) {
+                long index = header.getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+                _incrementalIndex = Math.max(_incrementalIndex, index + 1);
+            }
+            _snapshot = buildSnapshot(header.getTimestamp());
+            notifyListeners(_snapshot.getFeed());
+        }
     }
 
     @Override
-    public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
-        _cachedFeed = null;
-        _feedEntities.clear();
-        for (FeedEntity entity : update.getEntities()) {
-            _feedEntities.put(entity.getId(), entity);
+    public void setFeedHeaderDefaults(FeedHeader header) {
+        synchronized (_writeLock) {
+            _header = header;
+            // Same data, same timestamp
+            _snapshot = buildSnapshot(_snapshot.getFeed().getHeader().getTimestamp());
         }
-        _incrementalIndex++;
-        FeedMessage feed = getFeed();
-        for (GtfsRealtimeIncrementalListener listener : _listeners) {
-            listener.handleFeed(feed);
+    }
+
+    @Override
+    public void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+        synchronized (_writeLock) {
+            _feedEntities.clear();
+            for (FeedEntity entity : update.getEntities()) {
+                _feedEntities.put(entity.getId(), entity);
+            }
+            _incrementalIndex++;
+            _snapshot = buildSnapshot(System.currentTimeMillis() / 1000);
+            notifyListeners(_snapshot.getFeed());
         }
     }
 
     @Override
-    public synchronized void handleIncrementalUpdate(
+    public void handleIncrementalUpdate(
             GtfsRealtimeIncrementalUpdate update) {
-        _cachedFeed = null;
-
-        for (FeedEntity toAdd : update.getUpdatedEntities()) {
-            _feedEntities.put(toAdd.getId(), toAdd);
-        }
-        for (String toRemove : update.getDeletedEntities()) {
-            _feedEntities.remove(toRemove);
-        }
+        synchronized (_writeLock) {
+            for (FeedEntity toAdd : update.getUpdatedEntities()) {
+                _feedEntities.put(toAdd.getId(), toAdd);
+            }
+            for (String toRemove : update.getDeletedEntities()) {
+                _feedEntities.remove(toRemove);
+            }
 
-        FeedMessage.Builder feed = FeedMessage.newBuilder();
-        feed.setHeader(createIncrementalHeader());
-        feed.addAllEntity(update.getUpdatedEntities());
-        for (String toRemove : update.getDeletedEntities()) {
-            FeedEntity.Builder entity = FeedEntity.newBuilder();
-            entity.setIsDeleted(true);
-            entity.setId(toRemove);
-            feed.addEntity(entity);
-        }
+            FeedMessage.Builder feed = FeedMessage.newBuilder();
+            feed.setHeader(createIncrementalHeader());
+            feed.addAllEntity(update.getUpdatedEntities());
+            for (String toRemove : update.getDeletedEntities()) {
+                FeedEntity.Builder entity = FeedEntity.newBuilder();
+                entity.setIsDeleted(true);
+                entity.setId(toRemove);
+                feed.addEntity(entity);
+            }
+            FeedMessage differentialFeed = feed.build();
 
-        FeedMessage differentialFeed = feed.build();
-        for (GtfsRealtimeIncrementalListener listener : _listeners) {
-            listener.handleFeed(differentialFeed);
+            _incrementalIndex++;
+            _snapshot = buildSnapshot(System.currentTimeMillis() / 1000);
+            notifyListeners(differentialFeed);
         }
-        _incrementalIndex++;
     }
 
     /****
@@ -107,30 +157,27 @@ class BullRunnerGtfsRealtimeExporter implements AlertsExporter, TripUpdatesExpor
      ****/
 
     @Override
-    public synchronized FeedMessage getFeed() {
-        if (_cachedFeed == null) {
-            FeedHeader.Builder header = FeedHeader.newBuilder();
-            if (_header != null) {
-                header.mergeFrom(_header);
-            }
-            header.setIncrementality(Incrementality.FULL_DATASET);
-            header.setTimestamp(System.currentTimeMillis() / 1000);
-            header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
-
-            setIncrementalIndex(header, _incrementalIndex - 1);
+    public FeedMessage getFeed() {
+        return _snapshot.getFeed();
+    }
 
-            FeedMessage.Builder feed = FeedMessage.newBuilder();
-            feed.setHeader(header);
-            feed.addAllEntity(_feedEntities.values());
-            _cachedFeed = feed.build();
-        }
-        return _cachedFeed;
+    /**
+     * @return the current full feed along with its serialized forms
+     */
+    FeedSnapshot getSnapshot() {
+        return _snapshot;
     }
 
+    /**
+     * Listeners are added on the dispatcher thread, so they receive the current feed and then every later
+     * update exactly once, in order
+     */
     @Override
-    public void addIncrementalListener(GtfsRealtimeIncrementalListener listener) {
-        _listeners.add(listener);
-        listener.handleFeed(getFeed());
+    public void addIncrementalListener(final GtfsRealtimeIncrementalListener listener) {
+        _dispatcher.execute(() -> {
+            _listeners.add(listener);
+            deliver(listener, _snapshot.getFeed());
+        });
     }
 
     @Override
@@ -138,6 +185,52 @@ class BullRunnerGtfsRealtimeExporter implements AlertsExporter, TripUpdatesExpor
         _listeners.remove(listener);
     }
 
+    @PreDestroy
+    public void stop() {
+        _dispatcher.shutdownNow();
+    }
+
+    /**
+     * Queue a feed for the listeners. Must be called with _writeLock held.
+     */
+    private void notifyListeners(final FeedMessage feed) {
+        _dispatcher.execute(() -> {
+            for (GtfsRealtimeIncrementalListener listener : _listeners) {
+                deliver(listener, feed);
+            }
+        });
+    }
+
+    private void deliver(GtfsRealtimeIncrementalListener listener, FeedMessage feed) {
+        try {
+            listener.handleFeed(feed);
+        } catch (RuntimeException ex) {
+            _log.warn("Error in GTFS-realtime listener " + listener, ex);
+        }
+    }
+
+    /**
+     * Build the full feed from the current writer state. Must be called with _writeLock held.
+     *
+     * @param timestamp feed header timestamp, in seconds since the epoch
+     */
+    private FeedSnapshot buildSnapshot(long timestamp) {
+        FeedHeader.Builder header = FeedHeader.newBuilder();
+        if (_header != null) {
+            header.mergeFrom(_header);
+        }
+        header.setIncrementality(Incrementality.FULL_DATASET);
+        header.setTimestamp(timestamp);
+        header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+
+        setIncrementalIndex(header, _incrementalIndex - 1);
+
+        FeedMessage.Builder feed = FeedMessage.newBuilder();
+        feed.setHeader(header);
+        feed.addAllEntity(_feedEntities.values());
+        return new FeedSnapshot(feed.build(), _incrementalIndex - 1);
+    }
+
     private FeedHeader createIncrementalHeader() {
         FeedHeader.Builder header = FeedHeader.newBuilder();
         if (_header != null) {
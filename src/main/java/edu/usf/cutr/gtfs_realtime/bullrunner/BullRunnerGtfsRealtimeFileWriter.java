@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the feed of a BullRunnerGtfsRealtimeExporter to a file every time it changes. The already serialized
+ * bytes of the exporter's snapshot are written as they are, to a temporary file that is then moved over the
+ * target so that readers never see a partially written feed.
+ */
+public class BullRunnerGtfsRealtimeFileWriter implements GtfsRealtimeIncrementalListener {
+
+    private static final Logger _log = LoggerFactory.getLogger(BullRunnerGtfsRealtimeFileWriter.class);
+
+    private BullRunnerGtfsRealtimeExporter _source;
+
+    private File _path;
+
+    void setSource(BullRunnerGtfsRealtimeExporter source) {
+        _source = source;
+    }
+
+    public void setPath(File path) {
+        _path = path;
+    }
+
+    @PostConstruct
+    public void start() {
+        // The listener is called right away with the current feed, and then after every update
+        _source.addIncrementalListener(this);
+    }
+
+    @PreDestroy
+    public void stop() {
+        _source.removeIncrementalListener(this);
+    }
+
+    @Override
+    public void handleFeed(FeedMessage feed) {
+        // Differential feeds only signal a change, the full feed is what gets written
+        try {
+            writeFeed(_source.getSnapshot().getBytes());
+        } catch (IOException ex) {
+            _log.error("Error writing GTFS-realtime feed to " + _path, ex);
+        }
+    }
+
+    private void writeFeed(ByteBuffer bytes) throws IOException {
+        Path target = _path.toPath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
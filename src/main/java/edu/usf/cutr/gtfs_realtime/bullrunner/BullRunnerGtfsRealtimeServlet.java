@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serves the feed of a BullRunnerGtfsRealtimeExporter from the same Jetty server as the stock servlet, but
+ * writes out the already serialized bytes of the exporter's snapshot instead of encoding the feed again for every
+ * request: the protobuf, gzip-compressed if the client accepts it, or the text format with ?debug.
+ */
+public class BullRunnerGtfsRealtimeServlet extends GtfsRealtimeServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient BullRunnerGtfsRealtimeExporter _source;
+
+    void setSource(BullRunnerGtfsRealtimeExporter source) {
+        super.setSource(source);
+        _source = source;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        FeedSnapshot snapshot = _source.getSnapshot();
+        resp.setHeader(GtfsRealtimeNioServer.HEADER_INCREMENTAL_INDEX, Long.toString(snapshot.getIncrementalIndex()));
+        ByteBuffer body;
+        if (req.getParameter("debug") != null) {
+            resp.setContentType("text/plain");
+            resp.setCharacterEncoding("UTF-8");
+            body = snapshot.getText();
+        } else {
+            resp.setContentType("application/x-google-protobuf");
+            String acceptEncoding = req.getHeader("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                resp.setHeader("Content-Encoding", "gzip");
+                body = snapshot.getGzippedBytes();
+            } else {
+                body = snapshot.getBytes();
+            }
+        }
+        resp.setContentLength(body.remaining());
+        WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+        while (body.hasRemaining()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.protobuf.TextFormat;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A published feed together with its serialized forms. The protobuf wire bytes and their gzip-compressed
+ * variant are produced once, when the snapshot is created; the text form used for ?debug output is only
+ * built the first time it is asked for. The buffers handed out are read-only views, so serving a request
+ * is a copy of these bytes rather than a new encoding of the feed.
+ */
+final class FeedSnapshot {
+
+    private final FeedMessage _feed;
+
+    private final long _incrementalIndex;
+
+    private final byte[] _bytes;
+
+    private final byte[] _gzippedBytes;
+
+    private volatile byte[] _text;
+
+    FeedSnapshot(FeedMessage feed, long incrementalIndex) {
+        _feed = feed;
+        _incrementalIndex = incrementalIndex;
+        _bytes = feed.toByteArray();
+        _gzippedBytes = gzip(_bytes);
+    }
+
+    FeedMessage getFeed() {
+        return _feed;
+    }
+
+    /**
+     * @return the incremental index of the last update included in this feed
+     */
+    long getIncrementalIndex() {
+        return _incrementalIndex;
+    }
+
+    /**
+     * @return the protobuf wire bytes of the feed
+     */
+    ByteBuffer getBytes() {
+        return ByteBuffer.wrap(_bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the gzip-compressed protobuf wire bytes of the feed, for clients sending Accept-Encoding: gzip
+     */
+    ByteBuffer getGzippedBytes() {
+        return ByteBuffer.wrap(_gzippedBytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the protobuf text format of the feed, encoded in UTF-8
+     */
+    ByteBuffer getText() {
+        byte[] text = _text;
+        if (text == null) {
+            // Racing readers may both build it, which is harmless as the result is the same
+            text = TextFormat.printToString(_feed).getBytes(StandardCharsets.UTF_8);
+            _text = text;
+        }
+        return ByteBuffer.wrap(text).asReadOnlyBuffer();
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException ex) {
+            // Can't happen when writing to memory
+            throw new UncheckedIOException(ex);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,450 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reader for GTFS CSV files (RFC 4180 with a header row, UTF-8), working directly on the bytes of the file.
+ * <p>
+ * Files are memory-mapped rather than read, and a record is only split into field offsets. The fields are
+ * handed out as CharSequence views over those bytes, one reusable view per column, so reading a file doesn't
+ * allocate a String per cell: ids go into a StringDictionary (which only copies ids it hasn't seen yet), and
+ * numbers and times are parsed from the view. Only quoted fields containing escaped quotes, or non-ASCII
+ * fields, are decoded into the view's own char buffer.
+ * <p>
+ * Columns are resolved by their name in the header, so the column order of the file doesn't matter.
+ */
+final class GtfsCsvReader {
+
+    private static final int FLAG_ESCAPED_QUOTES = 1;
+    private static final int FLAG_NON_ASCII = 2;
+
+    private final String mName;
+    private final ByteBuffer mBuffer;
+    private int mPosition;
+    private int mLine = 0;
+
+    private final Map<String, Integer> mColumns;
+
+    // Fields of the current record
+    private int mFieldCount;
+    private int[] mStarts = new int[16];
+    private int[] mEnds = new int[16];
+    private int[] mFlags = new int[16];
+
+    private FieldView[] mViews = new FieldView[0];
+
+    private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder();
+
+    private byte[] mScratch = new byte[64];
+
+    /**
+     * @param name   name of the file, for error messages
+     * @param buffer contents of the file, from its position to its limit
+     */
+    GtfsCsvReader(String name, ByteBuffer buffer) throws IOException {
+        mName = name;
+        mBuffer = buffer.slice();
+        mPosition = 0;
+        mColumns = new HashMap<>();
+        // Skip the UTF-8 byte order mark some editors write
+        if (mBuffer.limit() >= 3 && mBuffer.get(0) == (byte) 0xEF && mBuffer.get(1) == (byte) 0xBB
+                && mBuffer.get(2) == (byte) 0xBF) {
+            mPosition = 3;
+        }
+        if (!next()) {
+            throw new IOException(mName + " is empty");
+        }
+        for (int i = 0; i < mFieldCount; i++) {
+            mColumns.put(get(i).toString().trim(), i);
+        }
+    }
+
+    /**
+     * Reader of a part of the records of another reader, with its columns
+     */
+    private GtfsCsvReader(GtfsCsvReader header, String name, ByteBuffer buffer) {
+        mName = name;
+        mBuffer = buffer.slice();
+        mPosition = 0;
+        mColumns = header.mColumns;
+        mViews = new FieldView[header.mViews.length];
+        for (int i = 0; i < mViews.length; i++) {
+            mViews[i] = new FieldView();
+        }
+    }
+
+    /**
+     * Memory-map the given file
+     */
+    static GtfsCsvReader open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to be mapped");
+            }
+            // The mapping stays valid once the channel is closed
+            return new GtfsCsvReader(path.getFileName().toString(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the index of the given column, or -1 if the file doesn't have it
+     */
+    int column(String name) {
+        Integer column = mColumns.get(name);
+        return column == null ? -1 : column;
+    }
+
+    /**
+     * @return the index of the given column
+     * @throws IOException if the file doesn't have it
+     */
+    int requireColumn(String name) throws IOException {
+        int column = column(name);
+        if (column < 0) {
+            throw new IOException(mName + " has no " + name + " column");
+        }
+        return column;
+    }
+
+    /**
+     * Move to the next record, skipping blank lines
+     *
+     * @return false at the end of the file
+     */
+    boolean next() throws IOException {
+        int limit = mBuffer.limit();
+        while (mPosition < limit && isLineBreak(mBuffer.get(mPosition))) {
+            if (mBuffer.get(mPosition) == '\n') {
+                mLine++;
+            }
+            mPosition++;
+        }
+        if (mPosition >= limit) {
+            mFieldCount = 0;
+            return false;
+        }
+        mLine++;
+        mFieldCount = 0;
+        int position = mPosition;
+        while (true) {
+            int field = addField();
+            int flags = 0;
+            while (position < limit && mBuffer.get(position) == ' ') {
+                position++;
+            }
+            if (position < limit && mBuffer.get(position) == '"') {
+                // Quoted field, runs to the quote that isn't followed by another one
+                position++;
+                mStarts[field] = position;
+                while (true) {
+                    if (position >= limit) {
+                        throw new IOException("Unterminated quoted field in " + mName + " at line " + mLine);
+                    }
+                    byte b = mBuffer.get(position);
+                    if (b == '"') {
+                        if (position + 1 < limit && mBuffer.get(position + 1) == '"') {
+                            flags |= FLAG_ESCAPED_QUOTES;
+                            position += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    if (b < 0) {
+                        flags |= FLAG_NON_ASCII;
+                    } else if (b == '\n') {
+                        mLine++;
+                    }
+                    position++;
+                }
+                mEnds[field] = position;
+                position++;
+                while (position < limit && mBuffer.get(position) == ' ') {
+                    position++;
+                }
+            } else {
+                mStarts[field] = position;
+                byte b;
+                while (position < limit && (b = mBuffer.get(position)) != ',' && !isLineBreak(b)) {
+                    if (b < 0) {
+                        flags |= FLAG_NON_ASCII;
+                    }
+                    position++;
+                }
+                int end = position;
+                while (end > mStarts[field] && mBuffer.get(end - 1) == ' ') {
+                    end--;
+                }
+                mEnds[field] = end;
+            }
+            mFlags[field] = flags;
+            if (position < limit && mBuffer.get(position) == ',') {
+                position++;
+                continue;
+            }
+            if (position < limit && !isLineBreak(mBuffer.get(position))) {
+                throw new IOException("Unexpected character after quoted field in " + mName + " at line " + mLine);
+            }
+            break;
+        }
+        mPosition = position;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes that haven't been read yet
+     */
+    int remaining() {
+        return mBuffer.limit() - mPosition;
+    }
+
+    /**
+     * Split the records that haven't been read yet into about equal parts, so that they can be read in parallel.
+     * Parts end at line breaks outside of quoted fields. This reader shouldn't be used afterwards.
+     *
+     * @return readers of the parts, in file order
+     */
+    List<GtfsCsvReader> split(int parts) {
+        List<GtfsCsvReader> readers = new ArrayList<>(parts);
+        int limit = mBuffer.limit();
+        int partSize = Math.max(1, (limit - mPosition) / parts);
+        int start = mPosition;
+        int target = start + partSize;
+        boolean quoted = false;
+        for (int i = mPosition; i < limit && readers.size() < parts - 1; i++) {
+            byte b = mBuffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted && i >= target) {
+                readers.add(part(readers.size(), start, i + 1));
+                start = i + 1;
+                target = start + partSize;
+            }
+        }
+        readers.add(part(readers.size(), start, limit));
+        return readers;
+    }
+
+    private GtfsCsvReader part(int index, int start, int end) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(end);
+        buffer.position(start);
+        return new GtfsCsvReader(this, mName + " (part " + (index + 1) + ")", buffer);
+    }
+
+    /**
+     * @return the value of the given column in the current record, empty if the record doesn't have it. The
+     * view is only valid until the next call to next().
+     */
+    CharSequence get(int column) throws CharacterCodingException {
+        FieldView view = mViews[column];
+        if (column >= mFieldCount) {
+            view.setDirect(0, 0);
+            return view;
+        }
+        int start = mStarts[column];
+        int end = mEnds[column];
+        if (mFlags[column] == 0) {
+            view.setDirect(start, end - start);
+        } else {
+            decode(view, start, end, (mFlags[column] & FLAG_ESCAPED_QUOTES) != 0);
+        }
+        return view;
+    }
+
+    /**
+     * @return whether the given column is empty (or missing) in the current record
+     */
+    boolean isEmpty(int column) {
+        return column >= mFieldCount || mStarts[column] == mEnds[column];
+    }
+
+    /**
+     * @return the value of the given column as a non-negative integer
+     */
+    int getInt(int column) throws IOException {
+        CharSequence value = get(column);
+        int length = value.length();
+        if (length == 0 || length > 9) {
+            throw invalid(column, "integer");
+        }
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalid(column, "integer");
+            }
+            result = 10 * result + digit;
+        }
+        return result;
+    }
+
+    /**
+     * @return the value of the given column as a decimal number, such as a coordinate
+     */
+    double getDouble(int column) throws IOException {
+        try {
+            // Rare enough (stop coordinates) not to need a parser of its own
+            return Double.parseDouble(get(column).toString());
+        } catch (NumberFormatException ex) {
+            throw invalid(column, "number");
+        }
+    }
+
+    /**
+     * @return the value of the given column as a GTFS time (H:MM:SS) in seconds after midnight, or
+     * GtfsStaticIndex.NONE if it is empty
+     */
+    int getTime(int column) throws IOException {
+        try {
+            return GtfsStaticIndex.parseTime(get(column));
+        } catch (IllegalArgumentException ex) {
+            throw invalid(column, "time");
+        }
+    }
+
+    /**
+     * @return the value of the given column as a new String, for the few values that are kept as they are
+     */
+    String getString(int column) throws CharacterCodingException {
+        return get(column).toString();
+    }
+
+    private IOException invalid(int column, String type) throws CharacterCodingException {
+        return new IOException("Invalid " + type + " '" + get(column) + "' in " + mName + " at line " + mLine);
+    }
+
+    private int addField() {
+        int field = mFieldCount++;
+        if (field >= mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, 2 * mStarts.length);
+            mEnds = Arrays.copyOf(mEnds, 2 * mEnds.length);
+            mFlags = Arrays.copyOf(mFlags, 2 * mFlags.length);
+        }
+        if (field >= mViews.length) {
+            mViews = Arrays.copyOf(mViews, field + 1);
+            mViews[field] = new FieldView();
+        }
+        return field;
+    }
+
+    /**
+     * Decode a quoted or non-ASCII field into the view's own chars
+     */
+    private void decode(FieldView view, int start, int end, boolean escapedQuotes) throws CharacterCodingException {
+        if (mScratch.length < end - start) {
+            mScratch = new byte[Math.max(end - start, 2 * mScratch.length)];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = mBuffer.get(i);
+            mScratch[length++] = b;
+            if (escapedQuotes && b == '"') {
+                // Skip the second quote of ""
+                i++;
+            }
+        }
+        CharBuffer out = view.charBuffer(length);
+        mDecoder.reset();
+        CoderResult result = mDecoder.decode(ByteBuffer.wrap(mScratch, 0, length), out, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        mDecoder.flush(out);
+        view.setDecoded(out.position());
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * A field of the current record, either straight over the ASCII bytes of the file or over decoded chars
+     */
+    private final class FieldView implements CharSequence {
+
+        private boolean mDirect;
+        private int mStart;
+        private int mLength;
+        private char[] mChars = new char[0];
+
+        void setDirect(int start, int length) {
+            mDirect = true;
+            mStart = start;
+            mLength = length;
+        }
+
+        CharBuffer charBuffer(int capacity) {
+            // UTF-8 never decodes to more chars than it has bytes
+            if (mChars.length < capacity) {
+                mChars = new char[capacity];
+            }
+            return CharBuffer.wrap(mChars);
+        }
+
+        void setDecoded(int length) {
+            mDirect = false;
+            mStart = 0;
+            mLength = length;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= mLength) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            }
+            return mDirect ? (char) mBuffer.get(mStart + index) : mChars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            if (!mDirect) {
+                return new String(mChars, 0, mLength);
+            }
+            char[] chars = new char[mLength];
+            for (int i = 0; i < mLength; i++) {
+                chars[i] = (char) mBuffer.get(mStart + i);
+            }
+            return new String(chars);
+        }
+    }
+}
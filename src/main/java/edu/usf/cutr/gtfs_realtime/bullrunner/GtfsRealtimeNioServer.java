@@ -0,0 +1,581 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking HTTP endpoint for a BullRunnerGtfsRealtimeExporter, served from one selector thread so that
+ * idle clients cost a socket and a small buffer rather than a thread each.
+ * <p>
+ * On top of a plain GET of the current feed (protobuf, gzip-compressed if accepted, or text with ?debug),
+ * clients can wait for the feed to change instead of polling on a timer:
+ * <ul>
+ * <li>long-poll: {@code ?after=<index>[&timeout=<seconds>]} answers as soon as the feed's incremental index
+ * is past {@code index}, or with 304 Not Modified once the timeout expires</li>
+ * <li>chunked streaming: {@code ?stream} sends every new feed as a length-delimited protobuf message in its
+ * own HTTP chunk</li>
+ * <li>server-sent events: {@code ?sse} (or Accept: text/event-stream) sends every new feed as an event whose
+ * id is the incremental index and whose data is the base64-encoded protobuf. Last-Event-ID is honored.</li>
+ * </ul>
+ * Every response carries the feed's incremental index in an {@value #HEADER_INCREMENTAL_INDEX} header.
+ */
+public class GtfsRealtimeNioServer implements GtfsRealtimeIncrementalListener {
+
+    private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeNioServer.class);
+
+    static final String HEADER_INCREMENTAL_INDEX = "X-Incremental-Index";
+
+    private static final int MAX_REQUEST_HEAD = 8192;
+
+    private static final long DEFAULT_LONG_POLL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final long MAX_LONG_POLL_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long SSE_HEARTBEAT_MS = TimeUnit.SECONDS.toMillis(15);
+
+    /**
+     * Streaming clients that fall this far behind are disconnected rather than buffered for
+     */
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private static final byte[] SSE_HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private BullRunnerGtfsRealtimeExporter _source;
+
+    private URL _url;
+
+    private Selector _selector;
+
+    private ServerSocketChannel _serverChannel;
+
+    private Thread _thread;
+
+    private volatile boolean _running;
+
+    /**
+     * Set by the exporter's dispatcher thread, consumed by the selector thread
+     */
+    private final ConcurrentLinkedQueue<FeedSnapshot> _updates = new ConcurrentLinkedQueue<>();
+
+    // Only touched on the selector thread. Sets, as connections leave them one at a time when they close.
+    private final Set<Connection> _waiting = new LinkedHashSet<>();
+
+    private final Set<Connection> _streaming = new LinkedHashSet<>();
+
+    private long _lastHeartbeat = 0;
+
+    void setSource(BullRunnerGtfsRealtimeExporter source) {
+        _source = source;
+    }
+
+    /**
+     * @param url host, port and path to serve the feed at
+     */
+    public void setUrl(URL url) {
+        _url = url;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.configureBlocking(false);
+        int port = _url.getPort() != -1 ? _url.getPort() : _url.getDefaultPort();
+        _serverChannel.bind(new InetSocketAddress(_url.getHost(), port), 1024);
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        _running = true;
+        _thread = new Thread(this::run, "gtfs-realtime-nio-" + port);
+        _thread.setDaemon(true);
+        _thread.start();
+        _source.addIncrementalListener(this);
+        _log.info("serving GTFS-realtime feed at " + _url);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        _source.removeIncrementalListener(this);
+        _running = false;
+        _selector.wakeup();
+        try {
+            _thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : _selector.keys()) {
+            key.channel().close();
+        }
+        _selector.close();
+    }
+
+    /**
+     * Called on the exporter's dispatcher thread after every update
+     */
+    @Override
+    public void handleFeed(FeedMessage feed) {
+        _updates.add(_source.getSnapshot());
+        _selector.wakeup();
+    }
+
+    private void run() {
+        while (_running) {
+            try {
+                _selector.select(1000);
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException ex) {
+                            _log.debug("Closing connection after I/O error", ex);
+                            connection.close();
+                        }
+                    }
+                }
+                FeedSnapshot snapshot = null;
+                for (FeedSnapshot update; (update = _updates.poll()) != null; ) {
+                    snapshot = update;
+                }
+                if (snapshot != null) {
+                    publish(snapshot);
+                }
+                expire(System.currentTimeMillis());
+            } catch (IOException ex) {
+                _log.error("Error in GTFS-realtime NIO server", ex);
+            } catch (RuntimeException ex) {
+                _log.error("Unexpected error in GTFS-realtime NIO server", ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = _serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection._key = channel.register(_selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /**
+     * Hand a new feed to the waiting long-poll clients and the streaming clients
+     */
+    private void publish(FeedSnapshot snapshot) throws IOException {
+        Iterator<Connection> waiting = _waiting.iterator();
+        while (waiting.hasNext()) {
+            Connection connection = waiting.next();
+            if (snapshot.getIncrementalIndex() > connection._after) {
+                waiting.remove();
+                connection.respondWithFeed(snapshot);
+            }
+        }
+        ByteBuffer chunk = null;
+        ByteBuffer event = null;
+        for (Connection connection : new ArrayList<>(_streaming)) {
+            if (snapshot.getIncrementalIndex() <= connection._after) {
+                continue;
+            }
+            connection._after = snapshot.getIncrementalIndex();
+            if (connection._sse) {
+                if (event == null) {
+                    event = sseEvent(snapshot);
+                }
+                connection.send(event.duplicate());
+            } else {
+                if (chunk == null) {
+                    chunk = streamChunk(snapshot);
+                }
+                connection.send(chunk.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Answer the long-poll clients whose timeout expired, and keep idle event streams alive
+     */
+    private void expire(long now) throws IOException {
+        Iterator<Connection> waiting = _waiting.iterator();
+        while (waiting.hasNext()) {
+            Connection connection = waiting.next();
+            if (now >= connection._deadline) {
+                waiting.remove();
+                connection.respond("304 Not Modified", null, null, false, _source.getSnapshot());
+            }
+        }
+        if (now - _lastHeartbeat >= SSE_HEARTBEAT_MS) {
+            _lastHeartbeat = now;
+            for (Connection connection : new ArrayList<>(_streaming)) {
+                if (connection._sse) {
+                    connection.send(ByteBuffer.wrap(SSE_HEARTBEAT));
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer streamChunk(FeedSnapshot snapshot) throws IOException {
+        ByteBuffer bytes = snapshot.getBytes();
+        int size = bytes.remaining();
+        byte[] prefix = new byte[CodedOutputStream.computeRawVarint32Size(size)];
+        CodedOutputStream.newInstance(prefix).writeRawVarint32(size);
+        byte[] chunkHeader = (Integer.toHexString(prefix.length + size) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocate(chunkHeader.length + prefix.length + size + CRLF.length);
+        chunk.put(chunkHeader).put(prefix).put(bytes).put(CRLF);
+        chunk.flip();
+        return chunk.asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer sseEvent(FeedSnapshot snapshot) {
+        ByteBuffer bytes = snapshot.getBytes();
+        byte[] feed = new byte[bytes.remaining()];
+        bytes.get(feed);
+        String event = "id: " + snapshot.getIncrementalIndex() + "\nevent: feed\ndata: "
+                + Base64.getEncoder().encodeToString(feed) + "\n\n";
+        return ByteBuffer.wrap(event.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    }
+
+    /**
+     * State of one client connection, only used on the selector thread
+     */
+    private class Connection {
+
+        private final SocketChannel _channel;
+
+        private SelectionKey _key;
+
+        private final ByteBuffer _in = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+
+        private final ArrayDeque<ByteBuffer> _out = new ArrayDeque<>();
+
+        private int _pendingBytes = 0;
+
+        /**
+         * True while a request is being answered (or waited on), so further requests stay in _in
+         */
+        private boolean _busy = false;
+
+        private boolean _keepAlive = true;
+
+        private long _after = -1;
+
+        private long _deadline;
+
+        private boolean _sse;
+
+        /**
+         * Query parameters and headers (lower case names) of the request being answered, kept for answering a
+         * long-poll once the feed changes
+         */
+        private Map<String, String> _query;
+
+        private Map<String, String> _headers;
+
+        Connection(SocketChannel channel) {
+            _channel = channel;
+        }
+
+        void read() throws IOException {
+            if (_channel.read(_in) == -1) {
+                close();
+                return;
+            }
+            processRequest();
+            updateInterestOps();
+        }
+
+        void write() throws IOException {
+            while (!_out.isEmpty()) {
+                ByteBuffer buffer = _out.peek();
+                int written = _channel.write(buffer);
+                _pendingBytes -= written;
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                _out.poll();
+            }
+            if (_busy && !isStreaming() && !_waiting.contains(this)) {
+                // Response fully written
+                _busy = false;
+                if (!_keepAlive) {
+                    close();
+                    return;
+                }
+                processRequest();
+            }
+            updateInterestOps();
+        }
+
+        void send(ByteBuffer buffer) throws IOException {
+            if (!_key.isValid()) {
+                // Closed by an earlier send() of the same response
+                return;
+            }
+            _pendingBytes += buffer.remaining();
+            if (_pendingBytes > MAX_PENDING_BYTES) {
+                _log.debug("Disconnecting slow client " + _channel.getRemoteAddress());
+                close();
+                return;
+            }
+            _out.add(buffer);
+            updateInterestOps();
+        }
+
+        /**
+         * Read only while _in has room. A client that keeps sending during a long-poll or a stream fills it, and
+         * with OP_READ still set every select() would return at once for a read of nothing.
+         */
+        private void updateInterestOps() {
+            int ops = _in.hasRemaining() ? SelectionKey.OP_READ : 0;
+            if (!_out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            try {
+                _key.interestOps(ops);
+            } catch (CancelledKeyException ex) {
+                // The connection was closed while handling this event, there is nothing left to wait for
+            }
+        }
+
+        void close() {
+            _waiting.remove(this);
+            _streaming.remove(this);
+            _key.cancel();
+            try {
+                _channel.close();
+            } catch (IOException ex) {
+                _log.debug("Error closing connection", ex);
+            }
+        }
+
+        private boolean isStreaming() {
+            return _streaming.contains(this);
+        }
+
+        /**
+         * Parse and answer the request in the input buffer, if a complete one has arrived
+         */
+        private void processRequest() throws IOException {
+            if (_busy || !_channel.isOpen()) {
+                return;
+            }
+            int end = findEndOfHead();
+            if (end < 0) {
+                if (!_in.hasRemaining()) {
+                    _keepAlive = false;
+                    _busy = true;
+                    respond("431 Request Header Fields Too Large", null, null, false, null);
+                }
+                return;
+            }
+            String head = new String(_in.array(), 0, end, StandardCharsets.ISO_8859_1);
+            // Keep whatever follows the head (a pipelined request) for later
+            _in.flip();
+            _in.position(end + 4);
+            _in.compact();
+            _busy = true;
+
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            _headers = headers;
+            if (requestLine.length != 3) {
+                _keepAlive = false;
+                respond("400 Bad Request", null, null, false, null);
+                return;
+            }
+            _keepAlive = requestLine[2].equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(headers.get("connection"))
+                    : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+            if (!requestLine[0].equals("GET")) {
+                respond("405 Method Not Allowed", null, null, false, null);
+                return;
+            }
+
+            String target = requestLine[1];
+            int question = target.indexOf('?');
+            String path = question < 0 ? target : target.substring(0, question);
+            Map<String, String> query = parseQuery(question < 0 ? "" : target.substring(question + 1));
+            _query = query;
+            if (!path.equals(_url.getPath())) {
+                respond("404 Not Found", null, null, false, null);
+                return;
+            }
+
+            FeedSnapshot snapshot = _source.getSnapshot();
+            try {
+                if (query.containsKey("sse") || "text/event-stream".equals(headers.get("accept"))) {
+                    String lastEventId = headers.get("last-event-id");
+                    _after = parseLong(lastEventId != null ? lastEventId : query.get("after"), -1);
+                    startStream(true, snapshot);
+                } else if (query.containsKey("stream")) {
+                    _after = parseLong(query.get("after"), -1);
+                    startStream(false, snapshot);
+                } else if (query.containsKey("after")) {
+                    _after = parseLong(query.get("after"), -1);
+                    if (snapshot.getIncrementalIndex() > _after) {
+                        respondWithFeed(snapshot);
+                    } else {
+                        long timeout = parseLong(query.get("timeout"), -1);
+                        _deadline = System.currentTimeMillis() + (timeout < 0 ? DEFAULT_LONG_POLL_TIMEOUT_MS
+                                : Math.min(TimeUnit.SECONDS.toMillis(timeout), MAX_LONG_POLL_TIMEOUT_MS));
+                        _waiting.add(this);
+                    }
+                } else {
+                    respondWithFeed(snapshot);
+                }
+            } catch (NumberFormatException ex) {
+                respond("400 Bad Request", null, null, false, null);
+            }
+        }
+
+        /**
+         * Answer the current request with the feed, in the form it asked for
+         */
+        void respondWithFeed(FeedSnapshot snapshot) throws IOException {
+            if (_query.containsKey("debug")) {
+                respond("200 OK", "text/plain; charset=utf-8", snapshot.getText(), false, snapshot);
+            } else {
+                String acceptEncoding = _headers.get("accept-encoding");
+                boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+                respond("200 OK", "application/x-google-protobuf",
+                        gzip ? snapshot.getGzippedBytes() : snapshot.getBytes(), gzip, snapshot);
+            }
+        }
+
+        void respond(String status, String contentType, ByteBuffer body, boolean gzip, FeedSnapshot snapshot)
+                throws IOException {
+            StringBuilder head = new StringBuilder(160);
+            head.append("HTTP/1.1 ").append(status).append("\r\n");
+            if (contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            if (gzip) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+            if (snapshot != null) {
+                head.append(HEADER_INCREMENTAL_INDEX).append(": ").append(snapshot.getIncrementalIndex()).append("\r\n");
+            }
+            if (!status.startsWith("304")) {
+                head.append("Content-Length: ").append(body == null ? 0 : body.remaining()).append("\r\n");
+            }
+            head.append("Connection: ").append(_keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            send(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.US_ASCII)));
+            if (body != null) {
+                send(body);
+            }
+        }
+
+        private void startStream(boolean sse, FeedSnapshot snapshot) throws IOException {
+            _sse = sse;
+            _keepAlive = false;
+            String head = "HTTP/1.1 200 OK\r\n"
+                    + (sse ? "Content-Type: text/event-stream\r\n"
+                    : "Content-Type: application/x-google-protobuf\r\nTransfer-Encoding: chunked\r\n")
+                    + "Cache-Control: no-cache\r\n"
+                    + HEADER_INCREMENTAL_INDEX + ": " + snapshot.getIncrementalIndex() + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            send(ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)));
+            if (!_channel.isOpen()) {
+                return;
+            }
+            _streaming.add(this);
+            if (snapshot.getIncrementalIndex() > _after) {
+                _after = snapshot.getIncrementalIndex();
+                send(sse ? sseEvent(snapshot) : streamChunk(snapshot));
+            }
+        }
+
+        private int findEndOfHead() {
+            byte[] bytes = _in.array();
+            for (int i = 0; i + 3 < _in.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String param : query.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            int equals = param.indexOf('=');
+            if (equals < 0) {
+                params.put(param, "");
+            } else {
+                params.put(param.substring(0, equals), param.substring(equals + 1));
+            }
+        }
+        return params;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+}
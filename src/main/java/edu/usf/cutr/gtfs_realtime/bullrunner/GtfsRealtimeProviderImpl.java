@@ -19,10 +19,8 @@ package edu.usf.cutr.gtfs_realtime.bullrunner;
 import com.google.inject.Inject;
 import com.google.transit.realtime.GtfsRealtime.*;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition.OccupancyStatus;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
@@ -33,18 +31,32 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Singleton;
 import java.io.*;
-import java.net.SocketTimeoutException;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.time.Instant;
-import java.util.Calendar;
-import java.util.Iterator;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class produces GTFS-realtime trip updates and vehicle positions by
@@ -59,28 +71,150 @@ import java.util.concurrent.TimeUnit;
 @Singleton
 public class GtfsRealtimeProviderImpl {
 
-    private static final String FIELD_PASSENGER_LOAD = "passengerLoad";
-    private static final String FIELD_NAME = "name";
-    private static final String FIELD_SPEED = "speed";
-    private static final String FIELD_HEADING_DEGREES = "headingDegrees";
-    private static final String FIELD_LAT = "lat";
-    private static final String FIELD_LON = "lon";
-    private static final String FIELD_LAST_UPDATED = "lastUpdated";
+    /**
+     * Number of arrivals requested per vehicle, a lap of the longest Bull Runner trip (44 stops)
+     */
+    private static final int ARRIVALS_COUNT = 50;
+
+    /**
+     * How old the arrival predictions of a vehicle get before they are downloaded again, and how long they are
+     * used for if they can't be
+     */
+    private static final long ARRIVALS_REFRESH_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final long ARRIVALS_TTL_MS = TimeUnit.MINUTES.toMillis(3);
+    private static final long PATTERN_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final double PATTERN_CACHE_MAX_JUMP_METERS = 1000;
 
     private static final Logger mLog = LoggerFactory.getLogger(GtfsRealtimeProviderImpl.class);
-    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10); // connection time out 10s
+    private static final String ROUTES_URL = "https://usfbullrunner.com/region/0/routes";
     private ScheduledExecutorService mExecutor;
+    private ExecutorService mFetchExecutor;
+    private ExecutorService mPatternLookupExecutor;
+    private ExecutorService mArrivalsExecutor;
+    private final VehiclePatternCache mPatternCache = new VehiclePatternCache(PATTERN_CACHE_TTL_MS,
+            PATTERN_CACHE_MAX_JUMP_METERS);
+    private final StopArrivalCache mArrivalCache = new StopArrivalCache(ARRIVALS_TTL_MS);
+    private SharedPool mSharedPool;
+    private SyncromaticsHttpClient mHttpClient;
     private BullRunnerGtfsRealtimeExporter mGtfsRealtimeProvider;
     private URL mUrl;
+    private URL mRoutesUrl;
     private String mApiKey;
 
     /**
-     * How often vehicle data will be downloaded, in seconds.
+     * How often vehicle data will be downloaded while the vehicles are standing still, in seconds.
      */
     private int mRefreshInterval = 30;
+
+    /**
+     * How often vehicle data will be downloaded while all vehicles are moving, in seconds.
+     */
+    private int mMinRefreshInterval = 10;
+
+    /**
+     * How often vehicle data will be downloaded when there is no service or no vehicle is reported, in seconds.
+     * Also the longest backoff after failed downloads.
+     */
+    private int mIdleRefreshInterval = 300;
+
+    /**
+     * Maximum number of Syncromatics route requests that may be in flight at the same time.
+     */
+    private int mFetchConcurrency = 4;
+
+    /**
+     * How long a refresh cycle waits for the route downloads, in seconds. Routes that haven't
+     * responded by then are left out of the published feed for that cycle.
+     */
+    private int mRouteDeadline = 20;
+
+    /**
+     * Maximum number of vehicles whose arrival predictions are downloaded per refresh cycle, on top of the Route
+     * C pattern lookups (which download them too), 0 to only use those.
+     */
+    private int mArrivalsPerRefresh = 4;
+
+    /**
+     * How often the GTFS is checked for changes to reload, in seconds, 0 to never reload it.
+     */
+    private int mGtfsReloadInterval = 60;
+    private GtfsReloader mGtfsReloader;
+
+    /**
+     * Keeps the parsed GTFS and the last published feed for a warm start, null if no snapshot path was set
+     */
+    private SnapshotStore mSnapshotStore;
+
+    /**
+     * Incremental index of the last feed handed over to be saved to the snapshot store
+     */
+    private long mSavedFeedIndex = -1;
+
+    /**
+     * Feed waiting to be saved to the snapshot store, only the latest one is kept
+     */
+    private final AtomicReference<FeedSnapshot> mPendingFeedSnapshot = new AtomicReference<>();
+
+    /**
+     * Saves the feed snapshots, so that the refresh thread doesn't wait for the disk
+     */
+    private ExecutorService mSnapshotExecutor;
+
+    /**
+     * Recording of the Syncromatics responses, null unless a record path was set
+     */
+    private File mRecordPath;
+    private SyncromaticsTrafficLog mTrafficLog;
+
+    /**
+     * Local stub serving recorded Syncromatics responses in place of the API, null unless a replay path was set
+     */
+    private File mReplayPath;
+    private double mReplaySpeed = 1;
+    private SyncromaticsReplayServer mReplayServer;
     private BullRunnerConfigExtract mProviderConfig;
-    private GtfsRealtimeSink mVehiclePositionsSink;
+
+    /**
+     * Active services and trip of each route today, rebuilt at midnight and when the GTFS is reloaded. Only
+     * used on the refresh thread once started.
+     */
+    private ServiceDay mServiceDay;
+
+    /**
+     * Matches vehicles to trip instances of the current index, rebuilt with it. Only used on the refresh thread
+     * once started.
+     */
+    private TripMatcher mTripMatcher;
+    private BullRunnerGtfsRealtimeExporter mVehiclePositionsSink;
     private GtfsRealtimeSink mTripUpdatesSink;
+    private RefreshMetrics mMetrics;
+
+    /**
+     * Vehicles of the last successful download of each route, reused when the API answers 304 Not Modified
+     */
+    private final Map<String, List<SyncromaticsVehicle>> mLastVehiclesByRoute = new HashMap<>();
+
+    /**
+     * Routes whose vehicles made it into the last published feed
+     */
+    private Set<String> mLastPublishedRoutes = new HashSet<>();
+
+    /**
+     * Vehicle position entities of the last published feed, by entity id (the Syncromatics vehicle id). Null
+     * until the first feed has been published.
+     */
+    private Map<String, FeedEntity> mPublishedEntities = null;
+
+    /**
+     * Trip update entities of the last published feed, by entity id (the Syncromatics vehicle id). Null until
+     * the first feed has been published.
+     */
+    private Map<String, FeedEntity> mPublishedTripUpdates = null;
+
+    /**
+     * Vehicle position entities built in the last refresh, by Syncromatics vehicle id
+     */
+    private Map<String, BuiltEntity> mBuiltEntities = new HashMap<>();
 
     @Inject
     public void setGtfsRealtimeProvider(BullRunnerGtfsRealtimeExporter gtfsRealtimeProvider) {
@@ -94,6 +228,13 @@ public class GtfsRealtimeProviderImpl {
         mUrl = url;
     }
 
+    /**
+     * @param routesUrl the URL of the agency's Syncromatics route configuration, instead of the Bull Runner's.
+     */
+    public void setRoutesUrl(URL routesUrl) {
+        mRoutesUrl = routesUrl;
+    }
+
     /**
      * Find the key file in the current directory and then in the parent directory
      * If not found, throw an Error and exit
@@ -109,9 +250,18 @@ public class GtfsRealtimeProviderImpl {
         } else {
             throw new IOException("KEY FILE NOT FOUND! Create key.txt file in the main directory and save the API key in the file");
         }
-        BufferedReader tripsBuffer = new BufferedReader(new FileReader(keyPath));
-        String key = tripsBuffer.readLine();
-        mApiKey = key;
+        setKey(new File(keyPath));
+    }
+
+    /**
+     * Read the API key from the first line of the given file
+     *
+     * @throws IOException
+     */
+    public void setKey(File keyFile) throws IOException {
+        try (BufferedReader tripsBuffer = new BufferedReader(new FileReader(keyFile))) {
+            mApiKey = tripsBuffer.readLine();
+        }
     }
 
     /**
@@ -121,6 +271,87 @@ public class GtfsRealtimeProviderImpl {
         mRefreshInterval = refreshInterval;
     }
 
+    /**
+     * @param minRefreshInterval how often vehicle data will be downloaded while all vehicles are moving, in seconds.
+     */
+    public void setMinRefreshInterval(int minRefreshInterval) {
+        mMinRefreshInterval = minRefreshInterval;
+    }
+
+    /**
+     * @param idleRefreshInterval how often vehicle data will be downloaded when there is no service, in seconds.
+     */
+    public void setIdleRefreshInterval(int idleRefreshInterval) {
+        mIdleRefreshInterval = idleRefreshInterval;
+    }
+
+    /**
+     * @param fetchConcurrency maximum number of route downloads that may run at the same time.
+     */
+    public void setFetchConcurrency(int fetchConcurrency) {
+        mFetchConcurrency = fetchConcurrency;
+    }
+
+    /**
+     * @param routeDeadline how long a refresh cycle waits for the route downloads, in seconds.
+     */
+    public void setRouteDeadline(int routeDeadline) {
+        mRouteDeadline = routeDeadline;
+    }
+
+    /**
+     * @param arrivalsPerRefresh maximum number of vehicles whose arrival predictions are downloaded per refresh.
+     */
+    public void setArrivalsPerRefresh(int arrivalsPerRefresh) {
+        mArrivalsPerRefresh = arrivalsPerRefresh;
+    }
+
+    /**
+     * @param gtfsReloadInterval how often the GTFS is checked for changes to reload, in seconds, 0 to never
+     *                           reload it.
+     */
+    public void setGtfsReloadInterval(int gtfsReloadInterval) {
+        mGtfsReloadInterval = gtfsReloadInterval;
+    }
+
+    /**
+     * @param snapshotPath directory to keep the parsed GTFS and the last published feed in, so that a restart
+     *                     can skip parsing the GTFS and serve the last feed right away.
+     */
+    public void setSnapshotPath(File snapshotPath) {
+        mSnapshotStore = new SnapshotStore(snapshotPath);
+    }
+
+    /**
+     * @param gtfsPath GTFS zip file or directory, instead of looking for bullrunner-gtfs(.zip) in the current
+     *                 and parent directories.
+     */
+    public void setGtfsPath(File gtfsPath) {
+        mProviderConfig.setGtfsPath(gtfsPath);
+    }
+
+    /**
+     * @param recordPath file to append every Syncromatics response to, with its timing, for replaying it later.
+     */
+    public void setRecordPath(File recordPath) {
+        mRecordPath = recordPath;
+    }
+
+    /**
+     * @param replayPath file of recorded Syncromatics responses to serve from a local stub instead of calling the
+     *                   API, which then needs no API key.
+     */
+    public void setReplayPath(File replayPath) {
+        mReplayPath = replayPath;
+    }
+
+    /**
+     * @param replaySpeed how many times faster than real time the recorded responses are replayed.
+     */
+    public void setReplaySpeed(double replaySpeed) {
+        mReplaySpeed = replaySpeed;
+    }
+
     /**
      * The start method automatically starts up a recurring task that
      * periodically downloads the latest vehicle data from the SEPTA vehicle
@@ -132,7 +363,7 @@ public class GtfsRealtimeProviderImpl {
     }
 
     @Inject
-    public void setVehiclePositionsSink(@VehiclePositions GtfsRealtimeSink vehiclePositionsSink) {
+    public void setVehiclePositionsSink(@VehiclePositions BullRunnerGtfsRealtimeExporter vehiclePositionsSink) {
         mVehiclePositionsSink = vehiclePositionsSink;
     }
 
@@ -141,22 +372,88 @@ public class GtfsRealtimeProviderImpl {
         mTripUpdatesSink = tripUpdatesSink;
     }
 
+    @Inject
+    public void setMetrics(RefreshMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Inject
+    public void setSharedPool(SharedPool sharedPool) {
+        mSharedPool = sharedPool;
+    }
+
     @PostConstruct
-    public void start() {
+    public void start() throws IOException {
+        mHttpClient = mSharedPool.getHttpClient();
+        mMetrics.setHttpClient(mHttpClient);
+        if (mRoutesUrl == null) {
+            mRoutesUrl = new URL(ROUTES_URL);
+        }
+        if (mReplayPath != null) {
+            mReplayServer = new SyncromaticsReplayServer(mReplayPath, mReplaySpeed);
+            mReplayServer.start();
+            mUrl = mReplayServer.getUrl(mUrl);
+            mRoutesUrl = mReplayServer.getUrl(mRoutesUrl);
+        }
+        if (mRecordPath != null) {
+            mTrafficLog = new SyncromaticsTrafficLog(mRecordPath);
+            mLog.info("Recording the Syncromatics responses to " + mRecordPath);
+        }
+        boolean restored = false;
+        boolean loaded = false;
         try {
-            mProviderConfig.findPaths(); // try to find path of GTFS directory
-            mProviderConfig.generatesRouteMap(new URL("https://usfbullrunner.com/region/0/routes"));
-            mProviderConfig.generateTripMap();
-            mProviderConfig.generateServiceMap();
-            mProviderConfig.extractSeqId();
-            mProviderConfig.extractStartTime();
-            mProviderConfig.generateExternalIDMap();
+            mProviderConfig.findPaths(); // try to find path of GTFS directory or zip file
+            restored = mSnapshotStore != null && mSnapshotStore.loadConfig(mProviderConfig);
+            loaded = restored;
+            if (restored) {
+                mLog.info("GTFS unchanged, restored it from the snapshot");
+            } else {
+                downloadRouteMap();
+                mProviderConfig.loadIndex();
+                loaded = true;
+                if (mSnapshotStore != null) {
+                    mSnapshotStore.saveConfig(mProviderConfig);
+                }
+            }
         } catch (Exception ex) {
             mLog.warn("Error in retriving confirmation data!", ex);
         }
+        if (mSnapshotStore != null) {
+            FeedMessage feed = mSnapshotStore.loadFeed();
+            if (feed != null) {
+                // Served until the first refresh publishes a new one, with its old timestamp
+                mVehiclePositionsSink.restoreFeed(feed);
+                mLog.info("Serving the last feed from the snapshot, published at " + feed.getHeader().getTimestamp());
+            }
+        }
+        if (mGtfsReloadInterval > 0) {
+            mGtfsReloader = new GtfsReloader(mProviderConfig, TimeUnit.SECONDS.toMillis(mGtfsReloadInterval),
+                    mSharedPool.newExecutor(1));
+            // Retries the first load if it failed
+            mGtfsReloader.start(loaded);
+        }
         mLog.info("starting GTFS-realtime service");
-        mExecutor = Executors.newSingleThreadScheduledExecutor();
-        mExecutor.scheduleAtFixedRate(new VehiclesRefreshTask(), 0, mRefreshInterval, TimeUnit.SECONDS);
+        // The threads are shared with the other agencies, but this one never uses more than its limits: one task
+        // at a time on the refresh executor, which thus behaves as a single refresh thread, mFetchConcurrency
+        // requests in flight for each of the route downloads and the Route C pattern lookups, and for the arrival
+        // downloads no more than a cycle starts (mArrivalsPerRefresh) nor mFetchConcurrency. The arrivals have
+        // their own executor so that they don't hold up the pattern lookups, which the cycle waits for.
+        mFetchExecutor = mSharedPool.newExecutor(mFetchConcurrency);
+        mPatternLookupExecutor = mSharedPool.newExecutor(mFetchConcurrency);
+        mArrivalsExecutor = mSharedPool.newExecutor(Math.max(1, Math.min(mArrivalsPerRefresh, mFetchConcurrency)));
+        mExecutor = mSharedPool.newExecutor(1);
+        mSnapshotExecutor = mSharedPool.newExecutor(1);
+        mTripMatcher = new TripMatcher(mProviderConfig.mIndex);
+        updateServiceDay(LocalDate.now());
+        scheduleServiceDayUpdate();
+        if (restored) {
+            // The route map was restored too, refresh it without holding up the start
+            mExecutor.execute(this::refreshRouteMap);
+        }
+        new AdaptiveRefreshScheduler(mExecutor, new VehiclesRefreshTask(), this::hasServiceToday,
+                TimeUnit.SECONDS.toMillis(mMinRefreshInterval), TimeUnit.SECONDS.toMillis(mRefreshInterval),
+                TimeUnit.SECONDS.toMillis(mIdleRefreshInterval), TimeUnit.SECONDS.toMillis(mIdleRefreshInterval))
+                .start();
     }
 
     /**
@@ -166,239 +463,578 @@ public class GtfsRealtimeProviderImpl {
     public void stop() {
         mLog.info("stopping GTFS-realtime service");
         mExecutor.shutdownNow();
+        mFetchExecutor.shutdownNow();
+        mPatternLookupExecutor.shutdownNow();
+        mArrivalsExecutor.shutdownNow();
+        // Lets the last feed be saved
+        mSnapshotExecutor.shutdown();
+        if (mGtfsReloader != null) {
+            mGtfsReloader.stop();
+        }
+        if (mTrafficLog != null) {
+            try {
+                mTrafficLog.close();
+            } catch (IOException ex) {
+                mLog.warn("Error closing the traffic log", ex);
+            }
+        }
+        if (mReplayServer != null) {
+            mReplayServer.stop();
+        }
     }
 
     /**
-     * Download the latest vehicle data from the Syncromatics API and create a GTFS-realtime VehiclePosition feed
+     * Download the latest vehicle data from the Syncromatics API and create the GTFS-realtime VehiclePosition and
+     * TripUpdate feeds. After the first full update, only the vehicles that changed or disappeared since the
+     * previous refresh are published, as an incremental update.
+     *
+     * @return what this refresh saw, for the scheduler to pick the time of the next one
      */
-    private void refreshTripVehicle() throws IOException, JSONException {
-        GtfsRealtimeFullUpdate vehiclePositions = new GtfsRealtimeFullUpdate();
-        int vehicleFeedID = 0;
-        // Loop through the external route id map to get vehicle locations for each route id
-        Iterator it = mProviderConfig.mExternalIDMap.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry) it.next();
-            String route_id = pair.getKey().toString();
-            String external_id = pair.getValue().toString();
-            if (route_id.equals("MSC Express")) {
-                // Skip MSC Express as its vehicles are included when running route C
+    private AdaptiveRefreshScheduler.RefreshOutcome refreshTripVehicle() throws InterruptedException {
+        Map<String, FeedEntity> vehiclePositions = new LinkedHashMap<>();
+        Map<String, FeedEntity> tripUpdates = new LinkedHashMap<>();
+        Map<String, BuiltEntity> builtEntities = new HashMap<>();
+        long now = System.currentTimeMillis();
+        long deadline = now + TimeUnit.SECONDS.toMillis(mRouteDeadline);
+
+        // Download the arrivals of a few of the vehicles seen last time while the routes download, oldest first,
+        // so that the extra requests per cycle stay bounded however many vehicles there are
+        List<Future<?>> arrivalDownloads = new ArrayList<>();
+        for (String vehicleId : mArrivalCache.selectForDownload(mBuiltEntities.keySet(), ARRIVALS_REFRESH_MS,
+                mArrivalsPerRefresh, now)) {
+            arrivalDownloads.add(mArrivalsExecutor.submit(new ArrivalsDownloadTask(vehicleId)));
+        }
+
+        // Fan out one download per route, so the cycle takes as long as the slowest route rather than all of them
+        List<RouteDownloadTask> tasks = new ArrayList<>();
+        GtfsStaticIndex index = mProviderConfig.mIndex;
+        for (int route = 0; route < index.getRouteCount(); route++) {
+            String routeId = index.getRouteId(route);
+            String externalId = index.getExternalRouteId(route);
+            if (externalId == null || routeId.equals("MSC Express")) {
+                // Skip routes that aren't in routes.txt, and MSC Express as its vehicles are included when
+                // running route C
+                continue;
+            }
+            URL url;
+            try {
+                url = getVehiclesUrl(externalId);
+            } catch (MalformedURLException ex) {
+                mLog.error("Invalid vehicles URL for route " + routeId, ex);
                 continue;
             }
+            tasks.add(new RouteDownloadTask(route, routeId, url, deadline));
+        }
+        List<Future<List<SyncromaticsVehicle>>> results = mFetchExecutor.invokeAll(tasks, mRouteDeadline,
+                TimeUnit.SECONDS);
+        awaitArrivalDownloads(arrivalDownloads, deadline);
+        now = System.currentTimeMillis();
+
+        Set<String> publishedRoutes = new HashSet<>();
+        boolean modified = false;
+        int failedRoutes = 0;
+        int changedVehicles = 0;
+        int reusedVehicles = 0;
+        long buildNanos = 0;
+        boolean rebuilt = false;
+        // trip_id only depends on the route, so look it up once per route
+        Map<Integer, String> tripIds = new HashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            int route = tasks.get(i).mRoute;
+            String route_id = tasks.get(i).mRouteId;
 
-            // Get vehicle locations for this route_id
-            JSONArray vehicleArray;
-            if (route_id.equals("C")) {
-                vehicleArray = downloadVehiclesRouteC(external_id);
+            // Get vehicle locations for this route_id, skipping routes that failed or missed the deadline
+            // The validators of a response are only committed once its vehicles are kept here, so that a response
+            // thrown away is never answered with a 304 next time
+            URL url = tasks.get(i).mUrl;
+            List<SyncromaticsVehicle> vehicles;
+            try {
+                vehicles = results.get(i).get();
+            } catch (CancellationException ex) {
+                mLog.warn("Route " + route_id + " did not respond within " + mRouteDeadline + "s, skipping it this cycle");
+                mHttpClient.invalidate(url);
+                failedRoutes++;
+                continue;
+            } catch (ExecutionException ex) {
+                mLog.error("Error downloading vehicles for route " + route_id, ex.getCause());
+                mHttpClient.invalidate(url);
+                failedRoutes++;
+                continue;
+            }
+            if (vehicles == null) {
+                // 304 Not Modified, the vehicles are the same as in the last download
+                vehicles = mLastVehiclesByRoute.get(route_id);
+                if (vehicles == null) {
+                    continue;
+                }
             } else {
-                vehicleArray = downloadVehicles(external_id);
+                mLastVehiclesByRoute.put(route_id, vehicles);
+                mHttpClient.commit(url);
+                modified = true;
             }
+            publishedRoutes.add(route_id);
 
-            // Loop through vehicleArray to build vehiclePosition for the given route
-            for (int k = 0; k < vehicleArray.length(); k++) {
-                JSONObject vehicleObj = vehicleArray.getJSONObject(k);
-
+            // Loop through the vehicles to build vehiclePosition for the given route
+            for (SyncromaticsVehicle vehicle : vehicles) {
                 // check if we have route_id to provide and if so, what is route id?
-                boolean has_route_id;
                 String route_id_out;
                 if (route_id.equals("C")) {
                     // Route C and MSC Express
-                    if (vehicleObj.getString("route_id").equals("Unknown")) {
-                        has_route_id = false;
+                    if (vehicle.mRouteId.equals(SyncromaticsVehicle.ROUTE_ID_UNKNOWN)) {
                         route_id_out = null;
                     } else {
-                        has_route_id = true;
-                        route_id_out = vehicleObj.getString("route_id");
+                        route_id_out = vehicle.mRouteId;
                     }
                 } else {
                     // All other routes
-                    has_route_id = true;
                     route_id_out = route_id;
                 }
+                // Route C vehicles may be running MSC Express, which has trips of its own
+                int route_out = route_id_out == null ? GtfsStaticIndex.NONE
+                        : route_id_out.equals(route_id) ? route : index.findRoute(route_id_out);
+                String trip_id_out = null;
+                if (route_out != GtfsStaticIndex.NONE) {
+                    if (!tripIds.containsKey(route_out)) {
+                        tripIds.put(route_out, findTripID(route_out, route_id_out));
+                    }
+                    trip_id_out = tripIds.get(route_out);
+                }
 
-                // initiate feed
-                TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
-                Position.Builder position = Position.newBuilder();
-                VehicleDescriptor.Builder VehicleInfo = VehicleDescriptor.newBuilder();
-                FeedEntity.Builder vehiclePositionEntity = FeedEntity.newBuilder();
-
-                // set values for feed
-                if (has_route_id) tripDescriptor.setRouteId(route_id_out);
-                if (has_route_id) tripDescriptor.setTripId(findTripID(route_id));
-                position.setBearing((float) Math.round(100 * vehicleObj.getDouble(FIELD_HEADING_DEGREES)) / 100);
-                position.setLatitude((float) vehicleObj.getDouble(FIELD_LAT));
-                position.setLongitude((float) vehicleObj.getDouble(FIELD_LON));
-                position.setSpeed((float) Math.round(100 * vehicleObj.getDouble(FIELD_SPEED)) / 100);
-                VehicleInfo.setId(vehicleObj.getString(FIELD_NAME));
-                VehicleInfo.setLabel(vehicleObj.getString(FIELD_NAME));
-                tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.UNSCHEDULED);
-
-                // Build feed
-                VehiclePosition.Builder vpBuilder = VehiclePosition.newBuilder();
-                vpBuilder.setPosition(position);
-                vpBuilder.setTrip(tripDescriptor);
-                vpBuilder.setVehicle(VehicleInfo);
-                vpBuilder.setTimestamp(
-                        Instant.parse(vehicleObj.getString(FIELD_LAST_UPDATED)).getEpochSecond()
-                );
-                if (vehicleObj.getDouble(FIELD_PASSENGER_LOAD) <= 0) {
-                    vpBuilder.setOccupancyStatus(OccupancyStatus.EMPTY);
-                } else if (vehicleObj.getDouble(FIELD_PASSENGER_LOAD) <= 0.50) {
-                    vpBuilder.setOccupancyStatus(OccupancyStatus.MANY_SEATS_AVAILABLE);
-                } else if (vehicleObj.getDouble(FIELD_PASSENGER_LOAD) <= 0.70) {
-                    vpBuilder.setOccupancyStatus(OccupancyStatus.FEW_SEATS_AVAILABLE);
-                } else if (vehicleObj.getDouble(FIELD_PASSENGER_LOAD) <= 0.90) {
-                    vpBuilder.setOccupancyStatus(OccupancyStatus.STANDING_ROOM_ONLY);
-                } else if (vehicleObj.getDouble(FIELD_PASSENGER_LOAD) <= 0.95) {
-                    vpBuilder.setOccupancyStatus(OccupancyStatus.CRUSHED_STANDING_ROOM_ONLY);
+                // Reuse the entity built in the last refresh if nothing about the vehicle changed
+                BuiltEntity previous = mBuiltEntities.get(vehicle.mId);
+                BuiltEntity built = previous;
+                long arrivalsTime = mArrivalCache.getDownloadTime(vehicle.mId, now);
+                if (built == null || !built.matches(vehicle, route_id_out, trip_id_out, arrivalsTime)) {
+                    long buildStart = System.nanoTime();
+                    TripMatcher.Match match = trip_id_out == null ? null : mTripMatcher.match(vehicle.mId,
+                            mServiceDay.getTrips(route_out), vehicle.mLat, vehicle.mLon, vehicle.mLastUpdated,
+                            mServiceDay);
+                    built = new BuiltEntity(vehicle, route_id_out, trip_id_out, arrivalsTime,
+                            buildVehiclePosition(vehicle, route_id_out, trip_id_out, match),
+                            buildTripUpdate(vehicle, route_id_out, trip_id_out, match, now));
+                    buildNanos += System.nanoTime() - buildStart;
+                    rebuilt = true;
+                    if (previous == null || !previous.mVehicle.equals(vehicle)) {
+                        // Only count vehicles that moved, not those with new arrivals, for the scheduler
+                        changedVehicles++;
+                    }
                 } else {
-                    vpBuilder.setOccupancyStatus(OccupancyStatus.FULL);
+                    reusedVehicles++;
+                }
+                builtEntities.put(vehicle.mId, built);
+                vehiclePositions.put(vehicle.mId, built.mEntity);
+                if (built.mTripUpdate != null) {
+                    tripUpdates.put(vehicle.mId, built.mTripUpdate);
                 }
-
-                vehicleFeedID++;
-                vehiclePositionEntity.setId(Integer.toString(vehicleFeedID));
-                vehiclePositionEntity.setVehicle(vpBuilder);
-                vehiclePositions.addEntity(vehiclePositionEntity.build());
             }
         }
-        mVehiclePositionsSink.handleFullUpdate(vehiclePositions);
-        mLog.info("Vehicle locations downloaded: " + vehiclePositions.getEntities().size());
+        mBuiltEntities = builtEntities;
+        mMetrics.recordBuild(buildNanos);
+        mMetrics.recordEntityCacheHits(reusedVehicles);
+        mTripMatcher.retainVehicles(builtEntities.keySet());
+        mArrivalCache.retainAll(builtEntities.keySet());
+        AdaptiveRefreshScheduler.RefreshOutcome outcome = new AdaptiveRefreshScheduler.RefreshOutcome(tasks.size(),
+                failedRoutes, vehiclePositions.size(), changedVehicles);
+        if (!modified && !rebuilt && publishedRoutes.equals(mLastPublishedRoutes)) {
+            mLog.info("Vehicle locations not modified since the last refresh");
+            return outcome;
+        }
+        mLastPublishedRoutes = publishedRoutes;
+        long publishStart = System.nanoTime();
+        mPublishedEntities = publish(mVehiclePositionsSink, vehiclePositions, mPublishedEntities);
+        // Trip updates take the stop times from the Syncromatics arrivals where there are some, and from matching
+        // the vehicles to the GTFS trips for the rest, as the arrivals can be inconsistent (see
+        // https://github.com/CUTR-at-USF/bullrunner-gtfs-realtime-generator/issues/8)
+        mPublishedTripUpdates = publish(mTripUpdatesSink, tripUpdates, mPublishedTripUpdates);
+        mMetrics.recordPublish(System.nanoTime() - publishStart);
+        mLog.info("Vehicle locations downloaded: " + vehiclePositions.size() + ", matched to trips: "
+                + tripUpdates.size());
+        saveFeedSnapshot();
+        return outcome;
+    }
+
 
-        // We have experienced inconsistencies when trying to generate Trip Updates from the Syncromatics API data,
-        // (see https://github.com/CUTR-at-USF/bullrunner-gtfs-realtime-generator/issues/8),
-        // so we have decided to remove the Trip Updates feed until we find a better solution.
+    /**
+     * Build the GTFS-realtime vehicle position of a Syncromatics vehicle. Package-private for the benchmarks,
+     * which convert vehicles with no match.
+     *
+     * @param vehicle  vehicle data from the Syncromatics API
+     * @param route_id GTFS route_id of the vehicle, or null if it is unknown
+     * @param trip_id  GTFS trip_id of the route, or null if it is unknown
+     * @param match    trip instance the vehicle was matched to, or null if it wasn't
+     * @return the vehicle position entity, with the Syncromatics vehicle id as its id
+     */
+    FeedEntity buildVehiclePosition(SyncromaticsVehicle vehicle, String route_id, String trip_id,
+                                    TripMatcher.Match match) {
+        // initiate feed
+        TripDescriptor.Builder tripDescriptor;
+        if (match != null) {
+            tripDescriptor = buildTripDescriptor(mProviderConfig.mIndex, mServiceDay, route_id, match);
+        } else {
+            tripDescriptor = TripDescriptor.newBuilder();
+            if (route_id != null) tripDescriptor.setRouteId(route_id);
+            if (trip_id != null) tripDescriptor.setTripId(trip_id);
+            tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.UNSCHEDULED);
+        }
+        Position.Builder position = Position.newBuilder();
+        VehicleDescriptor.Builder VehicleInfo = VehicleDescriptor.newBuilder();
+        FeedEntity.Builder vehiclePositionEntity = FeedEntity.newBuilder();
+
+        // set values for feed
+        position.setBearing((float) Math.round(100 * vehicle.mHeadingDegrees) / 100);
+        position.setLatitude((float) vehicle.mLat);
+        position.setLongitude((float) vehicle.mLon);
+        position.setSpeed((float) Math.round(100 * vehicle.mSpeed) / 100);
+        VehicleInfo.setId(vehicle.mName);
+        VehicleInfo.setLabel(vehicle.mName);
+
+        // Build feed
+        VehiclePosition.Builder vpBuilder = VehiclePosition.newBuilder();
+        vpBuilder.setPosition(position);
+        vpBuilder.setTrip(tripDescriptor);
+        vpBuilder.setVehicle(VehicleInfo);
+        vpBuilder.setTimestamp(vehicle.mLastUpdated);
+        if (match != null) {
+            GtfsStaticIndex index = mProviderConfig.mIndex;
+            vpBuilder.setCurrentStopSequence(index.getStopTimeSequence(match.mStopTime));
+            vpBuilder.setStopId(index.getStopId(index.getStopTimeStop(match.mStopTime)));
+            vpBuilder.setCurrentStatus(match.mStoppedAt ? VehiclePosition.VehicleStopStatus.STOPPED_AT
+                    : VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
+        }
+        double passengerLoad = vehicle.mPassengerLoad;
+        if (passengerLoad <= 0) {
+            vpBuilder.setOccupancyStatus(OccupancyStatus.EMPTY);
+        } else if (passengerLoad <= 0.50) {
+            vpBuilder.setOccupancyStatus(OccupancyStatus.MANY_SEATS_AVAILABLE);
+        } else if (passengerLoad <= 0.70) {
+            vpBuilder.setOccupancyStatus(OccupancyStatus.FEW_SEATS_AVAILABLE);
+        } else if (passengerLoad <= 0.90) {
+            vpBuilder.setOccupancyStatus(OccupancyStatus.STANDING_ROOM_ONLY);
+        } else if (passengerLoad <= 0.95) {
+            vpBuilder.setOccupancyStatus(OccupancyStatus.CRUSHED_STANDING_ROOM_ONLY);
+        } else {
+            vpBuilder.setOccupancyStatus(OccupancyStatus.FULL);
+        }
+
+        // The entity id has to identify the same bus from one refresh to the next for incremental updates
+        vehiclePositionEntity.setId(vehicle.mId);
+        vehiclePositionEntity.setVehicle(vpBuilder);
+        return vehiclePositionEntity.build();
     }
 
+    /**
+     * Build the GTFS-realtime trip update of a vehicle. The stops it has arrival predictions for get the
+     * predicted times; if it was matched to a trip instance, the other stops it has yet to serve on that instance
+     * get times that assume it keeps to the schedule from the last prediction or from where it is.
+     *
+     * @param vehicle  vehicle data from the Syncromatics API
+     * @param route_id GTFS route_id of the vehicle, or null if it is unknown
+     * @param trip_id  GTFS trip_id of the route, or null if it is unknown
+     * @param match    trip instance the vehicle was matched to, or null if it wasn't
+     * @param now      current time, in milliseconds since the epoch
+     * @return the trip update entity, with the Syncromatics vehicle id as its id, or null if there is nothing to
+     * predict
+     */
+    private FeedEntity buildTripUpdate(SyncromaticsVehicle vehicle, String route_id, String trip_id,
+                                       TripMatcher.Match match, long now) {
+        TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+        if (match != null) {
+            tripUpdate.setTrip(buildTripDescriptor(mProviderConfig.mIndex, mServiceDay, route_id, match));
+            tripUpdate.setDelay(match.mDelay);
+            addMatchedStopTimeUpdates(tripUpdate, mProviderConfig.mIndex, mTripMatcher, mArrivalCache, vehicle,
+                    match, now);
+        } else if (trip_id != null) {
+            tripUpdate.setTrip(TripDescriptor.newBuilder().setRouteId(route_id).setTripId(trip_id)
+                    .setScheduleRelationship(TripDescriptor.ScheduleRelationship.UNSCHEDULED));
+            addPredictedStopTimeUpdates(tripUpdate, mProviderConfig.mIndex, mArrivalCache, vehicle, trip_id, now);
+        }
+        if (tripUpdate.getStopTimeUpdateCount() == 0) {
+            return null;
+        }
+        tripUpdate.setVehicle(VehicleDescriptor.newBuilder().setId(vehicle.mName).setLabel(vehicle.mName));
+        tripUpdate.setTimestamp(vehicle.mLastUpdated);
+        return FeedEntity.newBuilder().setId(vehicle.mId).setTripUpdate(tripUpdate).build();
+    }
 
     /**
-     * Method to send a request to the Syncromatics API and get vehicle locations for a given external route_id
-     * (Syncromatics route id)
+     * Add the stops a matched vehicle has yet to serve on its trip instance, with the predicted arrival at a stop
+     * when there is one and the schedule from the last predicted stop (or from the vehicle) otherwise.
+     * Package-private for the tests.
      *
-     * @param external_route_id
-     * @return JSONArray of vehicle locations
-     * @throws IOException
-     * @throws JSONException
+     * @param tripMatcher matcher the match was made by, on the given index
      */
-    private JSONArray downloadVehicles(String external_route_id) throws IOException, JSONException {
-        URLConnection connection = null;
-        URL url = new URL(mUrl + "routes/" + external_route_id + "/vehicles?api-key=" + mApiKey);
-        try {
-            mLog.debug(url.toString());
-            connection = url.openConnection();
-        } catch (Exception ex) {
-            mLog.error("Error in opening feeds url", ex);
+    static void addMatchedStopTimeUpdates(TripUpdate.Builder tripUpdate, GtfsStaticIndex index,
+                                          TripMatcher tripMatcher, StopArrivalCache arrivalCache,
+                                          SyncromaticsVehicle vehicle, TripMatcher.Match match, long now) {
+        // The vehicle is at its scheduled offset now, a stop it is at is arrived at and left now at the earliest
+        long baseTime = vehicle.mLastUpdated;
+        int baseOffset = match.mOffset;
+        long previous = 0;
+        for (int i = match.mStopTime; i < index.getStopTimesEnd(match.mTrip); i++) {
+            int stop = index.getStopTimeStop(i);
+            String stopId = index.getStopId(stop);
+            // A prediction is for the next visit to the stop, which loops visit twice
+            long predicted = isFirstVisit(index, match.mStopTime, i, stop)
+                    ? arrivalCache.getArrival(stopId, vehicle.mId, now) : StopArrivalCache.NO_ARRIVAL;
+            if (predicted >= vehicle.mLastUpdated) {
+                baseTime = predicted;
+                baseOffset = tripMatcher.getArrivalOffset(i);
+            }
+            long arrival = Math.max(previous,
+                    baseTime + Math.max(0, tripMatcher.getArrivalOffset(i) - baseOffset));
+            long departure = Math.max(arrival,
+                    baseTime + Math.max(0, tripMatcher.getDepartureOffset(i) - baseOffset));
+            previous = departure;
+            tripUpdate.addStopTimeUpdate(TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopSequence(index.getStopTimeSequence(i))
+                    .setStopId(stopId)
+                    .setArrival(TripUpdate.StopTimeEvent.newBuilder().setTime(arrival))
+                    .setDeparture(TripUpdate.StopTimeEvent.newBuilder().setTime(departure)));
         }
-        connection.setConnectTimeout(TIMEOUT_MS);
-        connection.setReadTimeout(TIMEOUT_MS);
-        InputStream in = connection.getInputStream();
+    }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    /**
+     * @return whether stop time i is the first visit to the stop since stop time from
+     */
+    private static boolean isFirstVisit(GtfsStaticIndex index, int from, int i, int stop) {
+        for (int j = from; j < i; j++) {
+            if (index.getStopTimeStop(j) == stop) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        StringBuilder builder = new StringBuilder();
-        String inputLine;
-        JSONArray response;
-        try {
-            while ((inputLine = reader.readLine()) != null)
-                builder.append(inputLine).append("\n");
-            response = new JSONArray(builder.toString());
-        } catch (SocketTimeoutException ex) {
-            mLog.error("Error readline, server doesn't close the connection.", ex);
-            response = null;
+    /**
+     * Add the predicted arrivals of a vehicle that wasn't matched to a trip instance, in the order of the trip,
+     * up to the end of the trip. Package-private for the tests.
+     */
+    static void addPredictedStopTimeUpdates(TripUpdate.Builder tripUpdate, GtfsStaticIndex index,
+                                            StopArrivalCache arrivalCache, SyncromaticsVehicle vehicle,
+                                            String trip_id, long now) {
+        int previousSequence = -1;
+        for (Map.Entry<String, Long> arrival : arrivalCache.getArrivals(vehicle.mId, now).entrySet()) {
+            if (arrival.getValue() < vehicle.mLastUpdated) {
+                continue;
+            }
+            int sequence = index.getStopSequence(trip_id, arrival.getKey());
+            if (sequence == GtfsStaticIndex.NONE) {
+                continue;
+            }
+            if (sequence <= previousSequence) {
+                // Back to the start of the loop, the next lap is another trip instance
+                break;
+            }
+            previousSequence = sequence;
+            tripUpdate.addStopTimeUpdate(TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopSequence(sequence)
+                    .setStopId(arrival.getKey())
+                    .setArrival(TripUpdate.StopTimeEvent.newBuilder().setTime(arrival.getValue())));
         }
+    }
 
-        return response;
+    /**
+     * Package-private for the tests.
+     *
+     * @param index      index the match was made on
+     * @param serviceDay service day the match was made on
+     * @return the descriptor of the trip instance a vehicle was matched to
+     */
+    static TripDescriptor.Builder buildTripDescriptor(GtfsStaticIndex index, ServiceDay serviceDay, String route_id,
+                                                      TripMatcher.Match match) {
+        TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+        tripDescriptor.setTripId(index.getTripId(match.mTrip));
+        tripDescriptor.setRouteId(route_id);
+        tripDescriptor.setStartDate(Integer.toString(GtfsStaticIndex.toDate(serviceDay.getDate())));
+        tripDescriptor.setStartTime(GtfsStaticIndex.formatTime(match.mInstanceStart));
+        if (index.getFrequenciesStart(match.mTrip) != index.getFrequenciesEnd(match.mTrip)) {
+            // The Bull Runner frequencies are all exact_times=0, whose instances are unscheduled
+            tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.UNSCHEDULED);
+        } else {
+            tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.SCHEDULED);
+        }
+        return tripDescriptor;
     }
 
     /**
-     * Get vehicle locations for route C and MSC Express (which has the same route_id).
+     * Publish new entities to a sink: a full update the first time, then only the difference with the
+     * previously published entities.
      *
+     * @param sink      sink to publish to
+     * @param entities  entities by entity id
+     * @param published entities last published to the sink by entity id, or null if nothing was published yet
+     * @return the entities now published, to be passed as published next time
+     */
+    private Map<String, FeedEntity> publish(GtfsRealtimeSink sink, Map<String, FeedEntity> entities,
+                                            Map<String, FeedEntity> published) {
+        if (published == null) {
+            GtfsRealtimeFullUpdate fullUpdate = new GtfsRealtimeFullUpdate();
+            for (FeedEntity entity : entities.values()) {
+                fullUpdate.addEntity(entity);
+            }
+            sink.handleFullUpdate(fullUpdate);
+            return entities;
+        }
+
+        GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+        int updated = 0;
+        int deleted = 0;
+        for (FeedEntity entity : entities.values()) {
+            FeedEntity previous = published.get(entity.getId());
+            // Reused entities are the very same instance, which saves comparing them field by field
+            if (entity != previous && !entity.equals(previous)) {
+                update.addUpdatedEntity(entity);
+                updated++;
+            }
+        }
+        for (String id : published.keySet()) {
+            if (!entities.containsKey(id)) {
+                update.addDeletedEntity(id);
+                deleted++;
+            }
+        }
+        if (updated == 0 && deleted == 0) {
+            mLog.debug("No entity changed since the last refresh");
+            return entities;
+        }
+        sink.handleIncrementalUpdate(update);
+        mLog.debug("Published incremental update: " + updated + " updated, " + deleted + " deleted");
+        return entities;
+    }
+
+    /**
      * @param external_route_id The external_route_id from Bull Runner GTFS routes.txt
-     * @return JSONArray of vehicle locations for given route
+     * @return the Syncromatics API URL of the vehicles of the given route
+     */
+    private URL getVehiclesUrl(String external_route_id) throws MalformedURLException {
+        return new URL(mUrl + "routes/" + external_route_id + "/vehicles?api-key=" + mApiKey);
+    }
+
+    /**
+     * Method to send a request to the Syncromatics API and get vehicle locations for a given external route_id
+     * (Syncromatics route id). The validators of the response are left for the caller to commit once it has used
+     * the vehicles.
+     *
+     * @param url   vehicles URL of the route, from getVehiclesUrl
+     * @param bytes counter to add the size of the response body to, after decompression
+     * @return vehicle locations, or null if they haven't changed since the last committed request
+     * @throws IOException
+     */
+    private List<SyncromaticsVehicle> downloadVehicles(URL url, AtomicLong bytes) throws IOException {
+        InputStream in = mHttpClient.getIfModified(url, mTrafficLog);
+        if (in == null) {
+            return null;
+        }
+        long parseStart = System.nanoTime();
+        try {
+            // The body is parsed as it arrives, so this includes reading it off the connection
+            List<SyncromaticsVehicle> vehicles = SyncromaticsJsonReader.readVehicles(
+                    new CountingInputStream(in, bytes));
+            mMetrics.recordParse(System.nanoTime() - parseStart);
+            return vehicles;
+        } catch (IOException ex) {
+            // Don't let a half-read response be answered with 304 next time
+            mHttpClient.invalidate(url);
+            throw ex;
+        }
+    }
+
+    /**
+     * Get vehicle locations for route C and MSC Express (which has the same route_id). If some vehicles had to be
+     * left out, the validators of the response are dropped so that it's downloaded in full again next time.
+     *
+     * @param url      vehicles URL of route C, from getVehiclesUrl
+     * @param bytes    counter to add the size of the vehicles response body to, after decompression
+     * @param deadline time the pattern lookups must be done by, in milliseconds since the epoch. A vehicle whose
+     *                 lookup is late or fails keeps the pattern it was last seen on.
+     * @return vehicle locations for given route, with their GTFS route_id set, or null if they haven't changed
+     * since the last committed request
      * @throws IOException
-     * @throws JSONException
      */
-    private JSONArray downloadVehiclesRouteC(String external_route_id) throws IOException, JSONException {
+    private List<SyncromaticsVehicle> downloadVehiclesRouteC(URL url, AtomicLong bytes, long deadline)
+            throws IOException {
         final String patternNameC = "Route C";
         final String patternNameMSC = "MSC Express";
         final String routeIdC = "C";
         final String routeIdMSC = "MSC Express";
 
         // get vehicles
-        URLConnection connection = null;
-        URL url = new URL(mUrl + "routes/" + external_route_id + "/vehicles?api-key=" + mApiKey);
-        try {
-            mLog.debug(url.toString());
-            connection = url.openConnection();
-        } catch (Exception ex) {
-            mLog.error("Error in opening feeds url", ex);
+        List<SyncromaticsVehicle> response = downloadVehicles(url, bytes);
+        if (response == null) {
+            return null;
         }
-        connection.setConnectTimeout(TIMEOUT_MS);
-        connection.setReadTimeout(TIMEOUT_MS);
-        InputStream in = connection.getInputStream();
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
 
-        StringBuilder builder = new StringBuilder();
-        String inputLine;
-        JSONArray response;
-        try {
-            while ((inputLine = reader.readLine()) != null) {
-                builder.append(inputLine).append("\n");
-            }
-            response = new JSONArray(builder.toString());
-        } catch (SocketTimeoutException ex) {
-            mLog.error("Error readline, server doesn't close the connection.", ex);
-            response = null;
-        }
-
-        // Find pattern_name for each vehicle
-        JSONArray responseOut = new JSONArray();
-        for (int i = 0; i < response.length(); i++) {
-            JSONObject vehicleObj = response.getJSONObject(i);
-            String vehicle_id = vehicleObj.getString("id");
-            URL urlPattern = new URL(mUrl + "v1/vehicles/" + vehicle_id + "/arrivals?count=100&api-key=" + mApiKey);
-            try {
-                mLog.debug(urlPattern.toString());
-                connection = urlPattern.openConnection();
-            } catch (Exception ex) {
-                mLog.error("Error in opening feeds url", ex);
+        // Find pattern_name for each vehicle, only asking the API for vehicles the cache can't answer for
+        long now = System.currentTimeMillis();
+        List<String> vehicleIds = new ArrayList<>();
+        String[] patternNames = new String[response.size()];
+        List<PatternLookupTask> lookups = new ArrayList<>();
+        List<Integer> lookupIndexes = new ArrayList<>();
+        for (int i = 0; i < response.size(); i++) {
+            SyncromaticsVehicle vehicle = response.get(i);
+            vehicleIds.add(vehicle.mId);
+            patternNames[i] = mPatternCache.get(vehicle.mId, vehicle.mLat, vehicle.mLon, vehicle.mTripId, now);
+            if (patternNames[i] != null) {
+                mMetrics.recordPatternCacheHit();
+            } else {
+                lookups.add(new PatternLookupTask(vehicle.mId));
+                lookupIndexes.add(i);
             }
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-            in = connection.getInputStream();
-
-            BufferedReader reader1 = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        }
+        mPatternCache.retainAll(vehicleIds);
 
-            StringBuilder builder1 = new StringBuilder();
-            String inputLine1;
-            JSONArray responsePattern;
+        if (!lookups.isEmpty()) {
+            // Resolve the cache misses concurrently, within what is left of the route's deadline
+            List<Future<String>> results;
             try {
-                while ((inputLine1 = reader1.readLine()) != null) {
-                    builder1.append(inputLine1).append("\n");
+                results = mPatternLookupExecutor.invokeAll(lookups, Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while looking up Route C patterns");
+            }
+            for (int j = 0; j < lookups.size(); j++) {
+                int i = lookupIndexes.get(j);
+                String vehicleId = lookups.get(j).mVehicleId;
+                try {
+                    patternNames[i] = results.get(j).get();
+                } catch (CancellationException ex) {
+                    // The vehicle is most likely still on the pattern it was last seen on
+                    patternNames[i] = mPatternCache.getLastKnown(vehicleId);
+                    mLog.warn("Pattern lookup for vehicle " + vehicleId + " missed the route deadline, "
+                            + (patternNames[i] == null ? "leaving it out" : "keeping " + patternNames[i]));
+                    continue;
+                } catch (ExecutionException | InterruptedException ex) {
+                    mLog.error("Error looking up pattern for vehicle " + vehicleId, ex);
+                    patternNames[i] = mPatternCache.getLastKnown(vehicleId);
+                    continue;
+                }
+                if (!patternNames[i].equals("Unknown")) {
+                    SyncromaticsVehicle vehicle = response.get(i);
+                    mPatternCache.put(vehicle.mId, patternNames[i], vehicle.mLat, vehicle.mLon, vehicle.mTripId, now);
                 }
-                responsePattern = new JSONArray(builder1.toString());
-            } catch (SocketTimeoutException ex) {
-                mLog.error("Error readline, server doesn't close the connection.", ex);
-                continue;
             }
+        }
 
-            String pattern_name;
-            if (responsePattern.length() == 0) {
-                mLog.error("Syncromatics API call is empty: " + urlPattern.toString());
-                pattern_name = "Unknown";
-            } else {
-                pattern_name = responsePattern.getJSONObject(0).getJSONObject("pattern").getString("name");
+        List<SyncromaticsVehicle> responseOut = new ArrayList<>();
+        for (int i = 0; i < response.size(); i++) {
+            SyncromaticsVehicle vehicle = response.get(i);
+            String pattern_name = patternNames[i];
+            if (pattern_name == null) {
+                // The lookup failed, leave the vehicle out as we can't tell which route it is on, and don't let a
+                // 304 keep it out once the lookups work again
+                mHttpClient.invalidate(url);
+                continue;
             }
 
             // Assign route_id based on pattern_name
             if (pattern_name.equals("Unknown")) {
-                vehicleObj.put("route_id", "Unknown"); // flag to let method refreshTripVehicle know to not set route_id
-                responseOut.put(vehicleObj);
+                // flag to let method refreshTripVehicle know to not set route_id
+                responseOut.add(vehicle.withRouteId(SyncromaticsVehicle.ROUTE_ID_UNKNOWN));
             } else if (pattern_name.equals(patternNameC)) {
-                vehicleObj.put("route_id", routeIdC);
-                responseOut.put(vehicleObj);
+                responseOut.add(vehicle.withRouteId(routeIdC));
             } else if (pattern_name.equals(patternNameMSC)) {
-                vehicleObj.put("route_id", routeIdMSC);
-                responseOut.put(vehicleObj);
+                responseOut.add(vehicle.withRouteId(routeIdMSC));
             } else {
                 mLog.warn("NEW PATTERN NAME DETECTED FOR ROUTE C IN THE API: " + pattern_name);
             }
@@ -408,38 +1044,313 @@ public class GtfsRealtimeProviderImpl {
     }
 
     /**
-     * Method to find trip_id of the given route
-     * First find service_id from the day today then use the mapping from trips.txt
+     * Get the pattern name of the next arrival of the given vehicle, keeping its arrivals in the arrival cache. The
+     * next arrival is the first one of the response, whether or not it has a stop and a time.
+     *
+     * @param vehicle_id Syncromatics vehicle id
+     * @return the pattern name, or "Unknown" if the API returned no arrivals
+     * @throws IOException
      */
-    private String findTripID(String route_id) {
-        // get int current day of week (Sun-Sat = 0-7)
-        int currentDay = Calendar.getInstance().get(Calendar.DAY_OF_WEEK) - 1;
+    private String downloadPatternName(String vehicle_id) throws IOException {
+        List<SyncromaticsArrival> arrivals = downloadArrivals(vehicle_id);
+        String pattern_name = arrivals.isEmpty() ? null : arrivals.get(0).mPatternName;
+        if (pattern_name == null) {
+            mLog.error("Syncromatics API returned no arrivals with a pattern for vehicle " + vehicle_id);
+            return "Unknown";
+        }
+        return pattern_name;
+    }
 
-        // get service_id for today
-        String serviceID = mProviderConfig.mServiceIds[currentDay];
+    /**
+     * Download the next arrivals of the given vehicle and put those at GTFS stops in the arrival cache
+     *
+     * @param vehicle_id Syncromatics vehicle id
+     * @return all the arrivals, in the order the API returned them, including those without a stop or a time
+     * @throws IOException
+     */
+    private List<SyncromaticsArrival> downloadArrivals(String vehicle_id) throws IOException {
+        URL urlArrivals = new URL(mUrl + "v1/vehicles/" + vehicle_id + "/arrivals?count=" + ARRIVALS_COUNT
+                + "&api-key=" + mApiKey);
+        long now = System.currentTimeMillis();
+        List<SyncromaticsArrival> arrivals = SyncromaticsJsonReader.readArrivals(mHttpClient.get(urlArrivals, mTrafficLog),
+                TimeUnit.MILLISECONDS.toSeconds(now));
+        GtfsStaticIndex index = mProviderConfig.mIndex;
+        Map<String, Long> stopArrivals = new HashMap<>();
+        for (SyncromaticsArrival arrival : arrivals) {
+            String stopId = toGtfsStopId(index, arrival);
+            if (stopId != null && arrival.mArrivalTime != 0) {
+                // Keep the next arrival at each stop
+                stopArrivals.merge(stopId, arrival.mArrivalTime, Math::min);
+            }
+        }
+        mArrivalCache.put(vehicle_id, stopArrivals, now);
+        return arrivals;
+    }
 
-        // use service_id and route_id to find trip_id
-        String tripId = mProviderConfig.mTripIDMap.get(route_id, serviceID);
+    /**
+     * @return the GTFS stop_id of the stop of an arrival, the Syncromatics stop number or else its id, or null if
+     * neither is in the GTFS
+     */
+    private static String toGtfsStopId(GtfsStaticIndex index, SyncromaticsArrival arrival) {
+        if (arrival.mStopNumber != null && index.findStop(arrival.mStopNumber) != GtfsStaticIndex.NONE) {
+            return arrival.mStopNumber;
+        }
+        if (arrival.mStopId != null && index.findStop(arrival.mStopId) != GtfsStaticIndex.NONE) {
+            return arrival.mStopId;
+        }
+        return null;
+    }
+
+    /**
+     * Wait for the arrival downloads until the deadline, cancelling those that haven't finished by then. A failed
+     * download only leaves the vehicle with its older predictions.
+     */
+    private void awaitArrivalDownloads(List<Future<?>> downloads, long deadline) throws InterruptedException {
+        for (Future<?> download : downloads) {
+            try {
+                download.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                download.cancel(true);
+            } catch (ExecutionException ex) {
+                mLog.warn("Error downloading arrivals", ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Download the Syncromatics route map
+     */
+    private void downloadRouteMap() throws IOException {
+        try (InputStream in = mHttpClient.get(mRoutesUrl, mTrafficLog)) {
+            mProviderConfig.generatesRouteMap(in);
+        }
+    }
 
-        if (tripId == null || tripId.equals("")) {
-            mLog.error("Cannot find trip_id for Route " + route_id + " and service_id " + serviceID);
+    /**
+     * Download the Syncromatics route map again, after it was restored from the snapshot
+     */
+    private void refreshRouteMap() {
+        try {
+            downloadRouteMap();
+            mSnapshotStore.saveConfig(mProviderConfig);
+        } catch (IOException ex) {
+            mLog.warn("Error refreshing the route map, keeping the one from the snapshot", ex);
         }
+    }
 
+    /**
+     * Save the published feed to the snapshot store in the background, if it changed since it was last saved. If
+     * the previous one is still waiting to be saved, it is replaced by this one.
+     */
+    private void saveFeedSnapshot() {
+        if (mSnapshotStore == null) {
+            return;
+        }
+        FeedSnapshot snapshot = mVehiclePositionsSink.getSnapshot();
+        if (snapshot.getIncrementalIndex() != mSavedFeedIndex) {
+            mSavedFeedIndex = snapshot.getIncrementalIndex();
+            if (mPendingFeedSnapshot.getAndSet(snapshot) == null) {
+                mSnapshotExecutor.execute(this::writeFeedSnapshot);
+            }
+        }
+    }
+
+    private void writeFeedSnapshot() {
+        FeedSnapshot snapshot = mPendingFeedSnapshot.getAndSet(null);
+        if (snapshot != null) {
+            mSnapshotStore.saveFeed(snapshot);
+        }
+    }
+
+    /**
+     * @return whether the GTFS calendar has a service_id running today
+     */
+    private boolean hasServiceToday() {
+        return mServiceDay.hasService();
+    }
+
+    /**
+     * Method to find trip_id of the given route today, from the service day built at midnight
+     */
+    private String findTripID(int route, String route_id) {
+        String tripId = mServiceDay.getTripId(route);
+        if (tripId == null) {
+            mLog.error("Cannot find trip_id for Route " + route_id + " and service_ids "
+                    + mServiceDay.getActiveServiceIds() + " on " + mServiceDay.getDate());
+        }
         return tripId;
     }
 
+    private void updateServiceDay(LocalDate date) {
+        mServiceDay = mProviderConfig.mIndex.getServiceDay(date);
+        mLog.info("Services on " + date + ": " + mServiceDay.getActiveServiceIds());
+    }
+
+    /**
+     * Update the service day at the next midnight, on the refresh thread so it happens between cycles
+     */
+    private void scheduleServiceDayUpdate() {
+        ZonedDateTime now = ZonedDateTime.now();
+        ZonedDateTime midnight = now.toLocalDate().plusDays(1).atStartOfDay(now.getZone());
+        try {
+            mExecutor.schedule(() -> {
+                // The date rather than now(), as the executor may run the task slightly early
+                updateServiceDay(midnight.toLocalDate());
+                scheduleServiceDayUpdate();
+            }, Duration.between(now, midnight).toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Shut down
+        }
+    }
+
+    /**
+     * The vehicle position and trip update entities of a vehicle along with the data they were built from, so
+     * that they can be handed out again as long as that data stays the same
+     */
+    private static class BuiltEntity {
+        private final SyncromaticsVehicle mVehicle;
+        private final String mRouteId;
+        private final String mTripId;
+        /**
+         * Download time of the arrival predictions the trip update was built from, 0 if there were none
+         */
+        private final long mArrivalsTime;
+        private final FeedEntity mEntity;
+        /**
+         * Null if there was nothing to predict for the vehicle
+         */
+        private final FeedEntity mTripUpdate;
+
+        BuiltEntity(SyncromaticsVehicle vehicle, String routeId, String tripId, long arrivalsTime,
+                    FeedEntity entity, FeedEntity tripUpdate) {
+            mVehicle = vehicle;
+            mRouteId = routeId;
+            mTripId = tripId;
+            mArrivalsTime = arrivalsTime;
+            mEntity = entity;
+            mTripUpdate = tripUpdate;
+        }
+
+        boolean matches(SyncromaticsVehicle vehicle, String routeId, String tripId, long arrivalsTime) {
+            return mVehicle.equals(vehicle) && Objects.equals(mRouteId, routeId) && Objects.equals(mTripId, tripId)
+                    && mArrivalsTime == arrivalsTime;
+        }
+    }
+
+    /**
+     * Task that downloads the vehicles of a single route, run on the fetch executor so that all routes
+     * are requested concurrently.
+     */
+    private class RouteDownloadTask implements Callable<List<SyncromaticsVehicle>> {
+        private final int mRoute;
+        private final String mRouteId;
+        private final URL mUrl;
+        /**
+         * Time the route must be downloaded by, in milliseconds since the epoch
+         */
+        private final long mDeadline;
+
+        RouteDownloadTask(int route, String routeId, URL url, long deadline) {
+            mRoute = route;
+            mRouteId = routeId;
+            mUrl = url;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public List<SyncromaticsVehicle> call() throws IOException {
+            long start = System.nanoTime();
+            AtomicLong bytes = new AtomicLong();
+            List<SyncromaticsVehicle> vehicles = null;
+            boolean failed = true;
+            try {
+                vehicles = mRouteId.equals("C") ? downloadVehiclesRouteC(mUrl, bytes, mDeadline)
+                        : downloadVehicles(mUrl, bytes);
+                failed = false;
+                return vehicles;
+            } finally {
+                mMetrics.recordRouteDownload(mRouteId, System.nanoTime() - start, bytes.get(),
+                        !failed && vehicles == null, failed);
+            }
+        }
+    }
+
+    /**
+     * Task that looks up the pattern name of a single Route C vehicle. These run on their own executor, as
+     * the route download waiting for them already occupies a thread of the fetch executor.
+     */
+    private class PatternLookupTask implements Callable<String> {
+        private final String mVehicleId;
+
+        PatternLookupTask(String vehicleId) {
+            mVehicleId = vehicleId;
+        }
+
+        @Override
+        public String call() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return downloadPatternName(mVehicleId);
+            } finally {
+                mMetrics.recordPatternLookup(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Task that downloads the arrival predictions of a single vehicle into the arrival cache, on the arrivals
+     * executor
+     */
+    private class ArrivalsDownloadTask implements Callable<Void> {
+        private final String mVehicleId;
+
+        ArrivalsDownloadTask(String vehicleId) {
+            mVehicleId = vehicleId;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            long start = System.nanoTime();
+            try {
+                downloadArrivals(mVehicleId);
+                return null;
+            } finally {
+                mMetrics.recordArrivalsDownload(System.nanoTime() - start);
+            }
+        }
+    }
+
     /**
      * Task that will download new vehicle data from the remote data source when
      * executed.
      */
-    private class VehiclesRefreshTask implements Runnable {
+    private class VehiclesRefreshTask implements AdaptiveRefreshScheduler.RefreshCycle {
         @Override
-        public void run() {
+        public AdaptiveRefreshScheduler.RefreshOutcome refresh() throws InterruptedException {
+            if (mGtfsReloader != null) {
+                // Between cycles, so that a cycle never mixes the old and the new GTFS
+                GtfsReloader.Reloaded reloaded = mGtfsReloader.takeReloaded();
+                if (reloaded != null) {
+                    mProviderConfig.mIndex = reloaded.mIndex;
+                    mTripMatcher = reloaded.mTripMatcher;
+                    // Built entities refer to trips of the old index
+                    mBuiltEntities = new HashMap<>();
+                    updateServiceDay(mServiceDay.getDate());
+                    mLog.info("Switched to the reloaded GTFS");
+                    if (mSnapshotStore != null) {
+                        mSnapshotStore.saveConfig(mProviderConfig);
+                    }
+                }
+            }
+            mLog.info("Refreshing vehicles...");
+            long start = System.nanoTime();
+            boolean failed = true;
             try {
-                mLog.info("Refreshing vehicles...");
-                refreshTripVehicle();
-            } catch (Exception ex) {
-                mLog.warn("Error in vehicle refresh task", ex);
+                AdaptiveRefreshScheduler.RefreshOutcome outcome = refreshTripVehicle();
+                failed = false;
+                return outcome;
+            } finally {
+                mMetrics.recordRefresh(System.nanoTime() - start, failed);
             }
         }
     }
@@ -16,8 +16,8 @@
 package edu.usf.cutr.gtfs_realtime.bullrunner;
 
 import com.google.inject.Guice;
-import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -32,47 +32,52 @@ import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
 import org.onebusaway.guice.jsr250.LifecycleService;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.function.Function;
 
 public class GtfsRealtimeTripUpdatesProducerDemoMain {
     private static final String ARG_TRIP_UPDATES_PATH = "tripUpdatesPath";
     private static final String ARG_TRIP_UPDATES_URL = "tripUpdatesUrl";
     private static final String ARG_VEHICLE_POSITIONS_PATH = "vehiclePositionsPath";
     private static final String ARG_VEHICLE_POSITIONS_URL = "vehiclePositionsUrl";
-    private GtfsRealtimeProviderImpl _provider;
-    private LifecycleService _lifecycleService;
-    private GtfsRealtimeSource _tripUpdates;
-    private GtfsRealtimeSource _vehiclePositions;
+    private static final String ARG_VEHICLE_POSITIONS_PUSH_URL = "vehiclePositionsPushUrl";
+    private static final String ARG_FETCH_CONCURRENCY = "fetchConcurrency";
+    private static final String ARG_ROUTE_DEADLINE = "routeDeadline";
+    private static final String ARG_ARRIVALS_PER_REFRESH = "arrivalsPerRefresh";
+    private static final String ARG_GTFS_PATH = "gtfsPath";
+    private static final String ARG_GTFS_RELOAD_INTERVAL = "gtfsReloadInterval";
+    private static final String ARG_SNAPSHOT_PATH = "snapshotPath";
+    private static final String ARG_METRICS_URL = "metricsUrl";
+    private static final String ARG_RECORD_PATH = "recordPath";
+    private static final String ARG_REPLAY_PATH = "replayPath";
+    private static final String ARG_REPLAY_SPEED = "replaySpeed";
+    private static final String ARG_SYNCROMATICS_URL = "syncromaticsUrl";
+    private static final String ARG_ROUTES_URL = "routesUrl";
+    private static final String ARG_KEY_PATH = "keyPath";
+    private static final String ARG_AGENCIES_PATH = "agenciesPath";
+    private static final String ARG_VIRTUAL_THREADS = "virtualThreads";
+
+    /**
+     * Property of the agencies file listing the ids of the agencies, comma-separated
+     */
+    private static final String PROPERTY_AGENCIES = "agencies";
+
+    private static final String DEFAULT_SYNCROMATICS_URL = "http://api.syncromatics.com/portal/";
+    private static final int DEFAULT_FETCH_CONCURRENCY = 4;
 
     public static void main(String[] args) throws Exception {
         GtfsRealtimeTripUpdatesProducerDemoMain m = new GtfsRealtimeTripUpdatesProducerDemoMain();
         m.run(args);
     }
 
-    @Inject
-    public void setVehiclePositionsSource(@VehiclePositions GtfsRealtimeSource vehiclePositionsSource) {
-        _vehiclePositions = vehiclePositionsSource;
-    }
-
-
-    @Inject
-    public void setTripUpdatesSource(@TripUpdates GtfsRealtimeSource tripUpdatesSource) {
-        _tripUpdates = tripUpdatesSource;
-    }
-
-    @Inject
-    public void setProvider(GtfsRealtimeProviderImpl provider) {
-        _provider = provider;
-    }
-
-
-    @Inject
-    public void setLifecycleService(LifecycleService lifecycleService) {
-        _lifecycleService = lifecycleService;
-    }
-
     public void run(String[] args) throws Exception {
 
         if (args.length == 0 || CommandLineInterfaceLibrary.wantsHelp(args)) {
@@ -85,45 +90,151 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
         Parser parser = new GnuParser();
         CommandLine cli = parser.parse(options, args);
 
+        boolean virtualThreads = cli.hasOption(ARG_VIRTUAL_THREADS);
+        if (!cli.hasOption(ARG_AGENCIES_PATH)) {
+            startAgency(null, cli::getOptionValue,
+                    new SharedPool(getMaxConnections(cli::getOptionValue), virtualThreads));
+            return;
+        }
+
+        // Each agency is configured by the same options as on the command line, prefixed with its id
+        Properties agencies = new Properties();
+        try (InputStream in = new FileInputStream(cli.getOptionValue(ARG_AGENCIES_PATH))) {
+            agencies.load(in);
+        }
+        List<String> agencyIds = new ArrayList<>();
+        for (String agencyId : agencies.getProperty(PROPERTY_AGENCIES, "").split(",")) {
+            if (!agencyId.trim().isEmpty()) {
+                agencyIds.add(agencyId.trim());
+            }
+        }
+        if (agencyIds.isEmpty()) {
+            throw new IllegalArgumentException("No agencies listed in the " + PROPERTY_AGENCIES + " property of "
+                    + cli.getOptionValue(ARG_AGENCIES_PATH));
+        }
+        int maxConnections = 0;
+        for (String agencyId : agencyIds) {
+            maxConnections += getMaxConnections(arg -> agencies.getProperty(agencyId + "." + arg));
+        }
+        SharedPool sharedPool = new SharedPool(maxConnections, virtualThreads);
+        for (String agencyId : agencyIds) {
+            startAgency(agencyId, arg -> agencies.getProperty(agencyId + "." + arg), sharedPool);
+        }
+    }
+
+    /**
+     * @return the number of connections an agency may have open at once: route downloads, Route C pattern lookups
+     * and arrival downloads may each have up to fetchConcurrency requests in flight
+     */
+    private static int getMaxConnections(Function<String, String> args) {
+        String fetchConcurrency = args.apply(ARG_FETCH_CONCURRENCY);
+        return 3 * (fetchConcurrency == null ? DEFAULT_FETCH_CONCURRENCY : Integer.parseInt(fetchConcurrency));
+    }
+
+    /**
+     * Create the injector of an agency, with its own provider, config, exporters and endpoints, configure them
+     * and start them
+     *
+     * @param agencyId   id of the agency, null when serving a single agency from the command line
+     * @param args       value of each option for the agency, null when it isn't set
+     * @param sharedPool HTTP client and threads shared with the other agencies
+     */
+    private void startAgency(String agencyId, Function<String, String> args, SharedPool sharedPool)
+            throws IOException {
         Set<Module> modules = new HashSet<Module>();
         GtfsRealtimeTripUpdatesProducerDemoModule
                 .addModuleAndDependencies(modules);
+        modules.add(binder -> binder.bind(SharedPool.class).toInstance(sharedPool));
 
         Injector injector = Guice.createInjector(modules);
-        injector.injectMembers(this);
+        GtfsRealtimeProviderImpl provider = injector.getInstance(GtfsRealtimeProviderImpl.class);
+        GtfsRealtimeSource tripUpdates = injector.getInstance(
+                Key.get(GtfsRealtimeSource.class, TripUpdates.class));
+        BullRunnerGtfsRealtimeExporter vehiclePositions = injector.getInstance(
+                Key.get(BullRunnerGtfsRealtimeExporter.class, VehiclePositions.class));
+        if (agencyId != null) {
+            injector.getInstance(RefreshMetrics.class).setAgencyId(agencyId);
+        }
 
-        _provider.setUrl(new URL("http://api.syncromatics.com/portal/"));
-        _provider.setKey();
+        String syncromaticsUrl = args.apply(ARG_SYNCROMATICS_URL);
+        provider.setUrl(new URL(syncromaticsUrl != null ? syncromaticsUrl : DEFAULT_SYNCROMATICS_URL));
+        if (args.apply(ARG_ROUTES_URL) != null) {
+            provider.setRoutesUrl(new URL(args.apply(ARG_ROUTES_URL)));
+        }
+        if (args.apply(ARG_REPLAY_PATH) != null) {
+            provider.setReplayPath(new File(args.apply(ARG_REPLAY_PATH)));
+            if (args.apply(ARG_REPLAY_SPEED) != null) {
+                provider.setReplaySpeed(Double.parseDouble(args.apply(ARG_REPLAY_SPEED)));
+            }
+        } else if (args.apply(ARG_KEY_PATH) != null) {
+            provider.setKey(new File(args.apply(ARG_KEY_PATH)));
+        } else {
+            provider.setKey();
+        }
+        if (args.apply(ARG_RECORD_PATH) != null) {
+            provider.setRecordPath(new File(args.apply(ARG_RECORD_PATH)));
+        }
+        if (args.apply(ARG_FETCH_CONCURRENCY) != null) {
+            provider.setFetchConcurrency(Integer.parseInt(args.apply(ARG_FETCH_CONCURRENCY)));
+        }
+        if (args.apply(ARG_ROUTE_DEADLINE) != null) {
+            provider.setRouteDeadline(Integer.parseInt(args.apply(ARG_ROUTE_DEADLINE)));
+        }
+        if (args.apply(ARG_ARRIVALS_PER_REFRESH) != null) {
+            provider.setArrivalsPerRefresh(Integer.parseInt(args.apply(ARG_ARRIVALS_PER_REFRESH)));
+        }
+        if (args.apply(ARG_GTFS_PATH) != null) {
+            provider.setGtfsPath(new File(args.apply(ARG_GTFS_PATH)));
+        }
+        if (args.apply(ARG_GTFS_RELOAD_INTERVAL) != null) {
+            provider.setGtfsReloadInterval(Integer.parseInt(args.apply(ARG_GTFS_RELOAD_INTERVAL)));
+        }
+        if (args.apply(ARG_SNAPSHOT_PATH) != null) {
+            provider.setSnapshotPath(new File(args.apply(ARG_SNAPSHOT_PATH)));
+        }
 
-        if (cli.hasOption(ARG_TRIP_UPDATES_URL)) {
-            URL url = new URL(cli.getOptionValue(ARG_TRIP_UPDATES_URL));
+        if (args.apply(ARG_TRIP_UPDATES_URL) != null) {
+            URL url = new URL(args.apply(ARG_TRIP_UPDATES_URL));
             GtfsRealtimeServlet servlet = injector.getInstance(GtfsRealtimeServlet.class);
-            servlet.setSource(_tripUpdates);
+            servlet.setSource(tripUpdates);
             servlet.setUrl(url);
         }
-        if (cli.hasOption(ARG_TRIP_UPDATES_PATH)) {
-            File path = new File(cli.getOptionValue(ARG_TRIP_UPDATES_PATH));
+        if (args.apply(ARG_TRIP_UPDATES_PATH) != null) {
+            File path = new File(args.apply(ARG_TRIP_UPDATES_PATH));
 
             GtfsRealtimeFileWriter writer = injector.getInstance(GtfsRealtimeFileWriter.class);
-            writer.setSource(_tripUpdates);
+            writer.setSource(tripUpdates);
             writer.setPath(path);
         }
 
-        if (cli.hasOption(ARG_VEHICLE_POSITIONS_URL)) {
-            URL url = new URL(cli.getOptionValue(ARG_VEHICLE_POSITIONS_URL));
+        if (args.apply(ARG_VEHICLE_POSITIONS_URL) != null) {
+            URL url = new URL(args.apply(ARG_VEHICLE_POSITIONS_URL));
 
-            GtfsRealtimeServlet servlet = injector.getInstance(GtfsRealtimeServlet.class);
-            servlet.setSource(_vehiclePositions);
+            BullRunnerGtfsRealtimeServlet servlet = injector.getInstance(BullRunnerGtfsRealtimeServlet.class);
+            servlet.setSource(vehiclePositions);
             servlet.setUrl(url);
         }
-        if (cli.hasOption(ARG_VEHICLE_POSITIONS_PATH)) {
-            File path = new File(cli.getOptionValue(ARG_VEHICLE_POSITIONS_PATH));
-            GtfsRealtimeFileWriter writer = injector.getInstance(GtfsRealtimeFileWriter.class);
-            writer.setSource(_vehiclePositions);
+        if (args.apply(ARG_VEHICLE_POSITIONS_PUSH_URL) != null) {
+            URL url = new URL(args.apply(ARG_VEHICLE_POSITIONS_PUSH_URL));
+
+            GtfsRealtimeNioServer server = injector.getInstance(GtfsRealtimeNioServer.class);
+            server.setSource(vehiclePositions);
+            server.setUrl(url);
+        }
+        if (args.apply(ARG_VEHICLE_POSITIONS_PATH) != null) {
+            File path = new File(args.apply(ARG_VEHICLE_POSITIONS_PATH));
+            BullRunnerGtfsRealtimeFileWriter writer = injector.getInstance(BullRunnerGtfsRealtimeFileWriter.class);
+            writer.setSource(vehiclePositions);
             writer.setPath(path);
         }
 
-        _lifecycleService.start();
+        if (args.apply(ARG_METRICS_URL) != null) {
+            URL url = new URL(args.apply(ARG_METRICS_URL));
+            MetricsHttpServer server = injector.getInstance(MetricsHttpServer.class);
+            server.setUrl(url);
+        }
+
+        injector.getInstance(LifecycleService.class).start();
     }
 
     private void printUsage() {
@@ -137,6 +248,38 @@ public class GtfsRealtimeTripUpdatesProducerDemoMain {
                 "vehicle positions path");
         options.addOption(ARG_VEHICLE_POSITIONS_URL, true,
                 "vehicle positions url");
+        options.addOption(ARG_VEHICLE_POSITIONS_PUSH_URL, true,
+                "vehicle positions long-poll / streaming url");
+        options.addOption(ARG_FETCH_CONCURRENCY, true,
+                "maximum number of concurrent route downloads");
+        options.addOption(ARG_ROUTE_DEADLINE, true,
+                "how long a refresh cycle waits for the route downloads, in seconds");
+        options.addOption(ARG_ARRIVALS_PER_REFRESH, true,
+                "maximum number of vehicles whose arrivals are downloaded per refresh");
+        options.addOption(ARG_GTFS_PATH, true,
+                "GTFS zip file or directory");
+        options.addOption(ARG_GTFS_RELOAD_INTERVAL, true,
+                "how often the GTFS is checked for changes, in seconds");
+        options.addOption(ARG_SNAPSHOT_PATH, true,
+                "directory for the warm start snapshots");
+        options.addOption(ARG_METRICS_URL, true,
+                "refresh metrics url");
+        options.addOption(ARG_RECORD_PATH, true,
+                "file to record the Syncromatics responses to");
+        options.addOption(ARG_REPLAY_PATH, true,
+                "file of recorded Syncromatics responses to replay instead of calling the API");
+        options.addOption(ARG_REPLAY_SPEED, true,
+                "how many times faster than real time the responses are replayed");
+        options.addOption(ARG_SYNCROMATICS_URL, true,
+                "Syncromatics API base url");
+        options.addOption(ARG_ROUTES_URL, true,
+                "Syncromatics route configuration url");
+        options.addOption(ARG_KEY_PATH, true,
+                "file holding the Syncromatics API key");
+        options.addOption(ARG_AGENCIES_PATH, true,
+                "properties file configuring several agencies to serve");
+        options.addOption(ARG_VIRTUAL_THREADS, false,
+                "run the upstream requests on virtual threads (Java 21 or later)");
 
     }
 }
@@ -19,9 +19,11 @@ import java.util.Set;
 
 import org.onebusaway.guice.jsr250.JSR250Module;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporterModule;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
+import com.google.inject.Singleton;
 
 public class GtfsRealtimeTripUpdatesProducerDemoModule extends AbstractModule {
 
@@ -34,6 +36,9 @@ public class GtfsRealtimeTripUpdatesProducerDemoModule extends AbstractModule {
   @Override
   protected void configure() {
     bind(GtfsRealtimeProviderImpl.class);    
+    // Vehicle positions are published through our own exporter, which keeps the serialized feed around
+    bind(BullRunnerGtfsRealtimeExporter.class).annotatedWith(VehiclePositions.class).to(
+        BullRunnerGtfsRealtimeExporter.class).in(Singleton.class);
   }
 
   /**
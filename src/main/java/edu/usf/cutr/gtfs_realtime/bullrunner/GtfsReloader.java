@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Watches the GTFS directory or zip file for changes, and reads a new static GTFS index in the background when
+ * it changes, so that a new schedule doesn't need a restart.
+ * <p>
+ * The GTFS is polled rather than watched with a WatchService, as a zip file is usually replaced by copying it
+ * over the old one: a change is only loaded once the files have stayed the same for a whole poll interval, so
+ * half-written files aren't read. The new index isn't installed here but handed over through takeReloaded(),
+ * which the refresh cycle calls before it starts, so a cycle only ever sees one index. Its TripMatcher is built
+ * here too, so that building the spatial index of the new GTFS doesn't hold up a refresh cycle either.
+ * If the new GTFS can't be loaded, the current index is kept and the load is tried again at the next check.
+ */
+final class GtfsReloader {
+
+    private static final Logger mLog = LoggerFactory.getLogger(GtfsReloader.class);
+
+    /**
+     * mLoadedVersion until a version has been loaded
+     */
+    private static final long NOT_LOADED = Long.MIN_VALUE;
+
+    /**
+     * A reloaded index, with the TripMatcher built on it
+     */
+    static final class Reloaded {
+        final GtfsStaticIndex mIndex;
+        final TripMatcher mTripMatcher;
+
+        Reloaded(GtfsStaticIndex index, TripMatcher tripMatcher) {
+            mIndex = index;
+            mTripMatcher = tripMatcher;
+        }
+    }
+
+    private final BullRunnerConfigExtract mConfig;
+    private final long mIntervalMs;
+
+    /**
+     * Index read since the last call to takeReloaded(), if any
+     */
+    private final AtomicReference<Reloaded> mReloaded = new AtomicReference<>();
+
+    private final ScheduledExecutorService mExecutor;
+
+    // Only used on the executor thread
+    private long mLoadedVersion;
+    private long mLastVersion;
+
+    /**
+     * @param config     config whose GTFS path is watched and read, findPaths() must have been called
+     * @param intervalMs how often the GTFS is checked for changes
+     * @param executor   runs the checks and the reloads, shut down by stop()
+     */
+    GtfsReloader(BullRunnerConfigExtract config, long intervalMs, ScheduledExecutorService executor) {
+        mConfig = config;
+        mIntervalMs = intervalMs;
+        mExecutor = executor;
+    }
+
+    /**
+     * Start watching for changes made from now on
+     *
+     * @param loaded whether the GTFS has been loaded in its current version, if not it is loaded at the first check
+     */
+    void start(boolean loaded) {
+        mLastVersion = mConfig.getGtfsVersion();
+        mLoadedVersion = loaded ? mLastVersion : NOT_LOADED;
+        mExecutor.scheduleWithFixedDelay(this::check, mIntervalMs, mIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the index read since the last call and its TripMatcher, or null if the GTFS hasn't changed since
+     */
+    Reloaded takeReloaded() {
+        return mReloaded.getAndSet(null);
+    }
+
+    private void check() {
+        long version = mConfig.getGtfsVersion();
+        boolean stable = version == mLastVersion;
+        mLastVersion = version;
+        if (!stable || version == mLoadedVersion) {
+            return;
+        }
+        mLog.info("GTFS changed, reloading it");
+        try {
+            long start = System.nanoTime();
+            GtfsStaticIndex index = mConfig.readIndex();
+            mReloaded.set(new Reloaded(index, new TripMatcher(index)));
+            // Only once loaded, a version that fails is tried again at the next check
+            mLoadedVersion = version;
+            mLog.info("GTFS reloaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: "
+                    + index.getTripCount() + " trips, " + index.getStopTimeCount() + " stop times");
+        } catch (Exception ex) {
+            mLog.warn("Error reloading the GTFS, keeping the current one", ex);
+        }
+    }
+}
@@ -0,0 +1,1098 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Immutable index of the static GTFS data used to build the realtime feed, built once at startup.
+ * <p>
+ * Route, service, trip, stop and shape ids are dictionary-encoded (see StringDictionary), and everything else is
+ * kept in primitive arrays indexed by those codes: the calendar of each service, the position of each stop, the
+ * route, service and shape of each trip, the frequencies of the frequency-based trips, the points of all shapes
+ * and the stop times of all trips in flat, shape- and trip-ordered tables.
+ * Times are stored as seconds after midnight, and dates as yyyymmdd ints.
+ * <p>
+ * The index can be written to a binary snapshot and read back from it (see SnapshotStore), which is much faster
+ * than parsing the GTFS again.
+ */
+final class GtfsStaticIndex {
+
+    static final int NONE = -1;
+
+    /**
+     * calendar_dates.txt exception_type of a service added on a date, the other one (2) removes it
+     */
+    static final int EXCEPTION_ADDED = 1;
+
+    private final StringDictionary mRouteIds;
+    private final StringDictionary mServiceIds;
+    private final StringDictionary mTripIds;
+    private final StringDictionary mStopIds;
+    private final StringDictionary mShapeIds;
+
+    /**
+     * Syncromatics route id of each route, null for routes that aren't in routes.txt
+     */
+    private final String[] mExternalRouteIds;
+
+    /**
+     * calendar.txt of each service: the days of the week it runs on (bit 0 = Sunday) between its start and end
+     * dates, both included. Services only defined in calendar_dates.txt run on no day of the week.
+     */
+    private final int[] mServiceDaysOfWeek;
+    private final int[] mServiceStartDates;
+    private final int[] mServiceEndDates;
+
+    /**
+     * calendar_dates.txt, as parallel lists of service, date and exception type
+     */
+    private final int[] mExceptionServices;
+    private final int[] mExceptionDates;
+    private final int[] mExceptionTypes;
+
+    /**
+     * calendar_dates.txt exception type of each (service, date)
+     */
+    private final IntBiHashMap mServiceExceptions;
+
+    private final int[] mTripRoutes;
+    private final int[] mTripServices;
+    private final int[] mTripStartTimes;
+
+    /**
+     * Shape of each trip, NONE for trips without a shape_id
+     */
+    private final int[] mTripShapes;
+
+    /**
+     * Position of each stop, NaN for stops that aren't in stops.txt
+     */
+    private final double[] mStopLats;
+    private final double[] mStopLons;
+
+    /**
+     * The frequencies.txt rows of trip t are at [mFrequenciesStart[t], mFrequenciesStart[t + 1]) in the tables
+     * below, in file order
+     */
+    private final int[] mFrequenciesStart;
+    private final int[] mFrequencyStartTimes;
+    private final int[] mFrequencyEndTimes;
+    private final int[] mFrequencyHeadways;
+
+    /**
+     * The points of shape s are at [mShapePointsStart[s], mShapePointsStart[s + 1]) in the tables below, in
+     * shape_pt_sequence order. Shapes that are only referenced by trips have no points.
+     */
+    private final int[] mShapePointsStart;
+    private final double[] mShapePointLats;
+    private final double[] mShapePointLons;
+
+    /**
+     * Trip of each (route, service)
+     */
+    private final IntBiHashMap mTripsByRouteService;
+
+    /**
+     * The stop times of trip t are at [mStopTimesStart[t], mStopTimesStart[t + 1]) in the tables below,
+     * in stop_sequence order
+     */
+    private final int[] mStopTimesStart;
+    private final int[] mStopTimeStops;
+    private final int[] mStopTimeSequences;
+    private final int[] mStopTimeArrivals;
+    private final int[] mStopTimeDepartures;
+
+    /**
+     * stop_sequence of the first visit of each (trip, stop)
+     */
+    private final IntBiHashMap mStopSequences;
+
+    private GtfsStaticIndex(Builder builder) {
+        mRouteIds = builder.mRouteIds.build();
+        mServiceIds = builder.mServiceIds.build();
+        mTripIds = builder.mTripIds.build();
+        mStopIds = builder.mStopIds.build();
+        mShapeIds = builder.mShapeIds.build();
+        int routeCount = mRouteIds.size();
+        int tripCount = mTripIds.size();
+
+        mExternalRouteIds = Arrays.copyOf(builder.mExternalRouteIds, routeCount);
+        int serviceCount = mServiceIds.size();
+        mServiceDaysOfWeek = builder.mServiceDaysOfWeek.toArray(serviceCount, 0);
+        mServiceStartDates = builder.mServiceStartDates.toArray(serviceCount, NONE);
+        mServiceEndDates = builder.mServiceEndDates.toArray(serviceCount, NONE);
+        int exceptionCount = builder.mExceptionServices.size();
+        mExceptionServices = builder.mExceptionServices.toArray(exceptionCount, NONE);
+        mExceptionDates = builder.mExceptionDates.toArray(exceptionCount, NONE);
+        mExceptionTypes = builder.mExceptionTypes.toArray(exceptionCount, NONE);
+        mServiceExceptions = indexExceptions(mExceptionServices, mExceptionDates, mExceptionTypes);
+        mTripRoutes = builder.mTripRoutes.toArray(tripCount, NONE);
+        mTripServices = builder.mTripServices.toArray(tripCount, NONE);
+        mTripStartTimes = builder.mTripStartTimes.toArray(tripCount, NONE);
+        mTripShapes = builder.mTripShapes.toArray(tripCount, NONE);
+        int stopCount = mStopIds.size();
+        mStopLats = builder.mStopLats.toArray(stopCount);
+        mStopLons = builder.mStopLons.toArray(stopCount);
+
+        // Counting sort of the frequencies by trip, as for the stop times below
+        int frequencyCount = builder.mFrequencyTrips.size();
+        mFrequenciesStart = new int[tripCount + 1];
+        for (int i = 0; i < frequencyCount; i++) {
+            mFrequenciesStart[builder.mFrequencyTrips.get(i) + 1]++;
+        }
+        for (int trip = 0; trip < tripCount; trip++) {
+            mFrequenciesStart[trip + 1] += mFrequenciesStart[trip];
+        }
+        int[] nextFrequency = Arrays.copyOf(mFrequenciesStart, tripCount);
+        mFrequencyStartTimes = new int[frequencyCount];
+        mFrequencyEndTimes = new int[frequencyCount];
+        mFrequencyHeadways = new int[frequencyCount];
+        for (int i = 0; i < frequencyCount; i++) {
+            int j = nextFrequency[builder.mFrequencyTrips.get(i)]++;
+            mFrequencyStartTimes[j] = builder.mFrequencyStartTimes.get(i);
+            mFrequencyEndTimes[j] = builder.mFrequencyEndTimes.get(i);
+            mFrequencyHeadways[j] = builder.mFrequencyHeadways.get(i);
+        }
+
+        // Counting sort of the shape points by shape, then by shape_pt_sequence within each shape
+        int shapeCount = mShapeIds.size();
+        int pointCount = builder.mShapePointShapes.size();
+        mShapePointsStart = new int[shapeCount + 1];
+        for (int i = 0; i < pointCount; i++) {
+            mShapePointsStart[builder.mShapePointShapes.get(i) + 1]++;
+        }
+        for (int shape = 0; shape < shapeCount; shape++) {
+            mShapePointsStart[shape + 1] += mShapePointsStart[shape];
+        }
+        int[] nextPoint = Arrays.copyOf(mShapePointsStart, shapeCount);
+        int[] pointSequences = new int[pointCount];
+        mShapePointLats = new double[pointCount];
+        mShapePointLons = new double[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            int j = nextPoint[builder.mShapePointShapes.get(i)]++;
+            pointSequences[j] = builder.mShapePointSequences.get(i);
+            mShapePointLats[j] = builder.mShapePointLats.get(i);
+            mShapePointLons[j] = builder.mShapePointLons.get(i);
+        }
+        for (int shape = 0; shape < shapeCount; shape++) {
+            sortShapePoints(pointSequences, mShapePointsStart[shape], mShapePointsStart[shape + 1]);
+        }
+
+        mTripsByRouteService = indexTrips(mTripRoutes, mTripServices);
+
+        // Counting sort of the stop times by trip, keeping the file order within a trip
+        int stopTimeCount = builder.mStopTimeTrips.size();
+        mStopTimesStart = new int[tripCount + 1];
+        for (int i = 0; i < stopTimeCount; i++) {
+            mStopTimesStart[builder.mStopTimeTrips.get(i) + 1]++;
+        }
+        for (int trip = 0; trip < tripCount; trip++) {
+            mStopTimesStart[trip + 1] += mStopTimesStart[trip];
+        }
+        int[] next = Arrays.copyOf(mStopTimesStart, tripCount);
+        mStopTimeStops = new int[stopTimeCount];
+        mStopTimeSequences = new int[stopTimeCount];
+        mStopTimeArrivals = new int[stopTimeCount];
+        mStopTimeDepartures = new int[stopTimeCount];
+        for (int i = 0; i < stopTimeCount; i++) {
+            int j = next[builder.mStopTimeTrips.get(i)]++;
+            mStopTimeStops[j] = builder.mStopTimeStops.get(i);
+            mStopTimeSequences[j] = builder.mStopTimeSequences.get(i);
+            mStopTimeArrivals[j] = builder.mStopTimeArrivals.get(i);
+            mStopTimeDepartures[j] = builder.mStopTimeDepartures.get(i);
+        }
+        for (int trip = 0; trip < tripCount; trip++) {
+            sortStopTimes(mStopTimesStart[trip], mStopTimesStart[trip + 1]);
+        }
+        mStopSequences = indexStopSequences(mStopTimesStart, mStopTimeStops, mStopTimeSequences);
+    }
+
+    /**
+     * Read back an index written by writeTo()
+     */
+    private GtfsStaticIndex(ByteBuffer in) {
+        mRouteIds = StringDictionary.of(readStrings(in));
+        mServiceIds = StringDictionary.of(readStrings(in));
+        mTripIds = StringDictionary.of(readStrings(in));
+        mStopIds = StringDictionary.of(readStrings(in));
+        mShapeIds = StringDictionary.of(readStrings(in));
+        mExternalRouteIds = readStrings(in);
+        mServiceDaysOfWeek = readInts(in);
+        mServiceStartDates = readInts(in);
+        mServiceEndDates = readInts(in);
+        mExceptionServices = readInts(in);
+        mExceptionDates = readInts(in);
+        mExceptionTypes = readInts(in);
+        mTripRoutes = readInts(in);
+        mTripServices = readInts(in);
+        mTripStartTimes = readInts(in);
+        mTripShapes = readInts(in);
+        mStopLats = readDoubles(in);
+        mStopLons = readDoubles(in);
+        mFrequenciesStart = readInts(in);
+        mFrequencyStartTimes = readInts(in);
+        mFrequencyEndTimes = readInts(in);
+        mFrequencyHeadways = readInts(in);
+        mShapePointsStart = readInts(in);
+        mShapePointLats = readDoubles(in);
+        mShapePointLons = readDoubles(in);
+        mStopTimesStart = readInts(in);
+        mStopTimeStops = readInts(in);
+        mStopTimeSequences = readInts(in);
+        mStopTimeArrivals = readInts(in);
+        mStopTimeDepartures = readInts(in);
+        if (mExternalRouteIds.length != mRouteIds.size() || mServiceDaysOfWeek.length != mServiceIds.size()
+                || mExceptionDates.length != mExceptionServices.length || mStopLats.length != mStopIds.size()
+                || mFrequenciesStart.length != mTripIds.size() + 1 || mTripRoutes.length != mTripIds.size()
+                || mTripShapes.length != mTripIds.size() || mShapePointsStart.length != mShapeIds.size() + 1
+                || mShapePointLats.length != mShapePointLons.length || mStopTimesStart.length != mTripIds.size() + 1) {
+            throw new IllegalArgumentException("Inconsistent GTFS index snapshot");
+        }
+        // The maps are cheap to rebuild, and their layout is better left out of the snapshot format
+        mServiceExceptions = indexExceptions(mExceptionServices, mExceptionDates, mExceptionTypes);
+        mTripsByRouteService = indexTrips(mTripRoutes, mTripServices);
+        mStopSequences = indexStopSequences(mStopTimesStart, mStopTimeStops, mStopTimeSequences);
+    }
+
+    /**
+     * @return the trip of each (route, service). The last trip of each wins, as it did when trips.txt was
+     * loaded into a map.
+     */
+    private static IntBiHashMap indexTrips(int[] tripRoutes, int[] tripServices) {
+        IntBiHashMap trips = new IntBiHashMap(NONE, tripRoutes.length);
+        for (int trip = 0; trip < tripRoutes.length; trip++) {
+            if (tripRoutes[trip] != NONE && tripServices[trip] != NONE) {
+                trips.put(tripRoutes[trip], tripServices[trip], trip);
+            }
+        }
+        return trips;
+    }
+
+    /**
+     * @return the exception type of each (service, date). The last exception of each wins.
+     */
+    private static IntBiHashMap indexExceptions(int[] services, int[] dates, int[] types) {
+        IntBiHashMap exceptions = new IntBiHashMap(NONE, services.length);
+        for (int i = 0; i < services.length; i++) {
+            exceptions.put(services[i], dates[i], types[i]);
+        }
+        return exceptions;
+    }
+
+    /**
+     * @return the stop_sequence of the first visit of each (trip, stop), from stop times sorted by stop_sequence
+     */
+    private static IntBiHashMap indexStopSequences(int[] stopTimesStart, int[] stops, int[] sequences) {
+        IntBiHashMap stopSequences = new IntBiHashMap(NONE, stops.length);
+        for (int trip = 0; trip + 1 < stopTimesStart.length; trip++) {
+            for (int i = stopTimesStart[trip]; i < stopTimesStart[trip + 1]; i++) {
+                stopSequences.putIfAbsent(trip, stops[i], sequences[i]);
+            }
+        }
+        return stopSequences;
+    }
+
+    /**
+     * Write the index in the format read by readFrom()
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        writeStrings(out, mRouteIds);
+        writeStrings(out, mServiceIds);
+        writeStrings(out, mTripIds);
+        writeStrings(out, mStopIds);
+        writeStrings(out, mShapeIds);
+        writeStrings(out, mExternalRouteIds);
+        writeInts(out, mServiceDaysOfWeek);
+        writeInts(out, mServiceStartDates);
+        writeInts(out, mServiceEndDates);
+        writeInts(out, mExceptionServices);
+        writeInts(out, mExceptionDates);
+        writeInts(out, mExceptionTypes);
+        writeInts(out, mTripRoutes);
+        writeInts(out, mTripServices);
+        writeInts(out, mTripStartTimes);
+        writeInts(out, mTripShapes);
+        writeDoubles(out, mStopLats);
+        writeDoubles(out, mStopLons);
+        writeInts(out, mFrequenciesStart);
+        writeInts(out, mFrequencyStartTimes);
+        writeInts(out, mFrequencyEndTimes);
+        writeInts(out, mFrequencyHeadways);
+        writeInts(out, mShapePointsStart);
+        writeDoubles(out, mShapePointLats);
+        writeDoubles(out, mShapePointLons);
+        writeInts(out, mStopTimesStart);
+        writeInts(out, mStopTimeStops);
+        writeInts(out, mStopTimeSequences);
+        writeInts(out, mStopTimeArrivals);
+        writeInts(out, mStopTimeDepartures);
+    }
+
+    /**
+     * Read an index written by writeTo(), from the position of the buffer, which is moved past it
+     *
+     * @throws IllegalArgumentException if the buffer doesn't hold a valid index
+     */
+    static GtfsStaticIndex readFrom(ByteBuffer in) {
+        try {
+            return new GtfsStaticIndex(in);
+        } catch (RuntimeException ex) {
+            // Truncated or otherwise corrupt, e.g. BufferUnderflowException or NegativeArraySizeException
+            throw new IllegalArgumentException("Invalid GTFS index snapshot", ex);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, StringDictionary dictionary) throws IOException {
+        String[] values = new String[dictionary.size()];
+        for (int code = 0; code < values.length; code++) {
+            values[code] = dictionary.get(code);
+        }
+        writeStrings(out, values);
+    }
+
+    /**
+     * Strings as their UTF-8 byte length (-1 for null) and bytes
+     */
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        String[] values = new String[in.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            int length = in.getInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                values[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readDoubles(ByteBuffer in) {
+        double[] values = new double[in.getInt()];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + 8 * values.length);
+        return values;
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] values = new int[in.getInt()];
+        // Bulk copy straight from the (mapped) buffer
+        IntBuffer ints = in.asIntBuffer();
+        ints.get(values);
+        in.position(in.position() + 4 * values.length);
+        return values;
+    }
+
+    int getRouteCount() {
+        return mRouteIds.size();
+    }
+
+    String getRouteId(int route) {
+        return mRouteIds.get(route);
+    }
+
+    /**
+     * @return the Syncromatics route id of the given route, or null if it isn't in routes.txt
+     */
+    String getExternalRouteId(int route) {
+        return mExternalRouteIds[route];
+    }
+
+    int getServiceCount() {
+        return mServiceIds.size();
+    }
+
+    String getServiceId(int service) {
+        return mServiceIds.get(service);
+    }
+
+    /**
+     * @return whether the given service runs on the given date, from calendar.txt and calendar_dates.txt
+     */
+    boolean isServiceActive(int service, LocalDate date) {
+        int day = toDate(date);
+        int exception = mServiceExceptions.get(service, day);
+        if (exception != NONE) {
+            return exception == EXCEPTION_ADDED;
+        }
+        // DayOfWeek is Monday = 1 to Sunday = 7
+        int dayOfWeek = date.getDayOfWeek().getValue() % 7;
+        return (mServiceDaysOfWeek[service] & (1 << dayOfWeek)) != 0
+                && day >= mServiceStartDates[service] && day <= mServiceEndDates[service];
+    }
+
+    /**
+     * @return the trips and services of the given date, see ServiceDay
+     */
+    ServiceDay getServiceDay(LocalDate date) {
+        return new ServiceDay(this, date);
+    }
+
+    /**
+     * @return the trip of the given route and service codes, or NONE if there is none
+     */
+    int findTrip(int route, int service) {
+        return mTripsByRouteService.get(route, service);
+    }
+
+    String getTripId(int trip) {
+        return mTripIds.get(trip);
+    }
+
+    /**
+     * @return the trip_id of the given route and service_id, or null if there is none
+     */
+    String findTripId(String routeId, String serviceId) {
+        int route = mRouteIds.indexOf(routeId);
+        int service = mServiceIds.indexOf(serviceId);
+        if (route == StringDictionary.NOT_FOUND || service == StringDictionary.NOT_FOUND) {
+            return null;
+        }
+        int trip = mTripsByRouteService.get(route, service);
+        return trip == NONE ? null : mTripIds.get(trip);
+    }
+
+    /**
+     * @return the stop_sequence of the first visit of the given trip to the given stop, or NONE
+     */
+    int getStopSequence(String tripId, String stopId) {
+        int trip = mTripIds.indexOf(tripId);
+        int stop = mStopIds.indexOf(stopId);
+        if (trip == StringDictionary.NOT_FOUND || stop == StringDictionary.NOT_FOUND) {
+            return NONE;
+        }
+        return mStopSequences.get(trip, stop);
+    }
+
+    /**
+     * @return the frequencies.txt start_time of the given trip in seconds after midnight, or NONE
+     */
+    int getStartTime(String tripId) {
+        int trip = mTripIds.indexOf(tripId);
+        return trip == StringDictionary.NOT_FOUND ? NONE : mTripStartTimes[trip];
+    }
+
+    int getTripCount() {
+        return mTripIds.size();
+    }
+
+    /**
+     * @return the code of the given route_id, or NONE if it isn't in the GTFS
+     */
+    int findRoute(String routeId) {
+        int route = mRouteIds.indexOf(routeId);
+        return route == StringDictionary.NOT_FOUND ? NONE : route;
+    }
+
+    int getRouteOfTrip(int trip) {
+        return mTripRoutes[trip];
+    }
+
+    /**
+     * @return the service code of the given trip, or NONE if its service_id has no calendar
+     */
+    int getServiceOfTrip(int trip) {
+        return mTripServices[trip];
+    }
+
+    /**
+     * @return the code of the given stop_id, or NONE if it isn't in the GTFS
+     */
+    int findStop(String stopId) {
+        int stop = mStopIds.indexOf(stopId);
+        return stop == StringDictionary.NOT_FOUND ? NONE : stop;
+    }
+
+    String getStopId(int stop) {
+        return mStopIds.get(stop);
+    }
+
+    /**
+     * @return the latitude of the given stop, NaN if it isn't in stops.txt
+     */
+    double getStopLat(int stop) {
+        return mStopLats[stop];
+    }
+
+    /**
+     * @return the longitude of the given stop, NaN if it isn't in stops.txt
+     */
+    double getStopLon(int stop) {
+        return mStopLons[stop];
+    }
+
+    int getStopCount() {
+        return mStopIds.size();
+    }
+
+    /**
+     * @return the shape code of the given trip, or NONE if it has no shape_id
+     */
+    int getShapeOfTrip(int trip) {
+        return mTripShapes[trip];
+    }
+
+    int getShapeCount() {
+        return mShapeIds.size();
+    }
+
+    String getShapeId(int shape) {
+        return mShapeIds.get(shape);
+    }
+
+    /**
+     * The points of the given shape are at [getShapePointsStart(shape), getShapePointsEnd(shape)), in
+     * shape_pt_sequence order
+     */
+    int getShapePointsStart(int shape) {
+        return mShapePointsStart[shape];
+    }
+
+    int getShapePointsEnd(int shape) {
+        return mShapePointsStart[shape + 1];
+    }
+
+    double getShapePointLat(int point) {
+        return mShapePointLats[point];
+    }
+
+    double getShapePointLon(int point) {
+        return mShapePointLons[point];
+    }
+
+    /**
+     * @return the index of the first stop time of the given trip in the stop time table. The stop times of the
+     * trip run up to getStopTimesEnd(trip), in stop_sequence order.
+     */
+    int getStopTimesStart(int trip) {
+        return mStopTimesStart[trip];
+    }
+
+    int getStopTimesEnd(int trip) {
+        return mStopTimesStart[trip + 1];
+    }
+
+    int getStopTimeStop(int stopTime) {
+        return mStopTimeStops[stopTime];
+    }
+
+    int getStopTimeSequence(int stopTime) {
+        return mStopTimeSequences[stopTime];
+    }
+
+    /**
+     * @return the arrival time of the given stop time in seconds after midnight, NONE if it isn't set
+     */
+    int getStopTimeArrival(int stopTime) {
+        return mStopTimeArrivals[stopTime];
+    }
+
+    /**
+     * @return the departure time of the given stop time in seconds after midnight, NONE if it isn't set
+     */
+    int getStopTimeDeparture(int stopTime) {
+        return mStopTimeDepartures[stopTime];
+    }
+
+    /**
+     * @return the index of the first frequencies.txt row of the given trip. The rows of the trip run up to
+     * getFrequenciesEnd(trip), and there are none for trips that aren't frequency-based.
+     */
+    int getFrequenciesStart(int trip) {
+        return mFrequenciesStart[trip];
+    }
+
+    int getFrequenciesEnd(int trip) {
+        return mFrequenciesStart[trip + 1];
+    }
+
+    int getFrequencyStartTime(int frequency) {
+        return mFrequencyStartTimes[frequency];
+    }
+
+    int getFrequencyEndTime(int frequency) {
+        return mFrequencyEndTimes[frequency];
+    }
+
+    int getFrequencyHeadway(int frequency) {
+        return mFrequencyHeadways[frequency];
+    }
+
+    int getStopTimeCount() {
+        return mStopTimeStops.length;
+    }
+
+    /**
+     * Insertion sort of one trip's stop times by stop_sequence. They are almost always in order already.
+     */
+    private void sortStopTimes(int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int sequence = mStopTimeSequences[i];
+            if (sequence >= mStopTimeSequences[i - 1]) {
+                continue;
+            }
+            int stop = mStopTimeStops[i];
+            int arrival = mStopTimeArrivals[i];
+            int departure = mStopTimeDepartures[i];
+            int j = i;
+            for (; j > from && mStopTimeSequences[j - 1] > sequence; j--) {
+                mStopTimeStops[j] = mStopTimeStops[j - 1];
+                mStopTimeSequences[j] = mStopTimeSequences[j - 1];
+                mStopTimeArrivals[j] = mStopTimeArrivals[j - 1];
+                mStopTimeDepartures[j] = mStopTimeDepartures[j - 1];
+            }
+            mStopTimeStops[j] = stop;
+            mStopTimeSequences[j] = sequence;
+            mStopTimeArrivals[j] = arrival;
+            mStopTimeDepartures[j] = departure;
+        }
+    }
+
+    /**
+     * Insertion sort of one shape's points by shape_pt_sequence. They are almost always in order already.
+     */
+    private void sortShapePoints(int[] sequences, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int sequence = sequences[i];
+            if (sequence >= sequences[i - 1]) {
+                continue;
+            }
+            double lat = mShapePointLats[i];
+            double lon = mShapePointLons[i];
+            int j = i;
+            for (; j > from && sequences[j - 1] > sequence; j--) {
+                sequences[j] = sequences[j - 1];
+                mShapePointLats[j] = mShapePointLats[j - 1];
+                mShapePointLons[j] = mShapePointLons[j - 1];
+            }
+            sequences[j] = sequence;
+            mShapePointLats[j] = lat;
+            mShapePointLons[j] = lon;
+        }
+    }
+
+    /**
+     * @param time seconds after midnight
+     * @return the time as a GTFS time, HH:MM:SS
+     */
+    static String formatTime(int time) {
+        return String.format("%02d:%02d:%02d", time / 3600, time / 60 % 60, time % 60);
+    }
+
+    /**
+     * @return the date as a GTFS date, yyyymmdd
+     */
+    static int toDate(LocalDate date) {
+        return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+
+    /**
+     * @param time a GTFS time, HH:MM:SS (the hours may exceed 24)
+     * @return the time in seconds after midnight, or NONE if it is empty
+     */
+    static int parseTime(CharSequence time) {
+        int length = time.length();
+        if (length == 0) {
+            return NONE;
+        }
+        int seconds = 0;
+        int value = 0;
+        int colons = 0;
+        int digits = 0;
+        for (int i = 0; i < length; i++) {
+            char c = time.charAt(i);
+            if (c == ':') {
+                if (digits == 0 || ++colons > 2) {
+                    throw new IllegalArgumentException("Invalid GTFS time " + time);
+                }
+                seconds = 60 * (seconds + value);
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                value = 10 * value + (c - '0');
+                digits++;
+            } else {
+                throw new IllegalArgumentException("Invalid GTFS time " + time);
+            }
+        }
+        if (colons != 2 || digits == 0) {
+            throw new IllegalArgumentException("Invalid GTFS time " + time);
+        }
+        return seconds + value;
+    }
+
+    /**
+     * Collects the rows of the GTFS files, in any order, until the index is built. Files can be read into
+     * builders of their own, in parallel, and then merged into one.
+     */
+    static final class Builder {
+
+        private final StringDictionary.Builder mRouteIds = new StringDictionary.Builder();
+        private final StringDictionary.Builder mServiceIds = new StringDictionary.Builder();
+        private final StringDictionary.Builder mTripIds = new StringDictionary.Builder();
+        private final StringDictionary.Builder mStopIds = new StringDictionary.Builder();
+        private final StringDictionary.Builder mShapeIds = new StringDictionary.Builder();
+
+        private String[] mExternalRouteIds = new String[16];
+
+        private final IntList mServiceDaysOfWeek = new IntList();
+        private final IntList mServiceStartDates = new IntList();
+        private final IntList mServiceEndDates = new IntList();
+
+        private final IntList mExceptionServices = new IntList();
+        private final IntList mExceptionDates = new IntList();
+        private final IntList mExceptionTypes = new IntList();
+
+        private final IntList mTripRoutes = new IntList();
+        private final IntList mTripServices = new IntList();
+        private final IntList mTripStartTimes = new IntList();
+        private final IntList mTripShapes = new IntList();
+
+        private final DoubleList mStopLats = new DoubleList();
+        private final DoubleList mStopLons = new DoubleList();
+
+        private final IntList mFrequencyTrips = new IntList();
+        private final IntList mFrequencyStartTimes = new IntList();
+        private final IntList mFrequencyEndTimes = new IntList();
+        private final IntList mFrequencyHeadways = new IntList();
+
+        private final IntList mShapePointShapes = new IntList();
+        private final IntList mShapePointSequences = new IntList();
+        private final DoubleList mShapePointLats = new DoubleList();
+        private final DoubleList mShapePointLons = new DoubleList();
+
+        private final IntList mStopTimeTrips = new IntList();
+        private final IntList mStopTimeStops = new IntList();
+        private final IntList mStopTimeSequences = new IntList();
+        private final IntList mStopTimeArrivals = new IntList();
+        private final IntList mStopTimeDepartures = new IntList();
+
+        /**
+         * A route of routes.txt
+         */
+        void addRoute(CharSequence routeId, String externalRouteId) {
+            int route = mRouteIds.add(routeId);
+            if (route >= mExternalRouteIds.length) {
+                mExternalRouteIds = Arrays.copyOf(mExternalRouteIds, Math.max(route + 1, 2 * mExternalRouteIds.length));
+            }
+            mExternalRouteIds[route] = externalRouteId;
+        }
+
+        /**
+         * A service of calendar.txt
+         *
+         * @param daysOfWeek the days of the week it runs on, bit 0 = Sunday to bit 6 = Saturday
+         * @param startDate  first date it runs on, yyyymmdd
+         * @param endDate    last date it runs on, yyyymmdd
+         */
+        void addService(CharSequence serviceId, int daysOfWeek, int startDate, int endDate) {
+            int service = mServiceIds.add(serviceId);
+            mServiceDaysOfWeek.set(service, daysOfWeek, 0);
+            mServiceStartDates.set(service, startDate, NONE);
+            mServiceEndDates.set(service, endDate, NONE);
+        }
+
+        /**
+         * An exception of calendar_dates.txt
+         *
+         * @param date          yyyymmdd
+         * @param exceptionType EXCEPTION_ADDED, or 2 if the service is removed on that date
+         */
+        void addServiceException(CharSequence serviceId, int date, int exceptionType) {
+            mExceptionServices.add(mServiceIds.add(serviceId));
+            mExceptionDates.add(date);
+            mExceptionTypes.add(exceptionType);
+        }
+
+        /**
+         * A trip of trips.txt
+         *
+         * @param shapeId its shape_id, null or empty if it has none
+         */
+        void addTrip(CharSequence routeId, CharSequence serviceId, CharSequence tripId, CharSequence shapeId) {
+            int trip = mTripIds.add(tripId);
+            mTripRoutes.set(trip, mRouteIds.add(routeId), NONE);
+            mTripServices.set(trip, mServiceIds.add(serviceId), NONE);
+            if (shapeId != null && shapeId.length() > 0) {
+                mTripShapes.set(trip, mShapeIds.add(shapeId), NONE);
+            }
+        }
+
+        /**
+         * A stop time of stop_times.txt, with its times in seconds after midnight
+         */
+        void addStopTime(CharSequence tripId, CharSequence stopId, int stopSequence, int arrivalTime,
+                         int departureTime) {
+            mStopTimeTrips.add(mTripIds.add(tripId));
+            mStopTimeStops.add(mStopIds.add(stopId));
+            mStopTimeSequences.add(stopSequence);
+            mStopTimeArrivals.add(arrivalTime);
+            mStopTimeDepartures.add(departureTime);
+        }
+
+        /**
+         * A row of frequencies.txt, with its times in seconds after midnight. Also sets the start time of the
+         * trip, to the one of its last row.
+         */
+        void addFrequency(CharSequence tripId, int startTime, int endTime, int headway) {
+            int trip = mTripIds.add(tripId);
+            mTripStartTimes.set(trip, startTime, NONE);
+            mFrequencyTrips.add(trip);
+            mFrequencyStartTimes.add(startTime);
+            mFrequencyEndTimes.add(endTime);
+            mFrequencyHeadways.add(headway);
+        }
+
+        /**
+         * A stop of stops.txt
+         */
+        void addStop(CharSequence stopId, double lat, double lon) {
+            int stop = mStopIds.add(stopId);
+            mStopLats.set(stop, lat);
+            mStopLons.set(stop, lon);
+        }
+
+        /**
+         * A point of shapes.txt
+         */
+        void addShapePoint(CharSequence shapeId, int sequence, double lat, double lon) {
+            int point = mShapePointShapes.size();
+            mShapePointShapes.add(mShapeIds.add(shapeId));
+            mShapePointSequences.add(sequence);
+            mShapePointLats.set(point, lat);
+            mShapePointLons.set(point, lon);
+        }
+
+        int getStopTimeCount() {
+            return mStopTimeTrips.size();
+        }
+
+        /**
+         * Add the rows collected by another builder to this one, after the rows already here
+         */
+        void merge(Builder other) {
+            int[] routes = remap(other.mRouteIds, mRouteIds);
+            int[] services = remap(other.mServiceIds, mServiceIds);
+            int[] trips = remap(other.mTripIds, mTripIds);
+            int[] stops = remap(other.mStopIds, mStopIds);
+            int[] shapes = remap(other.mShapeIds, mShapeIds);
+
+            for (int route = 0; route < routes.length; route++) {
+                String externalRouteId = route < other.mExternalRouteIds.length ? other.mExternalRouteIds[route] : null;
+                if (externalRouteId != null) {
+                    addRoute(mRouteIds.get(routes[route]), externalRouteId);
+                }
+            }
+            for (int service = 0; service < other.mServiceStartDates.size(); service++) {
+                if (other.mServiceStartDates.get(service) != NONE) {
+                    mServiceDaysOfWeek.set(services[service], other.mServiceDaysOfWeek.get(service), 0);
+                    mServiceStartDates.set(services[service], other.mServiceStartDates.get(service), NONE);
+                    mServiceEndDates.set(services[service], other.mServiceEndDates.get(service), NONE);
+                }
+            }
+            for (int i = 0; i < other.mExceptionServices.size(); i++) {
+                mExceptionServices.add(services[other.mExceptionServices.get(i)]);
+                mExceptionDates.add(other.mExceptionDates.get(i));
+                mExceptionTypes.add(other.mExceptionTypes.get(i));
+            }
+            for (int trip = 0; trip < other.mTripRoutes.size(); trip++) {
+                if (other.mTripRoutes.get(trip) != NONE) {
+                    mTripRoutes.set(trips[trip], routes[other.mTripRoutes.get(trip)], NONE);
+                    mTripServices.set(trips[trip], services[other.mTripServices.get(trip)], NONE);
+                }
+            }
+            for (int trip = 0; trip < other.mTripShapes.size(); trip++) {
+                if (other.mTripShapes.get(trip) != NONE) {
+                    mTripShapes.set(trips[trip], shapes[other.mTripShapes.get(trip)], NONE);
+                }
+            }
+            for (int i = 0; i < other.mShapePointShapes.size(); i++) {
+                int point = mShapePointShapes.size();
+                mShapePointShapes.add(shapes[other.mShapePointShapes.get(i)]);
+                mShapePointSequences.add(other.mShapePointSequences.get(i));
+                mShapePointLats.set(point, other.mShapePointLats.get(i));
+                mShapePointLons.set(point, other.mShapePointLons.get(i));
+            }
+            for (int stop = 0; stop < other.mStopLats.size(); stop++) {
+                if (!Double.isNaN(other.mStopLats.get(stop))) {
+                    mStopLats.set(stops[stop], other.mStopLats.get(stop));
+                    mStopLons.set(stops[stop], other.mStopLons.get(stop));
+                }
+            }
+            for (int i = 0; i < other.mFrequencyTrips.size(); i++) {
+                mFrequencyTrips.add(trips[other.mFrequencyTrips.get(i)]);
+                mFrequencyStartTimes.add(other.mFrequencyStartTimes.get(i));
+                mFrequencyEndTimes.add(other.mFrequencyEndTimes.get(i));
+                mFrequencyHeadways.add(other.mFrequencyHeadways.get(i));
+            }
+            for (int trip = 0; trip < other.mTripStartTimes.size(); trip++) {
+                if (other.mTripStartTimes.get(trip) != NONE) {
+                    mTripStartTimes.set(trips[trip], other.mTripStartTimes.get(trip), NONE);
+                }
+            }
+            for (int i = 0; i < other.mStopTimeTrips.size(); i++) {
+                mStopTimeTrips.add(trips[other.mStopTimeTrips.get(i)]);
+                mStopTimeStops.add(stops[other.mStopTimeStops.get(i)]);
+                mStopTimeSequences.add(other.mStopTimeSequences.get(i));
+                mStopTimeArrivals.add(other.mStopTimeArrivals.get(i));
+                mStopTimeDepartures.add(other.mStopTimeDepartures.get(i));
+            }
+        }
+
+        GtfsStaticIndex build() {
+            return new GtfsStaticIndex(this);
+        }
+
+        /**
+         * @return the code in the target dictionary of each code of the source dictionary
+         */
+        private static int[] remap(StringDictionary.Builder source, StringDictionary.Builder target) {
+            int[] codes = new int[source.size()];
+            for (int code = 0; code < codes.length; code++) {
+                codes[code] = target.add(source.get(code));
+            }
+            return codes;
+        }
+    }
+
+    /**
+     * Growable int array
+     */
+    private static final class IntList {
+
+        private int[] mValues = new int[16];
+
+        private int mSize = 0;
+
+        void add(int value) {
+            ensureCapacity(mSize + 1);
+            mValues[mSize++] = value;
+        }
+
+        /**
+         * Set the value at the given index, growing the list with fill values if needed
+         */
+        void set(int index, int value, int fill) {
+            ensureCapacity(index + 1);
+            if (index >= mSize) {
+                Arrays.fill(mValues, mSize, index + 1, fill);
+                mSize = index + 1;
+            }
+            mValues[index] = value;
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the values, padded with fill values up to the given length
+         */
+        int[] toArray(int length, int fill) {
+            int[] values = Arrays.copyOf(mValues, length);
+            if (mSize < length) {
+                Arrays.fill(values, mSize, length, fill);
+            }
+            return values;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.max(capacity, 2 * mValues.length));
+            }
+        }
+    }
+
+    /**
+     * Growable double array, NaN where no value was set
+     */
+    private static final class DoubleList {
+
+        private double[] mValues = new double[16];
+
+        private int mSize = 0;
+
+        /**
+         * Set the value at the given index, growing the list with NaN if needed
+         */
+        void set(int index, double value) {
+            if (index >= mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.max(index + 1, 2 * mValues.length));
+            }
+            if (index >= mSize) {
+                Arrays.fill(mValues, mSize, index + 1, Double.NaN);
+                mSize = index + 1;
+            }
+            mValues[index] = value;
+        }
+
+        double get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the values, padded with NaN up to the given length
+         */
+        double[] toArray(int length) {
+            double[] values = Arrays.copyOf(mValues, length);
+            if (mSize < length) {
+                Arrays.fill(values, mSize, length, Double.NaN);
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. nanoseconds or bytes), cheap enough to record from the
+ * refresh hot path: recording is a few atomic adds and never allocates.
+ * <p>
+ * Values are counted in log-linear buckets, each power of two split into 8 sub-buckets, so that a quantile is
+ * known to within 12.5% whatever the magnitude of the values. Counts are kept since the start, like Prometheus
+ * summaries.
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSum = new LongAdder();
+    private final LongAccumulator mMax = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value value to count, negative values are counted as 0
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        mCounts.incrementAndGet(bucket(value));
+        mCount.increment();
+        mSum.add(value);
+        mMax.accumulate(value);
+    }
+
+    long getCount() {
+        return mCount.sum();
+    }
+
+    long getSum() {
+        return mSum.sum();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the upper bound of the bucket holding the quantile, capped by the maximum, 0 if nothing was recorded
+     */
+    long getQuantile(double quantile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        // Recorded concurrently with this read
+        return getMax();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value counted in the given bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+/**
+ * Hash map from a pair of int keys to an int value, e.g. dictionary codes from StringDictionary.
+ * <p>
+ * Both keys are packed into one long, so an entry takes a long and an int in two parallel arrays and
+ * nothing is boxed.
+ */
+final class IntBiHashMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Value returned by get() for keys that aren't in the map
+     */
+    private final int mMissingValue;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    /**
+     * @param missingValue value returned by get() for keys that aren't in the map
+     */
+    IntBiHashMap(int missingValue) {
+        this(missingValue, INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param missingValue value returned by get() for keys that aren't in the map
+     * @param expectedSize number of entries the map should hold without resizing
+     */
+    IntBiHashMap(int missingValue, int expectedSize) {
+        mMissingValue = missingValue;
+        int capacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, 2 * expectedSize) - 1) << 1;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    /**
+     * Associates the given value with the given keys, replacing the previous value if there was one
+     *
+     * @return the previous value of the keys, or the missing value if there was none
+     */
+    int put(int key1, int key2, int value) {
+        long key = pack(key1, key2);
+        int slot = find(key);
+        if (mUsed[slot]) {
+            int previous = mValues[slot];
+            mValues[slot] = value;
+            return previous;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mUsed[slot] = true;
+        if (2 * ++mSize > mKeys.length) {
+            resize();
+        }
+        return mMissingValue;
+    }
+
+    /**
+     * Associates the given value with the given keys, unless they already have one
+     *
+     * @return true if the value was added
+     */
+    boolean putIfAbsent(int key1, int key2, int value) {
+        if (containsKey(key1, key2)) {
+            return false;
+        }
+        put(key1, key2, value);
+        return true;
+    }
+
+    /**
+     * @return the value of the given keys, or the missing value if they aren't in the map
+     */
+    int get(int key1, int key2) {
+        int slot = find(pack(key1, key2));
+        return mUsed[slot] ? mValues[slot] : mMissingValue;
+    }
+
+    boolean containsKey(int key1, int key2) {
+        return mUsed[find(pack(key1, key2))];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mUsed[slot] && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        mKeys = new long[2 * keys.length];
+        mValues = new int[2 * keys.length];
+        mUsed = new boolean[2 * keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = find(keys[i]);
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+                mUsed[slot] = true;
+            }
+        }
+    }
+
+    private static long pack(int key1, int key2) {
+        return ((long) key1 << 32) | (key2 & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        // Fibonacci hashing, so that consecutive codes don't end up in consecutive slots
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
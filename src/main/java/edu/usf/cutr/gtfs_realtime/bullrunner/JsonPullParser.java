@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON tokenizer. Tokens are read straight from the underlying Reader, and the text of the
+ * current name, string or number is kept in a reusable buffer, so callers can pick out the fields they need
+ * without building a String or a JSONObject for every value in the response.
+ */
+class JsonPullParser implements Closeable {
+
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Reader mReader;
+    private final char[] mBuf = new char[8192];
+    private int mPos = 0;
+    private int mLimit = 0;
+
+    private char[] mText = new char[64];
+    private int mTextLength = 0;
+    private boolean mBooleanValue;
+
+    // For each open object or array: true if it is an object that expects a name next
+    private boolean[] mExpectName = new boolean[16];
+    private boolean[] mIsObject = new boolean[16];
+    private int mDepth = 0;
+
+    private Token mToken;
+
+    JsonPullParser(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * @return the next token in the document
+     * @throws IOException if the underlying stream fails or the document is malformed
+     */
+    Token next() throws IOException {
+        int c = nextSignificant();
+        switch (c) {
+            case -1:
+                if (mDepth != 0) {
+                    throw syntaxError("unexpected end of document");
+                }
+                return mToken = Token.END_DOCUMENT;
+            case '{':
+                valueStarted();
+                push(true);
+                return mToken = Token.BEGIN_OBJECT;
+            case '[':
+                valueStarted();
+                push(false);
+                return mToken = Token.BEGIN_ARRAY;
+            case '}':
+            case ']':
+                if (mDepth == 0 || mIsObject[mDepth - 1] != (c == '}')) {
+                    throw syntaxError("unbalanced '" + (char) c + "'");
+                }
+                mDepth--;
+                return mToken = c == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+            case '"':
+                readString();
+                if (mDepth > 0 && mIsObject[mDepth - 1] && mExpectName[mDepth - 1]) {
+                    mExpectName[mDepth - 1] = false;
+                    return mToken = Token.NAME;
+                }
+                valueStarted();
+                return mToken = Token.STRING;
+            case 't':
+                expectLiteral("rue");
+                valueStarted();
+                mBooleanValue = true;
+                return mToken = Token.BOOLEAN;
+            case 'f':
+                expectLiteral("alse");
+                valueStarted();
+                mBooleanValue = false;
+                return mToken = Token.BOOLEAN;
+            case 'n':
+                expectLiteral("ull");
+                valueStarted();
+                return mToken = Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber((char) c);
+                    valueStarted();
+                    return mToken = Token.NUMBER;
+                }
+                throw syntaxError("unexpected character '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * @return the token returned by the last call to {@link #next()}
+     */
+    Token current() {
+        return mToken;
+    }
+
+    /**
+     * @return true if the current NAME, STRING or NUMBER token has exactly the given text. Doesn't allocate.
+     */
+    boolean textEquals(String value) {
+        if (value.length() != mTextLength) {
+            return false;
+        }
+        for (int i = 0; i < mTextLength; i++) {
+            if (mText[i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a view of the text of the current token, only valid until the next call to {@link #next()}
+     */
+    CharSequence text() {
+        return CharBuffer.wrap(mText, 0, mTextLength);
+    }
+
+    /**
+     * @return the text of the current STRING or NUMBER token, or null for a NULL token
+     */
+    String stringValue() throws IOException {
+        if (mToken == Token.NULL) {
+            return null;
+        }
+        if (mToken != Token.STRING && mToken != Token.NUMBER) {
+            throw syntaxError("expected a string but was " + mToken);
+        }
+        return new String(mText, 0, mTextLength);
+    }
+
+    /**
+     * @return the value of the current NUMBER token (or a STRING holding a number)
+     */
+    double doubleValue() throws IOException {
+        if (mToken != Token.NUMBER && mToken != Token.STRING) {
+            throw syntaxError("expected a number but was " + mToken);
+        }
+        // Fast path for plain decimals that are exactly representable, which covers everything the API sends
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean negative = false;
+        boolean fraction = false;
+        int i = 0;
+        if (mTextLength > 0 && mText[0] == '-') {
+            negative = true;
+            i++;
+        }
+        for (; i < mTextLength; i++) {
+            char c = mText[i];
+            if (c >= '0' && c <= '9') {
+                if (++digits > 15) {
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (i == mTextLength && digits > 0) {
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(mText, 0, mTextLength));
+        } catch (NumberFormatException ex) {
+            throw syntaxError("invalid number " + new String(mText, 0, mTextLength));
+        }
+    }
+
+    boolean booleanValue() throws IOException {
+        if (mToken != Token.BOOLEAN) {
+            throw syntaxError("expected a boolean but was " + mToken);
+        }
+        return mBooleanValue;
+    }
+
+    /**
+     * Skip the value following the current NAME token, or the rest of the object or array that the current
+     * BEGIN_OBJECT / BEGIN_ARRAY token opened.
+     */
+    void skipValue() throws IOException {
+        Token token = mToken == Token.NAME ? next() : mToken;
+        if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY) {
+            return;
+        }
+        int depth = mDepth - 1;
+        while (mDepth > depth) {
+            if (next() == Token.END_DOCUMENT) {
+                throw syntaxError("unexpected end of document");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private void valueStarted() {
+        if (mDepth > 0 && mIsObject[mDepth - 1]) {
+            mExpectName[mDepth - 1] = true;
+        }
+    }
+
+    private void push(boolean isObject) {
+        if (mDepth == mIsObject.length) {
+            mIsObject = Arrays.copyOf(mIsObject, mDepth * 2);
+            mExpectName = Arrays.copyOf(mExpectName, mDepth * 2);
+        }
+        mIsObject[mDepth] = isObject;
+        mExpectName[mDepth] = isObject;
+        mDepth++;
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            mLimit = mReader.read(mBuf, 0, mBuf.length);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuf[mPos++];
+    }
+
+    /**
+     * @return the next character that isn't whitespace or a separator. Separators carry no information
+     * the context stack doesn't already have.
+     */
+    private int nextSignificant() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ',' || c == ':');
+        return c;
+    }
+
+    private void appendText(char c) {
+        if (mTextLength == mText.length) {
+            mText = Arrays.copyOf(mText, mTextLength * 2);
+        }
+        mText[mTextLength++] = c;
+    }
+
+    private void readString() throws IOException {
+        mTextLength = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("unterminated string");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw syntaxError("invalid unicode escape");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        c = code;
+                        break;
+                    case -1:
+                        throw syntaxError("unterminated string");
+                    default:
+                        // \" \\ \/ stand for themselves
+                        break;
+                }
+            }
+            appendText((char) c);
+        }
+    }
+
+    private void readNumber(char first) throws IOException {
+        mTextLength = 0;
+        appendText(first);
+        while (true) {
+            if (mPos == mLimit && peekFill() == -1) {
+                return;
+            }
+            char c = mBuf[mPos];
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                appendText(c);
+                mPos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private int peekFill() throws IOException {
+        int c = read();
+        if (c != -1) {
+            mPos--;
+        }
+        return c;
+    }
+
+    private void expectLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw syntaxError("invalid literal");
+            }
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
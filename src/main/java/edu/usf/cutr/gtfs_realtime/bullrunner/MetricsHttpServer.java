@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.inject.Inject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the RefreshMetrics report in the Prometheus text format, from the JDK's built-in HTTP server on a
+ * single thread. Meant to be bound to localhost, for a scraper or a curl on the same machine.
+ */
+public class MetricsHttpServer {
+
+    private static final Logger _log = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    private RefreshMetrics _metrics;
+
+    private URL _url;
+
+    private HttpServer _server;
+
+    @Inject
+    public void setMetrics(RefreshMetrics metrics) {
+        _metrics = metrics;
+    }
+
+    /**
+     * @param url host, port and path to serve the metrics at
+     */
+    public void setUrl(URL url) {
+        _url = url;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        int port = _url.getPort() != -1 ? _url.getPort() : _url.getDefaultPort();
+        _server = HttpServer.create(new InetSocketAddress(_url.getHost(), port), 0);
+        _server.createContext(_url.getPath(), this::handle);
+        _server.start();
+        _log.info("serving metrics at " + _url);
+    }
+
+    @PreDestroy
+    public void stop() {
+        _server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = _metrics.getReport().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
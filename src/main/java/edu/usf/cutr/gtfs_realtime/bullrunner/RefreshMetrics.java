@@ -0,0 +1,417 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Timers and counters of each stage of the refresh pipeline, so that a slow cycle can be broken down: route
+ * downloads (per route), parsing, building the GTFS-realtime entities, publishing them, the Route C pattern
+ * lookups and the caches in front of them, along with the age and incremental index of the published feed.
+ * <p>
+ * Recording only takes atomic adds (see {@link Histogram}), so it is safe and cheap from any thread. The metrics
+ * are exposed as the {@value #OBJECT_NAME} MBean (with an agency key when serving several agencies) and, with
+ * --metricsUrl, by the MetricsHttpServer.
+ */
+@Singleton
+public class RefreshMetrics implements RefreshMetricsMBean {
+
+    static final String OBJECT_NAME = "edu.usf.cutr.gtfs_realtime.bullrunner:type=RefreshMetrics";
+
+    private static final Logger mLog = LoggerFactory.getLogger(RefreshMetrics.class);
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Histogram mRefreshNanos = new Histogram();
+    private final LongAdder mRefreshFailures = new LongAdder();
+    private final Histogram mParseNanos = new Histogram();
+    private final Histogram mBuildNanos = new Histogram();
+    private final Histogram mPublishNanos = new Histogram();
+    private final Histogram mPatternLookupNanos = new Histogram();
+    private final LongAdder mPatternCacheHits = new LongAdder();
+    private final Histogram mArrivalsNanos = new Histogram();
+    private final LongAdder mEntityCacheHits = new LongAdder();
+
+    /**
+     * By route_id
+     */
+    private final Map<String, RouteMetrics> mRoutes = new ConcurrentHashMap<>();
+
+    private BullRunnerGtfsRealtimeExporter mVehiclePositionsSource;
+    private volatile SyncromaticsHttpClient mHttpClient;
+    private String mAgencyId;
+    private ObjectName mObjectName;
+
+    @Inject
+    public void setVehiclePositionsSource(@VehiclePositions BullRunnerGtfsRealtimeExporter vehiclePositionsSource) {
+        mVehiclePositionsSource = vehiclePositionsSource;
+    }
+
+    /**
+     * @param httpClient client whose request, 304 and byte counts are reported, which are those of all the
+     *                   agencies sharing it
+     */
+    void setHttpClient(SyncromaticsHttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    /**
+     * @param agencyId id of the agency whose metrics these are, added to the MBean name so that the agencies
+     *                 served from the JVM can each register theirs
+     */
+    public void setAgencyId(String agencyId) {
+        mAgencyId = agencyId;
+    }
+
+    @PostConstruct
+    public void start() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            mObjectName = new ObjectName(mAgencyId == null ? OBJECT_NAME
+                    : OBJECT_NAME + ",agency=" + ObjectName.quote(mAgencyId));
+            if (!server.isRegistered(mObjectName)) {
+                server.registerMBean(this, mObjectName);
+            }
+        } catch (JMException ex) {
+            mLog.warn("Error registering the refresh metrics MBean", ex);
+            mObjectName = null;
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (mObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+        } catch (JMException ex) {
+            mLog.warn("Error unregistering the refresh metrics MBean", ex);
+        }
+    }
+
+    void recordRefresh(long nanos, boolean failed) {
+        mRefreshNanos.record(nanos);
+        if (failed) {
+            mRefreshFailures.increment();
+        }
+    }
+
+    /**
+     * @param bytes response body bytes, after decompression, 0 for a 304 or a failure
+     */
+    void recordRouteDownload(String routeId, long nanos, long bytes, boolean notModified, boolean failed) {
+        RouteMetrics route = mRoutes.computeIfAbsent(routeId, k -> new RouteMetrics());
+        route.mDownloadNanos.record(nanos);
+        route.mBytes.add(bytes);
+        if (notModified) {
+            route.mNotModified.increment();
+        }
+        if (failed) {
+            route.mFailures.increment();
+        }
+    }
+
+    void recordParse(long nanos) {
+        mParseNanos.record(nanos);
+    }
+
+    void recordBuild(long nanos) {
+        mBuildNanos.record(nanos);
+    }
+
+    void recordPublish(long nanos) {
+        mPublishNanos.record(nanos);
+    }
+
+    void recordPatternLookup(long nanos) {
+        mPatternLookupNanos.record(nanos);
+    }
+
+    void recordPatternCacheHit() {
+        mPatternCacheHits.increment();
+    }
+
+    void recordArrivalsDownload(long nanos) {
+        mArrivalsNanos.record(nanos);
+    }
+
+    /**
+     * @param hits number of vehicles whose entities were reused from the last refresh
+     */
+    void recordEntityCacheHits(int hits) {
+        mEntityCacheHits.add(hits);
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return mRefreshNanos.getCount();
+    }
+
+    @Override
+    public long getRefreshFailures() {
+        return mRefreshFailures.sum();
+    }
+
+    @Override
+    public double getRefreshP50Millis() {
+        return mRefreshNanos.getQuantile(0.5) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRefreshP99Millis() {
+        return mRefreshNanos.getQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRefreshMaxMillis() {
+        return mRefreshNanos.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRouteDownloads() {
+        long downloads = 0;
+        for (RouteMetrics route : mRoutes.values()) {
+            downloads += route.mDownloadNanos.getCount();
+        }
+        return downloads;
+    }
+
+    @Override
+    public long getRouteDownloadFailures() {
+        long failures = 0;
+        for (RouteMetrics route : mRoutes.values()) {
+            failures += route.mFailures.sum();
+        }
+        return failures;
+    }
+
+    @Override
+    public double getRouteDownloadP50Millis() {
+        return slowestRouteQuantile(0.5) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRouteDownloadP99Millis() {
+        return slowestRouteQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getNotModifiedResponses() {
+        SyncromaticsHttpClient httpClient = mHttpClient;
+        return httpClient == null ? 0 : httpClient.getNotModifiedCount();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        SyncromaticsHttpClient httpClient = mHttpClient;
+        return httpClient == null ? 0 : httpClient.getBytesReceived();
+    }
+
+    @Override
+    public double getParseP99Millis() {
+        return mParseNanos.getQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getBuildP99Millis() {
+        return mBuildNanos.getQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getPublishP99Millis() {
+        return mPublishNanos.getQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getPatternLookups() {
+        return mPatternLookupNanos.getCount();
+    }
+
+    @Override
+    public long getPatternCacheHits() {
+        return mPatternCacheHits.sum();
+    }
+
+    @Override
+    public double getPatternLookupP99Millis() {
+        return mPatternLookupNanos.getQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getArrivalDownloads() {
+        return mArrivalsNanos.getCount();
+    }
+
+    @Override
+    public long getEntityCacheHits() {
+        return mEntityCacheHits.sum();
+    }
+
+    /**
+     * @return seconds since the timestamp of the published vehicle positions feed, -1 if there is none
+     */
+    @Override
+    public long getFeedAgeSeconds() {
+        if (mVehiclePositionsSource == null) {
+            return -1;
+        }
+        FeedMessage feed = mVehiclePositionsSource.getSnapshot().getFeed();
+        if (!feed.getHeader().hasTimestamp()) {
+            return -1;
+        }
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - feed.getHeader().getTimestamp();
+    }
+
+    /**
+     * @return incremental index of the published vehicle positions feed, -1 if there is none
+     */
+    @Override
+    public long getIncrementalIndex() {
+        return mVehiclePositionsSource == null ? -1 : mVehiclePositionsSource.getSnapshot().getIncrementalIndex();
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder(4096);
+        appendSummary(report, "bullrunner_refresh_seconds", "Refresh cycle duration", null, mRefreshNanos);
+        appendCounter(report, "bullrunner_refresh_failures_total", "Refresh cycles that threw", getRefreshFailures());
+
+        report.append("# HELP bullrunner_route_download_seconds Route vehicles download duration, by route\n");
+        report.append("# TYPE bullrunner_route_download_seconds summary\n");
+        Map<String, RouteMetrics> routes = new TreeMap<>(mRoutes);
+        for (Map.Entry<String, RouteMetrics> route : routes.entrySet()) {
+            appendQuantiles(report, "bullrunner_route_download_seconds", label(route.getKey()),
+                    route.getValue().mDownloadNanos);
+        }
+        appendRouteCounter(report, routes, "bullrunner_route_response_bytes_total",
+                "Route response bytes after decompression, by route", r -> r.mBytes.sum());
+        appendRouteCounter(report, routes, "bullrunner_route_not_modified_total",
+                "Route downloads answered 304 Not Modified, by route", r -> r.mNotModified.sum());
+        appendRouteCounter(report, routes, "bullrunner_route_download_failures_total",
+                "Route downloads that failed or missed the deadline, by route", r -> r.mFailures.sum());
+
+        SyncromaticsHttpClient httpClient = mHttpClient;
+        appendCounter(report, "bullrunner_http_requests_total", "Syncromatics API requests",
+                httpClient == null ? 0 : httpClient.getRequestCount());
+        appendCounter(report, "bullrunner_http_bytes_received_total",
+                "Syncromatics API response bytes as transferred", getBytesReceived());
+
+        appendSummary(report, "bullrunner_parse_seconds", "Route response parse duration", null, mParseNanos);
+        appendSummary(report, "bullrunner_build_seconds", "GTFS-realtime entity build duration per refresh", null,
+                mBuildNanos);
+        appendSummary(report, "bullrunner_publish_seconds", "Feed publish duration per refresh", null,
+                mPublishNanos);
+        appendSummary(report, "bullrunner_pattern_lookup_seconds", "Route C pattern lookup duration", null,
+                mPatternLookupNanos);
+        appendCounter(report, "bullrunner_pattern_cache_hits_total", "Route C patterns answered by the cache",
+                getPatternCacheHits());
+        appendSummary(report, "bullrunner_arrivals_download_seconds", "Vehicle arrivals download duration", null,
+                mArrivalsNanos);
+        appendCounter(report, "bullrunner_entity_cache_hits_total", "Vehicles whose entities were reused",
+                getEntityCacheHits());
+
+        appendGauge(report, "bullrunner_feed_age_seconds", "Age of the published vehicle positions feed",
+                getFeedAgeSeconds());
+        appendGauge(report, "bullrunner_feed_incremental_index",
+                "Incremental index of the published vehicle positions feed", getIncrementalIndex());
+        return report.toString();
+    }
+
+    /**
+     * @return the given quantile of the route whose downloads are the slowest at that quantile, in nanoseconds
+     */
+    private long slowestRouteQuantile(double quantile) {
+        long slowest = 0;
+        for (RouteMetrics route : mRoutes.values()) {
+            slowest = Math.max(slowest, route.mDownloadNanos.getQuantile(quantile));
+        }
+        return slowest;
+    }
+
+    private static void appendSummary(StringBuilder report, String name, String help, String labels,
+                                      Histogram nanos) {
+        report.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        report.append("# TYPE ").append(name).append(" summary\n");
+        appendQuantiles(report, name, labels, nanos);
+    }
+
+    /**
+     * @param labels labels of the series without braces, e.g. {@code route="A"}, or null
+     */
+    private static void appendQuantiles(StringBuilder report, String name, String labels, Histogram nanos) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            report.append(name).append("{").append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(nanos.getQuantile(quantile) / NANOS_PER_SECOND).append('\n');
+        }
+        String suffix = labels == null ? " " : "{" + labels + "} ";
+        report.append(name).append("_sum").append(suffix).append(nanos.getSum() / NANOS_PER_SECOND).append('\n');
+        report.append(name).append("_count").append(suffix).append(nanos.getCount()).append('\n');
+    }
+
+    private static void appendRouteCounter(StringBuilder report, Map<String, RouteMetrics> routes, String name,
+                                           String help, ToLongFunction<RouteMetrics> value) {
+        report.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        report.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, RouteMetrics> route : routes.entrySet()) {
+            report.append(name).append('{').append(label(route.getKey())).append("} ")
+                    .append(value.applyAsLong(route.getValue())).append('\n');
+        }
+    }
+
+    private static void appendCounter(StringBuilder report, String name, String help, long value) {
+        report.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        report.append("# TYPE ").append(name).append(" counter\n");
+        report.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendGauge(StringBuilder report, String name, String help, long value) {
+        report.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        report.append("# TYPE ").append(name).append(" gauge\n");
+        report.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String label(String routeId) {
+        return "route=\"" + routeId.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class RouteMetrics {
+        private final Histogram mDownloadNanos = new Histogram();
+        private final LongAdder mBytes = new LongAdder();
+        private final LongAdder mNotModified = new LongAdder();
+        private final LongAdder mFailures = new LongAdder();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+/**
+ * JMX view of the RefreshMetrics, registered as {@value RefreshMetrics#OBJECT_NAME}. Times are in milliseconds
+ * and counts are since the start.
+ */
+public interface RefreshMetricsMBean {
+
+    long getRefreshCount();
+
+    long getRefreshFailures();
+
+    double getRefreshP50Millis();
+
+    double getRefreshP99Millis();
+
+    double getRefreshMaxMillis();
+
+    long getRouteDownloads();
+
+    long getRouteDownloadFailures();
+
+    /**
+     * @return the median download time of the route that is the slowest at it
+     */
+    double getRouteDownloadP50Millis();
+
+    double getRouteDownloadP99Millis();
+
+    long getNotModifiedResponses();
+
+    long getBytesReceived();
+
+    double getParseP99Millis();
+
+    double getBuildP99Millis();
+
+    double getPublishP99Millis();
+
+    long getPatternLookups();
+
+    long getPatternCacheHits();
+
+    double getPatternLookupP99Millis();
+
+    long getArrivalDownloads();
+
+    long getEntityCacheHits();
+
+    long getFeedAgeSeconds();
+
+    long getIncrementalIndex();
+
+    /**
+     * @return all the metrics, per route too, in the Prometheus text format served by the metrics endpoint
+     */
+    String getReport();
+}
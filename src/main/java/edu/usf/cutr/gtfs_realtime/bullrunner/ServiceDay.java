@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The services active on one service date and the trip of each route on that date, precomputed from a
+ * GtfsStaticIndex so that looking up the trip of a vehicle is a single array read.
+ * <p>
+ * A service is active if calendar_dates.txt adds it on that date, or if calendar.txt has it run on that day
+ * of the week between its start and end dates and calendar_dates.txt doesn't remove it. Several services may
+ * be active on the same date (e.g. a weekday service and a special event service): the trip of a route is
+ * then the one of the last of those services, in calendar.txt order, that has a trip for the route.
+ */
+final class ServiceDay {
+
+    private final GtfsStaticIndex mIndex;
+
+    private final LocalDate mDate;
+
+    /**
+     * Start of the service day, "noon minus 12h" as GTFS times count from, in seconds since the epoch
+     */
+    private final long mStartEpochSeconds;
+
+    private final List<String> mActiveServiceIds;
+
+    /**
+     * Trip of each route code of the index, NONE if the route has no trip on that date
+     */
+    private final int[] mTrips;
+
+    /**
+     * All the trips of each route code on that date, e.g. for routes with a morning and an afternoon trip
+     */
+    private final int[][] mRouteTrips;
+
+    ServiceDay(GtfsStaticIndex index, LocalDate date) {
+        mIndex = index;
+        mDate = date;
+        // Same as midnight, except on the days daylight saving time starts or ends
+        mStartEpochSeconds = date.atTime(LocalTime.NOON).atZone(ZoneId.systemDefault()).minusHours(12)
+                .toEpochSecond();
+        List<Integer> activeServices = new ArrayList<>();
+        mActiveServiceIds = new ArrayList<>();
+        for (int service = 0; service < index.getServiceCount(); service++) {
+            if (index.isServiceActive(service, date)) {
+                activeServices.add(service);
+                mActiveServiceIds.add(index.getServiceId(service));
+            }
+        }
+        mTrips = new int[index.getRouteCount()];
+        for (int route = 0; route < mTrips.length; route++) {
+            mTrips[route] = GtfsStaticIndex.NONE;
+            for (int i = activeServices.size() - 1; i >= 0 && mTrips[route] == GtfsStaticIndex.NONE; i--) {
+                mTrips[route] = index.findTrip(route, activeServices.get(i));
+            }
+        }
+        boolean[] active = new boolean[index.getServiceCount()];
+        for (int service : activeServices) {
+            active[service] = true;
+        }
+        List<List<Integer>> routeTrips = new ArrayList<>();
+        for (int route = 0; route < mTrips.length; route++) {
+            routeTrips.add(new ArrayList<>());
+        }
+        for (int trip = 0; trip < index.getTripCount(); trip++) {
+            int route = index.getRouteOfTrip(trip);
+            int service = index.getServiceOfTrip(trip);
+            if (route != GtfsStaticIndex.NONE && service != GtfsStaticIndex.NONE && active[service]) {
+                routeTrips.get(route).add(trip);
+            }
+        }
+        mRouteTrips = new int[mTrips.length][];
+        for (int route = 0; route < mTrips.length; route++) {
+            mRouteTrips[route] = routeTrips.get(route).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    LocalDate getDate() {
+        return mDate;
+    }
+
+    /**
+     * @return the time GTFS times of this date count from, in seconds since the epoch
+     */
+    long getStartEpochSeconds() {
+        return mStartEpochSeconds;
+    }
+
+    /**
+     * @return the service_ids running on this date, in calendar.txt order
+     */
+    List<String> getActiveServiceIds() {
+        return mActiveServiceIds;
+    }
+
+    boolean hasService() {
+        return !mActiveServiceIds.isEmpty();
+    }
+
+    /**
+     * @param route route code of the index this was built from
+     * @return the trip_id of the route on this date, or null if there is none
+     */
+    String getTripId(int route) {
+        int trip = mTrips[route];
+        return trip == GtfsStaticIndex.NONE ? null : mIndex.getTripId(trip);
+    }
+
+    /**
+     * @param route route code of the index this was built from
+     * @return the trip codes of all the trips of the route on this date, in trips.txt order
+     */
+    int[] getTrips(int route) {
+        return mRouteTrips[route];
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Syncromatics HTTP client and the threads shared by all the agencies served from this JVM. Each agency gets
+ * its own AgencyExecutors on top of them, with its own concurrency limits, so that a slow API only holds up the
+ * threads of its own agency.
+ * <p>
+ * The workers are a fixed pool of platform threads, as many as the concurrency limits of all the AgencyExecutors
+ * add up to, so that a task waiting for the tasks of another executor never holds up their threads. Idle ones
+ * exit after a minute. With virtualThreads, they are a new virtual thread per task, on Java 21 and later.
+ * Blocking on a Syncromatics response then costs no platform thread, so an agency's fetchConcurrency can be
+ * raised to hundreds of requests in flight without sizing a pool for them: the AgencyExecutor limits still
+ * bound how many run at once. Virtual threads are looked up through reflection, as this builds for Java 8, and
+ * older JVMs fall back to platform threads.
+ * <p>
+ * The same instance is bound in the injector of every agency. It has no lifecycle methods, as each injector's
+ * LifecycleService would call them, and lives as long as the JVM.
+ */
+@Singleton
+public class SharedPool {
+
+    private static final Logger mLog = LoggerFactory.getLogger(SharedPool.class);
+
+    /**
+     * Connect and read timeout of the Syncromatics requests
+     */
+    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Idle connections kept alive per host when serving a single agency with the default fetch concurrency
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 12;
+
+    /**
+     * How long an idle platform worker is kept
+     */
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private final SyncromaticsHttpClient mHttpClient;
+
+    /**
+     * Only hands the delayed tasks of the agencies over to their executors
+     */
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor(
+            newThreadFactory("agency-timer"));
+
+    /**
+     * Grows to the sum of the agencies' concurrency limits, which bound how many workers each can use
+     */
+    private final ExecutorService mWorkers;
+
+    /**
+     * mWorkers if they are platform threads, resized by newExecutor(), otherwise null
+     */
+    private final ThreadPoolExecutor mPlatformWorkers;
+
+    /**
+     * Sum of the concurrency limits of the executors created so far
+     */
+    private int mWorkerCount;
+
+    public SharedPool() {
+        this(DEFAULT_MAX_CONNECTIONS, false);
+    }
+
+    /**
+     * @param maxConnections maximum number of idle connections kept alive per host, for all the agencies
+     * @param virtualThreads run the tasks on virtual threads if the JVM has them
+     */
+    public SharedPool(int maxConnections, boolean virtualThreads) {
+        mHttpClient = new SyncromaticsHttpClient(TIMEOUT_MS, maxConnections);
+        ExecutorService workers = null;
+        if (virtualThreads) {
+            workers = newVirtualThreadExecutor("agency-worker-");
+            if (workers == null) {
+                mLog.warn("Virtual threads need Java 21 or later, running on platform threads");
+            } else {
+                mLog.info("Running on virtual threads");
+            }
+        }
+        if (workers != null) {
+            mPlatformWorkers = null;
+            mWorkers = workers;
+        } else {
+            // Sized by newExecutor(), a pool can't be empty until then
+            mPlatformWorkers = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), newThreadFactory("agency-worker"));
+            mPlatformWorkers.allowCoreThreadTimeOut(true);
+            mWorkers = mPlatformWorkers;
+        }
+    }
+
+    SyncromaticsHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * @param maxConcurrency maximum number of tasks of the new executor running at once, 1 to run them one after
+     *                       the other
+     */
+    AgencyExecutor newExecutor(int maxConcurrency) {
+        if (mPlatformWorkers != null) {
+            synchronized (mPlatformWorkers) {
+                mWorkerCount += maxConcurrency;
+                // Maximum first, it can't be below the core size
+                mPlatformWorkers.setMaximumPoolSize(mWorkerCount);
+                mPlatformWorkers.setCorePoolSize(mWorkerCount);
+            }
+        }
+        return new AgencyExecutor(mTimer, mWorkers, maxConcurrency);
+    }
+
+    /**
+     * @return how many platform workers may run at once, 0 on virtual threads. Package-private for the tests.
+     */
+    int getMaxWorkers() {
+        if (mPlatformWorkers == null) {
+            return 0;
+        }
+        synchronized (mPlatformWorkers) {
+            return mPlatformWorkers.getMaximumPoolSize();
+        }
+    }
+
+    /**
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 1).factory())
+     *
+     * @return an executor starting a new virtual thread per task, or null if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.incrementAndGet());
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps what the generator needs to start serving right away on local disk: the parsed static GTFS with the
+ * Syncromatics route map, and the last published vehicle positions feed.
+ * <p>
+ * The config snapshot records which GTFS it was built from (path and version, see
+ * BullRunnerConfigExtract.getGtfsVersion()), and is only used while that GTFS is unchanged. Snapshots are
+ * memory-mapped to be read, and written to a temporary file that is then moved over the old one, so a crash
+ * while writing leaves the previous snapshot in place. A snapshot that can't be read is ignored.
+ */
+final class SnapshotStore {
+
+    private static final Logger mLog = LoggerFactory.getLogger(SnapshotStore.class);
+
+    private static final String CONFIG_FILE = "config.snapshot";
+    private static final String FEED_FILE = "vehicle-positions.pb";
+
+    /**
+     * "BRCS", then the format version, to be bumped whenever the layout of the config snapshot changes
+     */
+    private static final int CONFIG_MAGIC = 0x42524353;
+    private static final int CONFIG_FORMAT_VERSION = 4;
+
+    private final File mDirectory;
+
+    /**
+     * @param directory directory the snapshots are kept in, created if needed
+     */
+    SnapshotStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Restore the route map and static GTFS index of the given config, if the snapshot was built from the GTFS
+     * the config points to, in its current version
+     *
+     * @return true if they were restored
+     */
+    boolean loadConfig(BullRunnerConfigExtract config) {
+        ByteBuffer in = map(CONFIG_FILE);
+        if (in == null) {
+            return false;
+        }
+        try {
+            if (in.getInt() != CONFIG_MAGIC || in.getInt() != CONFIG_FORMAT_VERSION) {
+                mLog.info("Ignoring config snapshot of another format");
+                return false;
+            }
+            String gtfsPath = readString(in);
+            long gtfsVersion = in.getLong();
+            if (!gtfsPath.equals(config.getGtfsPath().getAbsolutePath()) || gtfsVersion != config.getGtfsVersion()) {
+                mLog.info("GTFS changed since the config snapshot was taken");
+                return false;
+            }
+            Map<String, Integer> routes = new HashMap<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                String name = readString(in);
+                routes.put(name, in.getInt());
+            }
+            GtfsStaticIndex index = GtfsStaticIndex.readFrom(in);
+            config.mRoutesMap = routes;
+            config.mIndex = index;
+            return true;
+        } catch (RuntimeException ex) {
+            mLog.warn("Ignoring invalid config snapshot " + file(CONFIG_FILE), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Save the route map and static GTFS index of the given config
+     */
+    void saveConfig(BullRunnerConfigExtract config) {
+        try {
+            write(CONFIG_FILE, tmp -> {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(tmp), 1 << 16))) {
+                    out.writeInt(CONFIG_MAGIC);
+                    out.writeInt(CONFIG_FORMAT_VERSION);
+                    writeString(out, config.getGtfsPath().getAbsolutePath());
+                    out.writeLong(config.getGtfsVersion());
+                    Map<String, Integer> routes = config.mRoutesMap;
+                    out.writeInt(routes.size());
+                    for (Map.Entry<String, Integer> route : routes.entrySet()) {
+                        writeString(out, route.getKey());
+                        out.writeInt(route.getValue());
+                    }
+                    config.mIndex.writeTo(out);
+                }
+            });
+        } catch (IOException ex) {
+            mLog.warn("Error saving the config snapshot to " + file(CONFIG_FILE), ex);
+        }
+    }
+
+    /**
+     * @return the last saved feed, or null if there is none
+     */
+    FeedMessage loadFeed() {
+        ByteBuffer in = map(FEED_FILE);
+        if (in == null) {
+            return null;
+        }
+        try {
+            // The OBA header extension holds the incremental index, which is kept across restarts
+            ExtensionRegistry registry = ExtensionRegistry.newInstance();
+            GtfsRealtimeOneBusAway.registerAllExtensions(registry);
+            return FeedMessage.parseFrom(CodedInputStream.newInstance(in), registry);
+        } catch (IOException ex) {
+            mLog.warn("Ignoring invalid feed snapshot " + file(FEED_FILE), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Save the feed of the given snapshot, as it is served
+     */
+    void saveFeed(FeedSnapshot snapshot) {
+        try {
+            write(FEED_FILE, tmp -> {
+                ByteBuffer bytes = snapshot.getBytes();
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            mLog.warn("Error saving the feed snapshot to " + file(FEED_FILE), ex);
+        }
+    }
+
+    private File file(String name) {
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * @return the contents of the given snapshot file, memory-mapped, or null if it doesn't exist or can't be read
+     */
+    private ByteBuffer map(String name) {
+        Path path = file(name).toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                mLog.warn("Ignoring snapshot " + path + ", it is too large to be mapped");
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            mLog.warn("Error reading snapshot " + path, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Write a snapshot file through a temporary file moved over it once complete
+     */
+    private void write(String name, SnapshotWriter writer) throws IOException {
+        Files.createDirectories(mDirectory.toPath());
+        Path target = file(name).toPath();
+        Path tmp = target.resolveSibling(name + ".tmp");
+        writer.write(tmp);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private interface SnapshotWriter {
+        void write(Path path) throws IOException;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,696 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable spatial index of the shapes and stops of a GtfsStaticIndex, to snap vehicle positions to them
+ * without going through every shape and stop.
+ * <p>
+ * Positions are projected to meters on a plane tangent to the middle of the GTFS (x = east, y = north), which is
+ * accurate enough over a city. The shapes are the ones of shapes.txt, plus one through the stops of each trip
+ * that has no shape_id (or a shape with less than two points), so that every trip with stop positions has one.
+ * Each stop time gets a distance along the shape of its trip: the shape is followed in order, so loops and
+ * routes running over the same street twice get their stops on the right pass. The distances are only computed
+ * for the first trip of each shape and stop sequence, the other trips running it get a copy.
+ * <p>
+ * Shape segments (the line between two consecutive points) and stops are bucketed in a uniform grid, stored
+ * like the stop times of the GtfsStaticIndex: the entries of cell c are at [start[c], start[c + 1]) of a
+ * single array. A query only looks at the cells within its radius. Queries don't allocate and may run
+ * concurrently, their results are written to a caller-provided Snap.
+ */
+final class SpatialIndex {
+
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    /**
+     * Side of the grid cells, about the distance vehicles are snapped from
+     */
+    private static final double CELL_SIZE_METERS = 100;
+
+    /**
+     * Cells are made larger for GTFS covering a large area, to keep the grid itself small
+     */
+    private static final int MAX_CELLS = 1 << 22;
+
+    /**
+     * Stops are snapped to the first pass of their trip's shape within this distance of its closest pass
+     */
+    private static final double STOP_SNAP_TOLERANCE_METERS = 30;
+
+    /**
+     * Stops are snapped to the segments of the grid within this distance, or the whole rest of the shape if that
+     * isn't enough to find their first pass
+     */
+    private static final double STOP_SEARCH_RADIUS_METERS = 100;
+
+    /**
+     * Most segments near a stop looked at, more than enough for a few passes of a shape
+     */
+    private static final int MAX_STOP_SEGMENTS = 64;
+
+    /**
+     * Where a position snapped to, for the caller to reuse across queries
+     */
+    static final class Snap {
+        int mShape = GtfsStaticIndex.NONE;
+        /**
+         * The first point of the segment snapped to
+         */
+        int mSegment = GtfsStaticIndex.NONE;
+        /**
+         * Distance from the position to the segment, in meters
+         */
+        double mDistance;
+        /**
+         * Distance along the shape of the closest point of the segment, in meters
+         */
+        double mDistanceAlong;
+    }
+
+    private final double mRefLat;
+    private final double mRefLon;
+    private final double mMetersPerDegreeLat;
+    private final double mMetersPerDegreeLon;
+
+    /**
+     * The points of shape s are at [mShapePointsStart[s], mShapePointsStart[s + 1]) in the tables below. Shape
+     * codes of the GtfsStaticIndex come first, then the ones built from the stops of trips.
+     */
+    private final int[] mShapePointsStart;
+    private final int[] mPointShapes;
+    private final double[] mPointX;
+    private final double[] mPointY;
+
+    /**
+     * Distance along its shape of each point, in meters
+     */
+    private final double[] mPointDistances;
+
+    /**
+     * Shape of each trip, NONE if it has neither a shape nor two stops with a position
+     */
+    private final int[] mTripShapes;
+
+    /**
+     * Distance along the shape of its trip of each stop time, in meters, never decreasing along a trip
+     */
+    private final double[] mStopTimeDistances;
+
+    /**
+     * Position of each stop, NaN if it has none
+     */
+    private final double[] mStopX;
+    private final double[] mStopY;
+
+    /**
+     * The grid: mColumns x mRows cells of mCellSize meters, from (mMinX, mMinY)
+     */
+    private final double mMinX;
+    private final double mMinY;
+    private final double mCellSize;
+    private final int mColumns;
+    private final int mRows;
+
+    /**
+     * The segments crossing the bounding box of cell c are at [mCellSegmentsStart[c], mCellSegmentsStart[c + 1])
+     * in mCellSegments, and its stops at [mCellStopsStart[c], mCellStopsStart[c + 1]) in mCellStops
+     */
+    private final int[] mCellSegmentsStart;
+    private final int[] mCellSegments;
+    private final int[] mCellStopsStart;
+    private final int[] mCellStops;
+
+    private final GtfsStaticIndex mIndex;
+
+    SpatialIndex(GtfsStaticIndex index) {
+        mIndex = index;
+
+        // Reference point in the middle of the stops and shape points
+        double latSum = 0;
+        double lonSum = 0;
+        int count = 0;
+        for (int stop = 0; stop < index.getStopCount(); stop++) {
+            if (!Double.isNaN(index.getStopLat(stop))) {
+                latSum += index.getStopLat(stop);
+                lonSum += index.getStopLon(stop);
+                count++;
+            }
+        }
+        int gtfsPointCount = index.getShapeCount() == 0 ? 0 : index.getShapePointsEnd(index.getShapeCount() - 1);
+        for (int point = 0; point < gtfsPointCount; point++) {
+            latSum += index.getShapePointLat(point);
+            lonSum += index.getShapePointLon(point);
+            count++;
+        }
+        mRefLat = count == 0 ? 0 : latSum / count;
+        mRefLon = count == 0 ? 0 : lonSum / count;
+        mMetersPerDegreeLat = Math.toRadians(EARTH_RADIUS_METERS);
+        mMetersPerDegreeLon = mMetersPerDegreeLat * Math.cos(Math.toRadians(mRefLat));
+
+        int stopCount = index.getStopCount();
+        mStopX = new double[stopCount];
+        mStopY = new double[stopCount];
+        for (int stop = 0; stop < stopCount; stop++) {
+            mStopX[stop] = x(index.getStopLon(stop));
+            mStopY[stop] = y(index.getStopLat(stop));
+        }
+
+        // Shapes of trips without a usable one of their own, through their stops
+        int tripCount = index.getTripCount();
+        mTripShapes = new int[tripCount];
+        int shapeCount = index.getShapeCount();
+        int pointCount = gtfsPointCount;
+        for (int trip = 0; trip < tripCount; trip++) {
+            int shape = index.getShapeOfTrip(trip);
+            if (shape != GtfsStaticIndex.NONE
+                    && index.getShapePointsEnd(shape) - index.getShapePointsStart(shape) >= 2) {
+                mTripShapes[trip] = shape;
+            } else if (countStopPositions(trip) >= 2) {
+                mTripShapes[trip] = shapeCount++;
+                pointCount += countStopPositions(trip);
+            } else {
+                mTripShapes[trip] = GtfsStaticIndex.NONE;
+            }
+        }
+        mShapePointsStart = new int[shapeCount + 1];
+        mPointShapes = new int[pointCount];
+        mPointX = new double[pointCount];
+        mPointY = new double[pointCount];
+        mPointDistances = new double[pointCount];
+        for (int shape = 0; shape < index.getShapeCount(); shape++) {
+            mShapePointsStart[shape + 1] = index.getShapePointsEnd(shape);
+            for (int point = index.getShapePointsStart(shape); point < index.getShapePointsEnd(shape); point++) {
+                mPointShapes[point] = shape;
+                mPointX[point] = x(index.getShapePointLon(point));
+                mPointY[point] = y(index.getShapePointLat(point));
+            }
+        }
+        int point = gtfsPointCount;
+        for (int trip = 0; trip < tripCount; trip++) {
+            int shape = mTripShapes[trip];
+            if (shape < index.getShapeCount()) {
+                continue;
+            }
+            for (int i = index.getStopTimesStart(trip); i < index.getStopTimesEnd(trip); i++) {
+                int stop = index.getStopTimeStop(i);
+                if (!Double.isNaN(mStopX[stop])) {
+                    mPointShapes[point] = shape;
+                    mPointX[point] = mStopX[stop];
+                    mPointY[point] = mStopY[stop];
+                    point++;
+                }
+            }
+            mShapePointsStart[shape + 1] = point;
+        }
+        for (int shape = 0; shape < shapeCount; shape++) {
+            int from = mShapePointsStart[shape];
+            for (int i = from + 1; i < mShapePointsStart[shape + 1]; i++) {
+                mPointDistances[i] = mPointDistances[i - 1]
+                        + length(mPointX[i] - mPointX[i - 1], mPointY[i] - mPointY[i - 1]);
+            }
+        }
+
+        // Grid over the bounding box of everything
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < pointCount; i++) {
+            minX = Math.min(minX, mPointX[i]);
+            minY = Math.min(minY, mPointY[i]);
+            maxX = Math.max(maxX, mPointX[i]);
+            maxY = Math.max(maxY, mPointY[i]);
+        }
+        for (int stop = 0; stop < stopCount; stop++) {
+            if (!Double.isNaN(mStopX[stop])) {
+                minX = Math.min(minX, mStopX[stop]);
+                minY = Math.min(minY, mStopY[stop]);
+                maxX = Math.max(maxX, mStopX[stop]);
+                maxY = Math.max(maxY, mStopY[stop]);
+            }
+        }
+        if (minX > maxX) {
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+        mMinX = minX;
+        mMinY = minY;
+        mCellSize = Math.max(CELL_SIZE_METERS, Math.sqrt((maxX - minX) * (maxY - minY) / MAX_CELLS));
+        mColumns = (int) ((maxX - minX) / mCellSize) + 1;
+        mRows = (int) ((maxY - minY) / mCellSize) + 1;
+
+        // Counting sort of the segments and stops by cell, counting them in the first pass and placing them
+        // in the second
+        mCellSegmentsStart = new int[mColumns * mRows + 1];
+        mCellStopsStart = new int[mColumns * mRows + 1];
+        int[] cellSegments = null;
+        int[] cellStops = null;
+        int[] next = null;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int segment = 0; segment + 1 < pointCount; segment++) {
+                if (mPointShapes[segment + 1] != mPointShapes[segment]) {
+                    continue;
+                }
+                int column0 = column(Math.min(mPointX[segment], mPointX[segment + 1]));
+                int column1 = column(Math.max(mPointX[segment], mPointX[segment + 1]));
+                int row0 = row(Math.min(mPointY[segment], mPointY[segment + 1]));
+                int row1 = row(Math.max(mPointY[segment], mPointY[segment + 1]));
+                for (int row = row0; row <= row1; row++) {
+                    for (int column = column0; column <= column1; column++) {
+                        int cell = row * mColumns + column;
+                        if (pass == 0) {
+                            mCellSegmentsStart[cell + 1]++;
+                        } else {
+                            cellSegments[next[cell]++] = segment;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < mColumns * mRows; cell++) {
+                    mCellSegmentsStart[cell + 1] += mCellSegmentsStart[cell];
+                }
+                cellSegments = new int[mCellSegmentsStart[mColumns * mRows]];
+                next = Arrays.copyOf(mCellSegmentsStart, mColumns * mRows);
+            }
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            for (int stop = 0; stop < stopCount; stop++) {
+                if (Double.isNaN(mStopX[stop])) {
+                    continue;
+                }
+                int cell = row(mStopY[stop]) * mColumns + column(mStopX[stop]);
+                if (pass == 0) {
+                    mCellStopsStart[cell + 1]++;
+                } else {
+                    cellStops[next[cell]++] = stop;
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < mColumns * mRows; cell++) {
+                    mCellStopsStart[cell + 1] += mCellStopsStart[cell];
+                }
+                cellStops = new int[mCellStopsStart[mColumns * mRows]];
+                next = Arrays.copyOf(mCellStopsStart, mColumns * mRows);
+            }
+        }
+        mCellSegments = cellSegments;
+        mCellStops = cellStops;
+
+        // Last, as the stops are snapped to their trip's shape through the grid
+        mStopTimeDistances = new double[index.getStopTimeCount()];
+        Map<StopPattern, Integer> firstTrips = new HashMap<>();
+        int[] segments = new int[MAX_STOP_SEGMENTS];
+        for (int trip = 0; trip < tripCount; trip++) {
+            int from = index.getStopTimesStart(trip);
+            int to = index.getStopTimesEnd(trip);
+            int[] stops = new int[to - from];
+            for (int i = from; i < to; i++) {
+                stops[i - from] = index.getStopTimeStop(i);
+            }
+            Integer firstTrip = firstTrips.putIfAbsent(new StopPattern(mTripShapes[trip], stops), trip);
+            if (firstTrip == null) {
+                computeStopTimeDistances(trip, segments);
+            } else {
+                System.arraycopy(mStopTimeDistances, index.getStopTimesStart(firstTrip), mStopTimeDistances, from,
+                        to - from);
+            }
+        }
+    }
+
+    /**
+     * Shape and stop sequence of a trip, which set the distances of its stop times
+     */
+    private static final class StopPattern {
+        private final int mShape;
+        private final int[] mStops;
+
+        StopPattern(int shape, int[] stops) {
+            mShape = shape;
+            mStops = stops;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StopPattern)) {
+                return false;
+            }
+            StopPattern other = (StopPattern) o;
+            return mShape == other.mShape && Arrays.equals(mStops, other.mStops);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mShape + Arrays.hashCode(mStops);
+        }
+    }
+
+    private int countStopPositions(int trip) {
+        int count = 0;
+        for (int i = mIndex.getStopTimesStart(trip); i < mIndex.getStopTimesEnd(trip); i++) {
+            if (!Double.isNaN(mIndex.getStopLat(mIndex.getStopTimeStop(i)))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Snap the stops of a trip to its shape, in order, and interpolate the ones without a position
+     *
+     * @param segments buffer for the segments near each stop
+     */
+    private void computeStopTimeDistances(int trip, int[] segments) {
+        int from = mIndex.getStopTimesStart(trip);
+        int to = mIndex.getStopTimesEnd(trip);
+        int shape = mTripShapes[trip];
+        if (shape == GtfsStaticIndex.NONE) {
+            Arrays.fill(mStopTimeDistances, from, to, 0);
+            return;
+        }
+        int lastSegment = mShapePointsStart[shape + 1] - 2;
+        int segment = mShapePointsStart[shape];
+        double previous = 0;
+        int previousTimed = from - 1;
+        for (int i = from; i < to; i++) {
+            int stop = mIndex.getStopTimeStop(i);
+            double x = mStopX[stop];
+            double y = mStopY[stop];
+            if (Double.isNaN(x)) {
+                mStopTimeDistances[i] = Double.NaN;
+                continue;
+            }
+            int s = findFirstPass(shape, segment, x, y, segments);
+            while (s < lastSegment && distanceToSegment(s + 1, x, y) < distanceToSegment(s, x, y)) {
+                s++;
+            }
+            segment = s;
+            previous = Math.max(previous, distanceAlong(s, x, y));
+            mStopTimeDistances[i] = previous;
+
+            // Stops without a position are spread evenly since the previous one with one
+            for (int j = previousTimed + 1; j < i; j++) {
+                mStopTimeDistances[j] = previousTimed < from ? previous : mStopTimeDistances[previousTimed]
+                        + (previous - mStopTimeDistances[previousTimed]) * (j - previousTimed) / (i - previousTimed);
+            }
+            previousTimed = i;
+        }
+        for (int j = previousTimed + 1; j < to; j++) {
+            mStopTimeDistances[j] = previous;
+        }
+    }
+
+    /**
+     * Find the closest pass of the rest of a shape to a stop, then the first pass about as close, as a loop passes
+     * by its first stop again at its end
+     *
+     * @param from     first segment of the rest of the shape
+     * @param segments buffer for the segments near the stop
+     * @return the first segment from the given one within STOP_SNAP_TOLERANCE_METERS of the closest one
+     */
+    private int findFirstPass(int shape, int from, double x, double y, int[] segments) {
+        // The segments near the stop, if the closest is near enough for all those about as close to be among them
+        int count = findSegments(shape, x, y, STOP_SEARCH_RADIUS_METERS, segments);
+        if (count <= segments.length) {
+            double closest = Double.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                if (segments[i] >= from) {
+                    closest = Math.min(closest, distanceToSegment(segments[i], x, y));
+                }
+            }
+            if (closest + STOP_SNAP_TOLERANCE_METERS <= STOP_SEARCH_RADIUS_METERS) {
+                int first = Integer.MAX_VALUE;
+                for (int i = 0; i < count; i++) {
+                    if (segments[i] >= from && segments[i] < first
+                            && distanceToSegment(segments[i], x, y) <= closest + STOP_SNAP_TOLERANCE_METERS) {
+                        first = segments[i];
+                    }
+                }
+                return first;
+            }
+        }
+        // Otherwise the whole rest of the shape
+        int lastSegment = mShapePointsStart[shape + 1] - 2;
+        double closest = Double.MAX_VALUE;
+        for (int s = from; s <= lastSegment; s++) {
+            closest = Math.min(closest, distanceToSegment(s, x, y));
+        }
+        int s = from;
+        while (distanceToSegment(s, x, y) > closest + STOP_SNAP_TOLERANCE_METERS) {
+            s++;
+        }
+        return s;
+    }
+
+    /**
+     * @return the x coordinate of the given longitude, in meters east of the reference point
+     */
+    double x(double lon) {
+        return (lon - mRefLon) * mMetersPerDegreeLon;
+    }
+
+    /**
+     * @return the y coordinate of the given latitude, in meters north of the reference point
+     */
+    double y(double lat) {
+        return (lat - mRefLat) * mMetersPerDegreeLat;
+    }
+
+    /**
+     * @return the shape of the given trip, or NONE if it has neither a shape nor stop positions
+     */
+    int getTripShape(int trip) {
+        return mTripShapes[trip];
+    }
+
+    /**
+     * @return the distance along the shape of its trip of the given stop time, in meters
+     */
+    double getStopTimeDistance(int stopTime) {
+        return mStopTimeDistances[stopTime];
+    }
+
+    /**
+     * Snap a position to the closest segment of any shape
+     *
+     * @param maxDistance how far the segment may be, in meters
+     * @param snap        where the segment is written to
+     * @return whether there is a segment within maxDistance
+     */
+    boolean snap(double lat, double lon, double maxDistance, Snap snap) {
+        return snap(GtfsStaticIndex.NONE, x(lon), y(lat), maxDistance, snap);
+    }
+
+    /**
+     * Snap a projected position to the closest segment of the given shape, or of any shape
+     *
+     * @param shape       shape to snap to, NONE for any
+     * @param maxDistance how far the segment may be, in meters
+     * @param snap        where the segment is written to
+     * @return whether there is a segment within maxDistance
+     */
+    boolean snap(int shape, double x, double y, double maxDistance, Snap snap) {
+        // The cell of the position first, so that the other cells can be skipped once a closer segment is found
+        int center = row(y) * mColumns + column(x);
+        snap.mSegment = GtfsStaticIndex.NONE;
+        double bestSquared = scanCell(center, shape, x, y, maxDistance * maxDistance, snap);
+        int column0 = column(x - maxDistance);
+        int column1 = column(x + maxDistance);
+        int row1 = row(y + maxDistance);
+        for (int row = row(y - maxDistance); row <= row1; row++) {
+            double dy = Math.max(0, Math.max(mMinY + row * mCellSize - y, y - mMinY - (row + 1) * mCellSize));
+            for (int column = column0; column <= column1; column++) {
+                double dx = Math.max(0, Math.max(mMinX + column * mCellSize - x, x - mMinX - (column + 1) * mCellSize));
+                int cell = row * mColumns + column;
+                if (cell != center && dx * dx + dy * dy <= bestSquared) {
+                    bestSquared = scanCell(cell, shape, x, y, bestSquared, snap);
+                }
+            }
+        }
+        if (snap.mSegment == GtfsStaticIndex.NONE) {
+            return false;
+        }
+        project(snap.mSegment, x, y, snap);
+        return true;
+    }
+
+    /**
+     * Look for a segment of the given shape closer than bestSquared in a cell, writing it to snap.mSegment
+     *
+     * @return the new squared distance to beat
+     */
+    private double scanCell(int cell, int shape, double x, double y, double bestSquared, Snap snap) {
+        for (int i = mCellSegmentsStart[cell]; i < mCellSegmentsStart[cell + 1]; i++) {
+            int segment = mCellSegments[i];
+            if (shape != GtfsStaticIndex.NONE && mPointShapes[segment] != shape) {
+                continue;
+            }
+            double distanceSquared = distanceSquaredToSegment(segment, x, y);
+            if (distanceSquared <= bestSquared) {
+                bestSquared = distanceSquared;
+                snap.mSegment = segment;
+            }
+        }
+        return bestSquared;
+    }
+
+    /**
+     * Find all the segments of a shape near a projected position, e.g. every pass of a loop
+     *
+     * @param maxDistance how far the segments may be, in meters
+     * @param segments    where the segments are written to, up to its length
+     * @return the number of segments found, which may be more than the length of segments
+     */
+    int findSegments(int shape, double x, double y, double maxDistance, int[] segments) {
+        int count = 0;
+        int column0 = column(x - maxDistance);
+        int column1 = column(x + maxDistance);
+        int row0 = row(y - maxDistance);
+        int row1 = row(y + maxDistance);
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                int cell = row * mColumns + column;
+                for (int i = mCellSegmentsStart[cell]; i < mCellSegmentsStart[cell + 1]; i++) {
+                    int segment = mCellSegments[i];
+                    if (mPointShapes[segment] != shape) {
+                        continue;
+                    }
+                    // A segment is in every cell of its bounding box, only count it in the first one looked at
+                    double minX = Math.min(mPointX[segment], mPointX[segment + 1]);
+                    double minY = Math.min(mPointY[segment], mPointY[segment + 1]);
+                    if (column != Math.max(column0, column(minX)) || row != Math.max(row0, row(minY))) {
+                        continue;
+                    }
+                    if (distanceSquaredToSegment(segment, x, y) <= maxDistance * maxDistance) {
+                        if (count < segments.length) {
+                            segments[count] = segment;
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Project a position on the given segment
+     *
+     * @param snap where the projection is written to
+     */
+    void project(int segment, double x, double y, Snap snap) {
+        double dx = mPointX[segment + 1] - mPointX[segment];
+        double dy = mPointY[segment + 1] - mPointY[segment];
+        double fraction = fraction(segment, x, y);
+        snap.mShape = mPointShapes[segment];
+        snap.mSegment = segment;
+        snap.mDistance = length(x - mPointX[segment] - fraction * dx, y - mPointY[segment] - fraction * dy);
+        snap.mDistanceAlong = mPointDistances[segment] + fraction * (mPointDistances[segment + 1]
+                - mPointDistances[segment]);
+    }
+
+    /**
+     * @return the stop closest to a position, or NONE if there is none within maxDistance meters
+     */
+    int nearestStop(double lat, double lon, double maxDistance) {
+        double x = x(lon);
+        double y = y(lat);
+        int best = GtfsStaticIndex.NONE;
+        double bestDistance = maxDistance;
+        int column0 = column(x - maxDistance);
+        int column1 = column(x + maxDistance);
+        int row1 = row(y + maxDistance);
+        for (int row = row(y - maxDistance); row <= row1; row++) {
+            for (int cell = row * mColumns + column0; cell <= row * mColumns + column1; cell++) {
+                for (int i = mCellStopsStart[cell]; i < mCellStopsStart[cell + 1]; i++) {
+                    int stop = mCellStops[i];
+                    double distance = length(mStopX[stop] - x, mStopY[stop] - y);
+                    if (distance <= bestDistance) {
+                        bestDistance = distance;
+                        best = stop;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param distanceAlong distance along the shape of the trip, in meters
+     * @return the first stop time of the trip further along its shape, or the end of its stop times if there is
+     * none
+     */
+    int nextStopTime(int trip, double distanceAlong) {
+        int low = mIndex.getStopTimesStart(trip);
+        int high = mIndex.getStopTimesEnd(trip);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mStopTimeDistances[middle] <= distanceAlong) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private double fraction(int segment, double x, double y) {
+        double dx = mPointX[segment + 1] - mPointX[segment];
+        double dy = mPointY[segment + 1] - mPointY[segment];
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((x - mPointX[segment]) * dx + (y - mPointY[segment]) * dy) / lengthSquared));
+    }
+
+    private double distanceToSegment(int segment, double x, double y) {
+        return Math.sqrt(distanceSquaredToSegment(segment, x, y));
+    }
+
+    private double distanceSquaredToSegment(int segment, double x, double y) {
+        double fraction = fraction(segment, x, y);
+        double dx = x - mPointX[segment] - fraction * (mPointX[segment + 1] - mPointX[segment]);
+        double dy = y - mPointY[segment] - fraction * (mPointY[segment + 1] - mPointY[segment]);
+        return dx * dx + dy * dy;
+    }
+
+    private double distanceAlong(int segment, double x, double y) {
+        return mPointDistances[segment] + fraction(segment, x, y)
+                * (mPointDistances[segment + 1] - mPointDistances[segment]);
+    }
+
+    /**
+     * Math.hypot() guards against overflows that can't happen with these distances, at many times the cost
+     */
+    private static double length(double dx, double dy) {
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private int column(double x) {
+        return Math.max(0, Math.min(mColumns - 1, (int) Math.floor((x - mMinX) / mCellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(mRows - 1, (int) Math.floor((y - mMinY) / mCellSize)));
+    }
+}
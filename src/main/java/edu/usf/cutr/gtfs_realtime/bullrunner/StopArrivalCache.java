@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Syncromatics arrival predictions of the vehicles, kept by GTFS stop_id so that the stop times of a trip
+ * can be filled in stop by stop. The predictions of a vehicle are replaced as a whole each time its arrivals are
+ * downloaded, and dropped once they are too old to be trusted.
+ * <p>
+ * Written by the arrival downloads and read by the refresh thread, so all methods are synchronized.
+ */
+class StopArrivalCache {
+
+    static final long NO_ARRIVAL = -1;
+
+    /**
+     * Predicted arrival time of each vehicle at each stop, by GTFS stop_id and then vehicle id, in seconds since
+     * the epoch. Only the next arrival of a vehicle at a stop is kept.
+     */
+    private final Map<String, Map<String, Long>> mArrivalsByStop = new HashMap<>();
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private final long mTtlMillis;
+
+    /**
+     * @param ttlMillis how long the predictions of a vehicle are used after they were downloaded, in milliseconds
+     */
+    StopArrivalCache(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Replace the predictions of a vehicle
+     *
+     * @param arrivals predicted arrival time at each GTFS stop_id, in seconds since the epoch
+     * @param now      time the predictions were downloaded, in milliseconds since the epoch
+     */
+    synchronized void put(String vehicleId, Map<String, Long> arrivals, long now) {
+        remove(vehicleId);
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(arrivals.entrySet());
+        sorted.sort(Map.Entry.comparingByValue());
+        Map<String, Long> byTime = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> arrival : sorted) {
+            byTime.put(arrival.getKey(), arrival.getValue());
+            mArrivalsByStop.computeIfAbsent(arrival.getKey(), k -> new HashMap<>())
+                    .put(vehicleId, arrival.getValue());
+        }
+        mEntries.put(vehicleId, new Entry(Collections.unmodifiableMap(byTime), now));
+    }
+
+    /**
+     * @param now current time, in milliseconds since the epoch
+     * @return the predicted arrival time of the vehicle at the stop in seconds since the epoch, or NO_ARRIVAL
+     */
+    synchronized long getArrival(String stopId, String vehicleId, long now) {
+        if (getEntry(vehicleId, now) == null) {
+            return NO_ARRIVAL;
+        }
+        Map<String, Long> arrivals = mArrivalsByStop.get(stopId);
+        Long arrival = arrivals == null ? null : arrivals.get(vehicleId);
+        return arrival == null ? NO_ARRIVAL : arrival;
+    }
+
+    /**
+     * @param now current time, in milliseconds since the epoch
+     * @return the predicted arrival times of the vehicle by GTFS stop_id, earliest first, empty if it has none
+     */
+    synchronized Map<String, Long> getArrivals(String vehicleId, long now) {
+        Entry entry = getEntry(vehicleId, now);
+        return entry == null ? Collections.emptyMap() : entry.mArrivals;
+    }
+
+    /**
+     * @param now current time, in milliseconds since the epoch
+     * @return when the predictions of the vehicle were downloaded in milliseconds since the epoch, 0 if it has
+     * none, which tells whether they changed since something was built from them
+     */
+    synchronized long getDownloadTime(String vehicleId, long now) {
+        Entry entry = getEntry(vehicleId, now);
+        return entry == null ? 0 : entry.mDownloadTime;
+    }
+
+    /**
+     * Pick the vehicles whose arrivals should be downloaded next: those without predictions first, then the ones
+     * with the oldest, leaving out those downloaded less than minAgeMillis ago
+     *
+     * @param max maximum number of vehicles to pick
+     * @param now current time, in milliseconds since the epoch
+     */
+    synchronized List<String> selectForDownload(Collection<String> vehicleIds, long minAgeMillis, int max,
+                                                long now) {
+        List<String> selected = new ArrayList<>();
+        for (String vehicleId : vehicleIds) {
+            if (now - getDownloadTime(vehicleId, now) >= minAgeMillis) {
+                selected.add(vehicleId);
+            }
+        }
+        selected.sort((a, b) -> Long.compare(getDownloadTime(a, now), getDownloadTime(b, now)));
+        return selected.size() > max ? new ArrayList<>(selected.subList(0, max)) : selected;
+    }
+
+    /**
+     * Drop the vehicles that are no longer reported by the API
+     */
+    synchronized void retainAll(Collection<String> vehicleIds) {
+        for (Iterator<String> i = mEntries.keySet().iterator(); i.hasNext(); ) {
+            String vehicleId = i.next();
+            if (!vehicleIds.contains(vehicleId)) {
+                removeFromStops(vehicleId, mEntries.get(vehicleId));
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the predictions of the vehicle, or null if it has none or they expired, in which case they're dropped
+     */
+    private Entry getEntry(String vehicleId, long now) {
+        Entry entry = mEntries.get(vehicleId);
+        if (entry != null && now - entry.mDownloadTime > mTtlMillis) {
+            remove(vehicleId);
+            return null;
+        }
+        return entry;
+    }
+
+    private void remove(String vehicleId) {
+        Entry entry = mEntries.remove(vehicleId);
+        if (entry != null) {
+            removeFromStops(vehicleId, entry);
+        }
+    }
+
+    private void removeFromStops(String vehicleId, Entry entry) {
+        for (String stopId : entry.mArrivals.keySet()) {
+            Map<String, Long> arrivals = mArrivalsByStop.get(stopId);
+            arrivals.remove(vehicleId);
+            if (arrivals.isEmpty()) {
+                mArrivalsByStop.remove(stopId);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Map<String, Long> mArrivals;
+        private final long mDownloadTime;
+
+        Entry(Map<String, Long> arrivals, long downloadTime) {
+            mArrivals = arrivals;
+            mDownloadTime = downloadTime;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Arrays;
+
+/**
+ * Immutable dictionary encoding of a set of GTFS ids: every distinct id gets a dense int code, in the order
+ * the ids were first added, so that the tables of GtfsStaticIndex can store ints instead of Strings.
+ * <p>
+ * Codes are looked up in an open-addressing table of ints (linear probing, at most half full), which needs no
+ * entry objects and only one String comparison per hit. Ids can be looked up and added as any CharSequence,
+ * such as the field views of GtfsCsvReader, and are only copied into a String when they are new.
+ */
+final class StringDictionary {
+
+    static final int NOT_FOUND = -1;
+
+    private final String[] mValues;
+
+    /**
+     * Code + 1 of the id hashed to each slot, 0 for empty slots
+     */
+    private final int[] mTable;
+
+    private StringDictionary(String[] values) {
+        mValues = values;
+        mTable = buildTable(values, values.length);
+    }
+
+    /**
+     * @param values distinct ids, in code order, not copied
+     */
+    static StringDictionary of(String[] values) {
+        return new StringDictionary(values);
+    }
+
+    /**
+     * @return the code of the given id, or NOT_FOUND if it isn't in the dictionary
+     */
+    int indexOf(CharSequence value) {
+        if (value == null) {
+            return NOT_FOUND;
+        }
+        return mTable[find(mTable, mValues, value, hash(value))] - 1;
+    }
+
+    /**
+     * @return the id of the given code
+     */
+    String get(int code) {
+        return mValues[code];
+    }
+
+    int size() {
+        return mValues.length;
+    }
+
+    /**
+     * @return the hash code the given value would have as a String, with its high bits spread as only the low
+     * ones pick the slot
+     */
+    private static int hash(CharSequence value) {
+        int h;
+        if (value instanceof String) {
+            // Cached by String
+            h = value.hashCode();
+        } else {
+            h = 0;
+            for (int i = 0; i < value.length(); i++) {
+                h = 31 * h + value.charAt(i);
+            }
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of the given value, or the empty slot where it would go
+     */
+    private static int find(int[] table, String[] values, CharSequence value, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        int entry;
+        while ((entry = table[slot]) != 0 && !values[entry - 1].contentEquals(value)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return a table at most half full holding the first count values
+     */
+    private static int[] buildTable(String[] values, int count) {
+        int[] table = new int[Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1];
+        for (int code = 0; code < count; code++) {
+            table[find(table, values, values[code], hash(values[code]))] = code + 1;
+        }
+        return table;
+    }
+
+    /**
+     * Assigns codes while the GTFS files are read
+     */
+    static final class Builder {
+
+        private String[] mValues = new String[16];
+
+        private int mSize = 0;
+
+        private int[] mTable = new int[32];
+
+        /**
+         * @return the code of the given id, adding it to the dictionary if it is new
+         */
+        int add(CharSequence value) {
+            int slot = find(mTable, mValues, value, hash(value));
+            if (mTable[slot] != 0) {
+                return mTable[slot] - 1;
+            }
+            int code = mSize++;
+            if (code == mValues.length) {
+                mValues = Arrays.copyOf(mValues, 2 * mValues.length);
+            }
+            mValues[code] = value.toString();
+            mTable[slot] = code + 1;
+            if (2 * mSize > mTable.length) {
+                mTable = buildTable(mValues, mSize);
+            }
+            return code;
+        }
+
+        /**
+         * @return the id of the given code
+         */
+        String get(int code) {
+            return mValues[code];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        StringDictionary build() {
+            return new StringDictionary(Arrays.copyOf(mValues, mSize));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+/**
+ * The fields of a Syncromatics arrival prediction that are used to build a GTFS-realtime StopTimeUpdate
+ */
+final class SyncromaticsArrival {
+
+    /**
+     * Syncromatics stop number, which the Bull Runner GTFS uses as stop_id, or null if the API didn't send one
+     */
+    final String mStopNumber;
+    /**
+     * Syncromatics stop id, or null if the API didn't send one
+     */
+    final String mStopId;
+    final String mPatternName;
+    /**
+     * Predicted arrival time, in seconds since the epoch, or 0 if the API didn't send one
+     */
+    final long mArrivalTime;
+
+    SyncromaticsArrival(String stopNumber, String stopId, String patternName, long arrivalTime) {
+        mStopNumber = stopNumber;
+        mStopId = stopId;
+        mPatternName = patternName;
+        mArrivalTime = arrivalTime;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP client for the Syncromatics API.
+ * <p>
+ * Connections are kept alive and reused through the JDK's per-host keep-alive cache, which only takes a
+ * connection back once its response has been read to the end and closed, so every response stream handed out
+ * here must be closed by the caller. Responses are requested gzip-compressed, and for conditional requests the
+ * ETag / Last-Modified validators of the previous response are sent back so that an unchanged resource costs a
+ * bodiless 304. The validators of a new response are only sent once the caller commits them, after it has used
+ * the body: a body that was thrown away, or only partly used, must not be answered with a 304 next time.
+ * <p>
+ * One client is shared by all the agencies served from the JVM, the validators being kept by URL. Each request
+ * may name a traffic log, in which its response is also recorded as it's received, for replaying it later with
+ * SyncromaticsReplayServer.
+ */
+class SyncromaticsHttpClient {
+
+    private static final Logger mLog = LoggerFactory.getLogger(SyncromaticsHttpClient.class);
+
+    private final int mTimeoutMs;
+
+    /**
+     * Validators of the last response the caller used, by URL
+     */
+    private final Map<String, Validators> mValidators = new ConcurrentHashMap<>();
+
+    /**
+     * Validators of the last response received, by URL, until the caller commits them
+     */
+    private final Map<String, Validators> mPendingValidators = new ConcurrentHashMap<>();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mNotModified = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    /**
+     * @param timeoutMs      connect and read timeout, in milliseconds
+     * @param maxConnections maximum number of idle connections kept alive per host
+     */
+    SyncromaticsHttpClient(int timeoutMs, int maxConnections) {
+        mTimeoutMs = timeoutMs;
+        // Read by the JDK keep-alive cache when the first connection is made. The default of 5 would close
+        // connections as soon as more requests than that run concurrently against the API.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+        }
+    }
+
+    /**
+     * Send a GET request
+     *
+     * @param trafficLog log to record the response in, null not to record it
+     * @return the response body, which must be closed by the caller
+     */
+    InputStream get(URL url, SyncromaticsTrafficLog trafficLog) throws IOException {
+        return execute(url, false, trafficLog);
+    }
+
+    /**
+     * Send a GET request, with the validators of the last committed response to the same URL if there is one
+     *
+     * @param trafficLog log to record the response in, null not to record it
+     * @return the response body, which must be closed by the caller, or null if the resource hasn't changed since
+     * the previous request
+     */
+    InputStream getIfModified(URL url, SyncromaticsTrafficLog trafficLog) throws IOException {
+        return execute(url, true, trafficLog);
+    }
+
+    /**
+     * Send the validators of the last response to the given URL with its next conditional requests, once its body
+     * has been used in full
+     */
+    void commit(URL url) {
+        String key = url.toString();
+        Validators validators = mPendingValidators.remove(key);
+        if (validators == null) {
+            return;
+        }
+        if (validators.mETag != null || validators.mLastModified != null) {
+            mValidators.put(key, validators);
+        } else {
+            mValidators.remove(key);
+        }
+    }
+
+    /**
+     * Forget the validators of the given URL, so that its next conditional request returns the full body
+     */
+    void invalidate(URL url) {
+        String key = url.toString();
+        mPendingValidators.remove(key);
+        mValidators.remove(key);
+    }
+
+    long getRequestCount() {
+        return mRequests.get();
+    }
+
+    long getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    /**
+     * @return number of response body bytes received, as transferred (i.e. before decompression)
+     */
+    long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    private InputStream execute(URL url, boolean conditional, SyncromaticsTrafficLog trafficLog)
+            throws IOException {
+        mLog.debug(url.toString());
+        mRequests.incrementAndGet();
+        String key = url.toString();
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        Validators validators = conditional ? mValidators.get(key) : null;
+        if (validators != null) {
+            if (validators.mETag != null) {
+                connection.setRequestProperty("If-None-Match", validators.mETag);
+            }
+            if (validators.mLastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", validators.mLastModified);
+            }
+        }
+
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        int status = connection.getResponseCode();
+        int latencyMillis = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        boolean gzip = "gzip".equalsIgnoreCase(connection.getContentEncoding());
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+            mNotModified.incrementAndGet();
+            // Nothing to read, closing returns the connection to the keep-alive cache
+            connection.getInputStream().close();
+            if (trafficLog != null) {
+                trafficLog.append(time, latencyMillis, status, url, false, new byte[0]);
+            }
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            // Read the error body to the end so that the connection can still be reused
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                try (InputStream in = error) {
+                    byte[] buffer = new byte[1024];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        if (trafficLog != null) {
+                            body.write(buffer, 0, n);
+                        }
+                    }
+                }
+            }
+            if (trafficLog != null) {
+                trafficLog.append(time, latencyMillis, status, url, gzip, body.toByteArray());
+            }
+            throw new IOException("HTTP " + status + " from " + url.getHost() + url.getPath());
+        }
+
+        if (conditional) {
+            // Without any, committing forgets the previous ones
+            mPendingValidators.put(key, new Validators(connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified")));
+        }
+
+        InputStream in = new CountingInputStream(connection.getInputStream(), mBytesReceived);
+        if (trafficLog != null) {
+            in = trafficLog.record(in, time, latencyMillis, status, url, gzip);
+        }
+        if (gzip) {
+            in = new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    private static class Validators {
+        private final String mETag;
+        private final String mLastModified;
+
+        Validators(String eTag, String lastModified) {
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+    }
+}
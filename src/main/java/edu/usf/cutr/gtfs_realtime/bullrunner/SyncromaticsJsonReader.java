@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import edu.usf.cutr.gtfs_realtime.bullrunner.JsonPullParser.Token;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the Syncromatics API responses straight from the response stream, keeping only the fields we use
+ */
+final class SyncromaticsJsonReader {
+
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_LAT = "lat";
+    private static final String FIELD_LON = "lon";
+    private static final String FIELD_HEADING_DEGREES = "headingDegrees";
+    private static final String FIELD_SPEED = "speed";
+    private static final String FIELD_LAST_UPDATED = "lastUpdated";
+    private static final String FIELD_PASSENGER_LOAD = "passengerLoad";
+    private static final String FIELD_TRIP_ID = "tripId";
+    private static final String FIELD_PATTERN = "pattern";
+    private static final String FIELD_STOP = "stop";
+    private static final String FIELD_STOP_NUMBER = "number";
+    private static final String FIELD_ARRIVE_TIME = "arriveTime";
+    private static final String FIELD_SECONDS_TO_ARRIVAL = "secondsToArrival";
+    private static final String FIELD_ROUTE_ID = "ID";
+    private static final String FIELD_DISPLAY_NAME = "DisplayName";
+
+    private SyncromaticsJsonReader() {
+    }
+
+    /**
+     * Read a routes/{id}/vehicles response
+     *
+     * @return the vehicles in the order they appear in the response, leaving out those without a position or a
+     * last update time
+     */
+    static List<SyncromaticsVehicle> readVehicles(InputStream in) throws IOException {
+        List<SyncromaticsVehicle> vehicles = new ArrayList<>();
+        try (JsonPullParser parser = newParser(in)) {
+            expect(parser.next(), Token.BEGIN_ARRAY);
+            while (parser.next() == Token.BEGIN_OBJECT) {
+                SyncromaticsVehicle vehicle = readVehicle(parser);
+                if (vehicle != null) {
+                    vehicles.add(vehicle);
+                }
+            }
+            expect(parser.current(), Token.END_ARRAY);
+        }
+        return vehicles;
+    }
+
+    /**
+     * Read a v1/vehicles/{id}/arrivals response. The arrival time is taken from arriveTime, or from
+     * secondsToArrival if the API only sent that.
+     *
+     * @param now time the response was received, in seconds since the epoch
+     * @return all the arrivals in the order they appear in the response, including those without a stop or a time,
+     * which only tell the pattern
+     */
+    static List<SyncromaticsArrival> readArrivals(InputStream in, long now) throws IOException {
+        List<SyncromaticsArrival> arrivals = new ArrayList<>();
+        try (JsonPullParser parser = newParser(in)) {
+            expect(parser.next(), Token.BEGIN_ARRAY);
+            while (parser.next() == Token.BEGIN_OBJECT) {
+                arrivals.add(readArrival(parser, now));
+            }
+            expect(parser.current(), Token.END_ARRAY);
+        }
+        return arrivals;
+    }
+
+    /**
+     * Read the region/0/routes configuration, mapping the first letter of each route's display name
+     * ("A Route A") to its Syncromatics id
+     */
+    static void readRoutes(InputStream in, Map<String, Integer> routesMap) throws IOException {
+        try (JsonPullParser parser = newParser(in)) {
+            expect(parser.next(), Token.BEGIN_ARRAY);
+            while (parser.next() == Token.BEGIN_OBJECT) {
+                Integer id = null;
+                String displayName = null;
+                while (parser.next() == Token.NAME) {
+                    if (parser.textEquals(FIELD_ROUTE_ID)) {
+                        parser.next();
+                        id = (int) parser.doubleValue();
+                    } else if (parser.textEquals(FIELD_DISPLAY_NAME)) {
+                        parser.next();
+                        displayName = parser.stringValue();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                if (id == null || displayName == null || displayName.isEmpty()) {
+                    throw new IOException("Route without ID or DisplayName in the routes configuration");
+                }
+                routesMap.put(displayName.substring(0, 1), id);
+            }
+            expect(parser.current(), Token.END_ARRAY);
+        }
+    }
+
+    /**
+     * @return the vehicle, or null if its lat, lon or lastUpdated is missing or null
+     */
+    private static SyncromaticsVehicle readVehicle(JsonPullParser parser) throws IOException {
+        String id = null;
+        String name = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        double headingDegrees = 0;
+        double speed = 0;
+        long lastUpdated = 0;
+        double passengerLoad = 0;
+        String tripId = "";
+        while (parser.next() == Token.NAME) {
+            if (parser.textEquals(FIELD_ID)) {
+                parser.next();
+                id = parser.stringValue();
+            } else if (parser.textEquals(FIELD_NAME)) {
+                parser.next();
+                name = parser.stringValue();
+            } else if (parser.textEquals(FIELD_LAT)) {
+                lat = nextDouble(parser, Double.NaN);
+            } else if (parser.textEquals(FIELD_LON)) {
+                lon = nextDouble(parser, Double.NaN);
+            } else if (parser.textEquals(FIELD_HEADING_DEGREES)) {
+                headingDegrees = nextDouble(parser, 0);
+            } else if (parser.textEquals(FIELD_SPEED)) {
+                speed = nextDouble(parser, 0);
+            } else if (parser.textEquals(FIELD_PASSENGER_LOAD)) {
+                passengerLoad = nextDouble(parser, 0);
+            } else if (parser.textEquals(FIELD_LAST_UPDATED)) {
+                if (parser.next() == Token.STRING) {
+                    try {
+                        lastUpdated = Instant.parse(parser.text()).getEpochSecond();
+                    } catch (DateTimeParseException ex) {
+                        throw new IOException("Invalid lastUpdated " + parser.stringValue(), ex);
+                    }
+                }
+            } else if (parser.textEquals(FIELD_TRIP_ID)) {
+                parser.next();
+                String value = parser.stringValue();
+                tripId = value == null ? "" : value;
+            } else {
+                parser.skipValue();
+            }
+        }
+        expect(parser.current(), Token.END_OBJECT);
+        if (id == null) {
+            throw new IOException("Vehicle without an id in the Syncromatics response");
+        }
+        if (Double.isNaN(lat) || Double.isNaN(lon) || lastUpdated == 0) {
+            // Can't be placed or dated, and would otherwise show up at 0,0 in 1970
+            return null;
+        }
+        return new SyncromaticsVehicle(id, name == null ? id : name, lat, lon, headingDegrees, speed, lastUpdated,
+                passengerLoad, tripId, null);
+    }
+
+    private static SyncromaticsArrival readArrival(JsonPullParser parser, long now) throws IOException {
+        String stopNumber = null;
+        String stopId = null;
+        String patternName = null;
+        long arrivalTime = 0;
+        long secondsToArrival = -1;
+        while (parser.next() == Token.NAME) {
+            if (parser.textEquals(FIELD_STOP) && parser.next() == Token.BEGIN_OBJECT) {
+                while (parser.next() == Token.NAME) {
+                    if (parser.textEquals(FIELD_STOP_NUMBER)) {
+                        parser.next();
+                        stopNumber = parser.stringValue();
+                    } else if (parser.textEquals(FIELD_ID)) {
+                        parser.next();
+                        stopId = parser.stringValue();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+            } else if (parser.textEquals(FIELD_PATTERN) && parser.next() == Token.BEGIN_OBJECT) {
+                while (parser.next() == Token.NAME) {
+                    if (parser.textEquals(FIELD_NAME)) {
+                        parser.next();
+                        patternName = parser.stringValue();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+            } else if (parser.textEquals(FIELD_ARRIVE_TIME)) {
+                if (parser.next() == Token.STRING) {
+                    try {
+                        arrivalTime = Instant.parse(parser.text()).getEpochSecond();
+                    } catch (DateTimeParseException ex) {
+                        throw new IOException("Invalid arriveTime " + parser.stringValue(), ex);
+                    }
+                }
+            } else if (parser.textEquals(FIELD_SECONDS_TO_ARRIVAL)) {
+                if (parser.next() != Token.NULL) {
+                    secondsToArrival = Math.round(parser.doubleValue());
+                }
+            } else {
+                parser.skipValue();
+            }
+        }
+        expect(parser.current(), Token.END_OBJECT);
+        if (arrivalTime == 0 && secondsToArrival >= 0) {
+            arrivalTime = now + secondsToArrival;
+        }
+        return new SyncromaticsArrival(stopNumber, stopId, patternName, arrivalTime);
+    }
+
+    /**
+     * @param nullValue value returned for null
+     * @return the next value as a double
+     */
+    private static double nextDouble(JsonPullParser parser, double nullValue) throws IOException {
+        return parser.next() == Token.NULL ? nullValue : parser.doubleValue();
+    }
+
+    private static JsonPullParser newParser(InputStream in) {
+        return new JsonPullParser(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    private static void expect(Token actual, Token expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected Syncromatics response, expected " + expected + " but was " + actual);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the Syncromatics API that serves a SyncromaticsTrafficLog, so that the refresh pipeline can
+ * be load tested offline against recorded traffic.
+ * <p>
+ * The log is replayed on a clock that starts at its first record when the server starts and runs speed times
+ * faster than real time, looping back to the start at the end of the log. A request is answered with the last
+ * response recorded for its path and query (without the API key) at that point of the replay, or the first one
+ * if there is none yet, after the recorded latency divided by the speed. Bodies are served with an ETag, so that
+ * conditional requests get a 304 until the replay reaches a new body, whatever the API sent when recording.
+ */
+class SyncromaticsReplayServer {
+
+    private static final Logger mLog = LoggerFactory.getLogger(SyncromaticsReplayServer.class);
+
+    /**
+     * Exchanges of the log by key, in the order they were recorded
+     */
+    private final Map<String, List<Indexed>> mExchanges = new HashMap<>();
+
+    private final double mSpeed;
+    private final long mFirstTime;
+    private final long mDuration;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+    private long mStartTime;
+
+    /**
+     * @param speed how many times faster than real time the log is replayed
+     */
+    SyncromaticsReplayServer(File log, double speed) throws IOException {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("replay speed must be positive: " + speed);
+        }
+        mSpeed = speed;
+        List<SyncromaticsTrafficLog.Exchange> exchanges = SyncromaticsTrafficLog.read(log);
+        if (exchanges.isEmpty()) {
+            throw new IOException("No responses in " + log);
+        }
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        for (int i = 0; i < exchanges.size(); i++) {
+            SyncromaticsTrafficLog.Exchange exchange = exchanges.get(i);
+            mExchanges.computeIfAbsent(exchange.mKey, k -> new ArrayList<>()).add(new Indexed(i, exchange));
+            firstTime = Math.min(firstTime, exchange.mTime);
+            lastTime = Math.max(lastTime, exchange.mTime);
+        }
+        mFirstTime = firstTime;
+        mDuration = lastTime - firstTime + 1;
+        for (List<Indexed> list : mExchanges.values()) {
+            list.sort((a, b) -> Long.compare(a.mExchange.mTime, b.mExchange.mTime));
+        }
+        mLog.info("Replaying " + exchanges.size() + " responses to " + mExchanges.size() + " URLs over "
+                + mDuration / 1000 + "s from " + log + " at " + speed + "x");
+    }
+
+    /**
+     * Start serving on an ephemeral port of the loopback interface
+     */
+    void start() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        // Requests wait out the recorded latency, so they each need a thread to match the fan-out of the client
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mStartTime = System.currentTimeMillis();
+        mServer.start();
+        mLog.info("Serving the Syncromatics replay at " + getUrl(new URL("http://localhost/")));
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the given API URL, pointing at this server instead
+     */
+    URL getUrl(URL url) throws IOException {
+        return new URL("http", mServer.getAddress().getHostString(), mServer.getAddress().getPort(),
+                url.getFile());
+    }
+
+    /**
+     * @return the recorded time the replay is at, in milliseconds since the epoch
+     */
+    private long getReplayTime() {
+        long elapsed = (long) ((System.currentTimeMillis() - mStartTime) * mSpeed);
+        return mFirstTime + elapsed % mDuration;
+    }
+
+    private void handle(HttpExchange http) throws IOException {
+        try {
+            if (!http.getRequestMethod().equals("GET")) {
+                http.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                return;
+            }
+            String key = SyncromaticsTrafficLog.getKey(http.getRequestURI().getRawPath(),
+                    http.getRequestURI().getRawQuery());
+            List<Indexed> exchanges = mExchanges.get(key);
+            if (exchanges == null) {
+                mLog.debug("Nothing recorded for " + key);
+                http.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+            int current = findCurrent(exchanges, getReplayTime());
+            SyncromaticsTrafficLog.Exchange exchange = exchanges.get(current).mExchange;
+            Thread.sleep((long) (exchange.mLatencyMillis / mSpeed));
+
+            Indexed body = findBody(exchanges, current);
+            if (body == null) {
+                // Only errors were recorded so far
+                send(http, exchange.mStatus, exchange, null);
+                return;
+            }
+            String eTag = "\"" + body.mIndex + "\"";
+            if (eTag.equals(http.getRequestHeaders().getFirst("If-None-Match"))) {
+                http.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                return;
+            }
+            send(http, HttpURLConnection.HTTP_OK, body.mExchange, eTag);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            http.close();
+        }
+    }
+
+    /**
+     * @return the index of the last exchange recorded at or before the given time, or 0 if there is none
+     */
+    private static int findCurrent(List<Indexed> exchanges, long time) {
+        int low = 0;
+        int high = exchanges.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (exchanges.get(mid).mExchange.mTime <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the body to serve at the given exchange: its own if it has one, else the one of the last 200
+     * before it (for a recorded 304), or null if it's an error or nothing but 304s were recorded before it
+     */
+    private static Indexed findBody(List<Indexed> exchanges, int current) {
+        int status = exchanges.get(current).mExchange.mStatus;
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return null;
+        }
+        for (int i = current; i >= 0; i--) {
+            if (exchanges.get(i).mExchange.mStatus == HttpURLConnection.HTTP_OK) {
+                return exchanges.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange http, int status, SyncromaticsTrafficLog.Exchange exchange, String eTag)
+            throws IOException {
+        byte[] body = exchange.mBody;
+        if (exchange.mGzip) {
+            String acceptEncoding = http.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                http.getResponseHeaders().set("Content-Encoding", "gzip");
+            } else {
+                body = gunzip(body);
+            }
+        }
+        if (eTag != null) {
+            http.getResponseHeaders().set("ETag", eTag);
+        }
+        http.getResponseHeaders().set("Content-Type", "application/json");
+        http.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = http.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static class Indexed {
+        /**
+         * Position in the log, which identifies the body in the ETag
+         */
+        private final int mIndex;
+        private final SyncromaticsTrafficLog.Exchange mExchange;
+
+        Indexed(int index, SyncromaticsTrafficLog.Exchange exchange) {
+            mIndex = index;
+            mExchange = exchange;
+        }
+    }
+}
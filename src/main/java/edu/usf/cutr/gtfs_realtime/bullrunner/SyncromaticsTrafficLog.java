@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of the responses of the Syncromatics API, for replaying real traffic offline with
+ * SyncromaticsReplayServer.
+ * <p>
+ * The file starts with a magic number and a version, followed by one record per response: the time the request
+ * was sent, how long the response took to start, the HTTP status, the path and query of the URL without the API
+ * key, and the body as transferred, i.e. still gzip-compressed when it was sent that way. Records are flushed as
+ * they're written, so a log cut short by a crash loses at most its last record, which is skipped when reading it.
+ * Appending to an existing log continues it, with a gap in time.
+ */
+class SyncromaticsTrafficLog implements Closeable {
+
+    private static final Logger mLog = LoggerFactory.getLogger(SyncromaticsTrafficLog.class);
+
+    private static final int MAGIC = 0x4252544c; // "BRTL"
+    private static final int VERSION = 1;
+
+    private static final String API_KEY_PARAMETER = "api-key=";
+
+    private final DataOutputStream mOut;
+
+    /**
+     * Open the log for appending, creating it if needed
+     */
+    SyncromaticsTrafficLog(File file) throws IOException {
+        boolean empty = file.length() == 0;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (empty) {
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Append a response
+     *
+     * @param time          when the request was sent, in milliseconds since the epoch
+     * @param latencyMillis time until the response status was received, in milliseconds
+     * @param gzip          whether the body is gzip-compressed
+     */
+    synchronized void append(long time, int latencyMillis, int status, URL url, boolean gzip, byte[] body)
+            throws IOException {
+        mOut.writeLong(time);
+        mOut.writeInt(latencyMillis);
+        mOut.writeShort(status);
+        mOut.writeUTF(getKey(url.getPath(), url.getQuery()));
+        mOut.writeBoolean(gzip);
+        mOut.writeInt(body.length);
+        mOut.write(body);
+        mOut.flush();
+    }
+
+    /**
+     * Copy a response body into the log as it's read, appending it when the stream is closed. The rest of the body
+     * is read first if the caller didn't read it to the end.
+     *
+     * @param in body as transferred
+     */
+    InputStream record(InputStream in, long time, int latencyMillis, int status, URL url, boolean gzip) {
+        return new RecordingInputStream(in, time, latencyMillis, status, url, gzip);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * @return the exchanges of the log, in the order they were written
+     */
+    static List<Exchange> read(File file) throws IOException {
+        List<Exchange> exchanges = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a Syncromatics traffic log");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported traffic log version " + version + " in " + file);
+            }
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException ex) {
+                    break;
+                }
+                try {
+                    int latencyMillis = in.readInt();
+                    int status = in.readUnsignedShort();
+                    String key = in.readUTF();
+                    boolean gzip = in.readBoolean();
+                    byte[] body = new byte[in.readInt()];
+                    in.readFully(body);
+                    exchanges.add(new Exchange(time, latencyMillis, status, key, gzip, body));
+                } catch (EOFException ex) {
+                    mLog.warn("Skipping the truncated last record of " + file);
+                    break;
+                }
+            }
+        }
+        return exchanges;
+    }
+
+    /**
+     * @return the path and query of a URL without the API key, which identify a resource in the log
+     */
+    static String getKey(String path, String query) {
+        if (query == null) {
+            return path;
+        }
+        StringBuilder kept = new StringBuilder();
+        for (String parameter : query.split("&")) {
+            if (!parameter.isEmpty() && !parameter.startsWith(API_KEY_PARAMETER)) {
+                kept.append(kept.length() == 0 ? '?' : '&').append(parameter);
+            }
+        }
+        return path + kept;
+    }
+
+    /**
+     * A response of the log
+     */
+    static class Exchange {
+        final long mTime;
+        final int mLatencyMillis;
+        final int mStatus;
+        final String mKey;
+        final boolean mGzip;
+        final byte[] mBody;
+
+        Exchange(long time, int latencyMillis, int status, String key, boolean gzip, byte[] body) {
+            mTime = time;
+            mLatencyMillis = latencyMillis;
+            mStatus = status;
+            mKey = key;
+            mGzip = gzip;
+            mBody = body;
+        }
+    }
+
+    private class RecordingInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+        private final long mTime;
+        private final int mLatencyMillis;
+        private final int mStatus;
+        private final URL mUrl;
+        private final boolean mGzip;
+        private boolean mClosed;
+
+        RecordingInputStream(InputStream in, long time, int latencyMillis, int status, URL url, boolean gzip) {
+            super(in);
+            mTime = time;
+            mLatencyMillis = latencyMillis;
+            mStatus = status;
+            mUrl = url;
+            mGzip = gzip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mBody.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mBody.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be recorded too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                byte[] buffer = new byte[8192];
+                while (read(buffer, 0, buffer.length) != -1) {
+                    // record the rest of the body
+                }
+                append(mTime, mLatencyMillis, mStatus, mUrl, mGzip, mBody.toByteArray());
+            } catch (IOException ex) {
+                mLog.warn("Error recording the response of " + mUrl.getPath(), ex);
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
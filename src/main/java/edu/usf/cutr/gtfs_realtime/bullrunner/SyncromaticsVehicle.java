@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Objects;
+
+/**
+ * The fields of a Syncromatics vehicle that are used to build a GTFS-realtime VehiclePosition
+ */
+final class SyncromaticsVehicle {
+
+    /**
+     * Route id placeholder for Route C vehicles whose pattern couldn't be determined
+     */
+    static final String ROUTE_ID_UNKNOWN = "Unknown";
+
+    final String mId;
+    final String mName;
+    final double mLat;
+    final double mLon;
+    final double mHeadingDegrees;
+    final double mSpeed;
+    /**
+     * Time of the last position update, in seconds since the epoch
+     */
+    final long mLastUpdated;
+    final double mPassengerLoad;
+    final String mTripId;
+    /**
+     * GTFS route_id, only known up front for Route C vehicles (see GtfsRealtimeProviderImpl#downloadVehiclesRouteC)
+     */
+    final String mRouteId;
+
+    SyncromaticsVehicle(String id, String name, double lat, double lon, double headingDegrees, double speed,
+                        long lastUpdated, double passengerLoad, String tripId, String routeId) {
+        mId = id;
+        mName = name;
+        mLat = lat;
+        mLon = lon;
+        mHeadingDegrees = headingDegrees;
+        mSpeed = speed;
+        mLastUpdated = lastUpdated;
+        mPassengerLoad = passengerLoad;
+        mTripId = tripId;
+        mRouteId = routeId;
+    }
+
+    SyncromaticsVehicle withRouteId(String newRouteId) {
+        return new SyncromaticsVehicle(mId, mName, mLat, mLon, mHeadingDegrees, mSpeed, mLastUpdated, mPassengerLoad,
+                mTripId, newRouteId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SyncromaticsVehicle other = (SyncromaticsVehicle) o;
+        return Double.compare(mLat, other.mLat) == 0
+                && Double.compare(mLon, other.mLon) == 0
+                && Double.compare(mHeadingDegrees, other.mHeadingDegrees) == 0
+                && Double.compare(mSpeed, other.mSpeed) == 0
+                && mLastUpdated == other.mLastUpdated
+                && Double.compare(mPassengerLoad, other.mPassengerLoad) == 0
+                && mId.equals(other.mId)
+                && Objects.equals(mName, other.mName)
+                && Objects.equals(mTripId, other.mTripId)
+                && Objects.equals(mRouteId, other.mRouteId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mId, mName, mLat, mLon, mHeadingDegrees, mSpeed, mLastUpdated, mPassengerLoad, mTripId,
+                mRouteId);
+    }
+}
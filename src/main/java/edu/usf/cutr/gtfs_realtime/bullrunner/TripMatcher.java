@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Matches vehicles to a trip instance of the static GTFS and to their place along it, from their position and
+ * the time of that position.
+ * <p>
+ * The candidate trips are those of the vehicle's route on the service day (see ServiceDay). The vehicle is
+ * snapped to the shape of each trip (see SpatialIndex), and its distance along the shape gives its progress
+ * along the trip as a scheduled offset from the trip start, interpolated between the stop times around it. Its
+ * position time minus that offset is when its trip instance started: for frequency-based trips that start is
+ * rounded to the closest departure of frequencies.txt, and the difference is the delay of the vehicle. Trips
+ * that come back to where they started (loops) or run over the same street twice pass near the vehicle more
+ * than once, and are told apart by the last match of the vehicle: going back along the trip, or to an earlier
+ * instance, is only chosen when no pass ahead is close enough.
+ * <p>
+ * The spatial index and the offsets are computed once per index, so a match only looks at the shape segments
+ * near the vehicle. Not thread safe, meant to be used by the refresh task only.
+ */
+final class TripMatcher {
+
+    /**
+     * Vehicles further than this from the shape of their trip aren't matched (e.g. deadheading or detoured)
+     */
+    private static final double MAX_DISTANCE_METERS = 150;
+
+    /**
+     * Vehicles this close to a stop are at that stop
+     */
+    private static final double STOPPED_AT_METERS = 25;
+
+    /**
+     * Added to the distance of the passes behind the last match of the vehicle
+     */
+    private static final double BACKWARD_PENALTY_METERS = 1000;
+
+    /**
+     * How far back along the trip, in scheduled seconds, a vehicle may seem to go without being penalized, as
+     * positions jitter
+     */
+    private static final int BACKWARD_TOLERANCE_SECONDS = 60;
+
+    /**
+     * Where a vehicle is along a trip instance
+     */
+    static final class Match {
+        final int mTrip;
+        /**
+         * Start of the trip instance, in seconds after the start of the service day
+         */
+        final int mInstanceStart;
+        /**
+         * Stop time the vehicle is at or going to
+         */
+        final int mStopTime;
+        final boolean mStoppedAt;
+        /**
+         * Scheduled offset of the vehicle from the trip start, in seconds
+         */
+        final int mOffset;
+        /**
+         * How late the vehicle is on the schedule of the trip instance, in seconds, negative when early
+         */
+        final int mDelay;
+
+        Match(int trip, int instanceStart, int stopTime, boolean stoppedAt, int offset, int delay) {
+            mTrip = trip;
+            mInstanceStart = instanceStart;
+            mStopTime = stopTime;
+            mStoppedAt = stoppedAt;
+            mOffset = offset;
+            mDelay = delay;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Match other = (Match) o;
+            return mTrip == other.mTrip && mInstanceStart == other.mInstanceStart && mStopTime == other.mStopTime
+                    && mStoppedAt == other.mStoppedAt && mOffset == other.mOffset && mDelay == other.mDelay;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((31 * mTrip + mInstanceStart) * 31 + mStopTime) * 31 + mOffset;
+        }
+    }
+
+    private final GtfsStaticIndex mIndex;
+
+    private final SpatialIndex mSpatialIndex;
+
+    /**
+     * Scheduled arrival and departure of each stop time, in seconds after the start of its trip. Missing
+     * times are interpolated between the stop times around them.
+     */
+    private final int[] mArrivalOffsets;
+    private final int[] mDepartureOffsets;
+
+    /**
+     * Scheduled start of each trip, the departure of its first stop, in seconds after midnight
+     */
+    private final int[] mTripStarts;
+
+    /**
+     * Last match of each vehicle, by Syncromatics vehicle id
+     */
+    private final Map<String, Match> mLastMatches = new HashMap<>();
+
+    /**
+     * Score of the last match of matchTrip(), its distance to the trip plus penalties, in meters
+     */
+    private double mLastScore;
+
+    /**
+     * Buffers of the current match
+     */
+    private final SpatialIndex.Snap mSnap = new SpatialIndex.Snap();
+    private int[] mSegments = new int[16];
+
+    TripMatcher(GtfsStaticIndex index) {
+        mIndex = index;
+        int stopTimeCount = index.getStopTimeCount();
+
+        mSpatialIndex = new SpatialIndex(index);
+
+        mArrivalOffsets = new int[stopTimeCount];
+        mDepartureOffsets = new int[stopTimeCount];
+        mTripStarts = new int[index.getTripCount()];
+        for (int trip = 0; trip < mTripStarts.length; trip++) {
+            mTripStarts[trip] = computeOffsets(index.getStopTimesStart(trip), index.getStopTimesEnd(trip));
+        }
+    }
+
+    /**
+     * Fill the offsets of the stop times [from, to) of a trip
+     *
+     * @return the start of the trip in seconds after midnight, NONE if it has no times
+     */
+    private int computeOffsets(int from, int to) {
+        int start = GtfsStaticIndex.NONE;
+        for (int i = from; i < to && start == GtfsStaticIndex.NONE; i++) {
+            start = mIndex.getStopTimeDeparture(i) != GtfsStaticIndex.NONE ? mIndex.getStopTimeDeparture(i)
+                    : mIndex.getStopTimeArrival(i);
+        }
+        if (start == GtfsStaticIndex.NONE) {
+            return GtfsStaticIndex.NONE;
+        }
+        // Timed stop times keep their times, the ones in between are spread evenly
+        int previousTimed = GtfsStaticIndex.NONE;
+        for (int i = from; i < to; i++) {
+            int arrival = mIndex.getStopTimeArrival(i);
+            int departure = mIndex.getStopTimeDeparture(i);
+            if (arrival == GtfsStaticIndex.NONE && departure == GtfsStaticIndex.NONE) {
+                continue;
+            }
+            arrival = arrival == GtfsStaticIndex.NONE ? departure : arrival;
+            departure = departure == GtfsStaticIndex.NONE ? arrival : departure;
+            mArrivalOffsets[i] = arrival - start;
+            mDepartureOffsets[i] = departure - start;
+            int gapFrom = previousTimed == GtfsStaticIndex.NONE ? from : previousTimed + 1;
+            for (int j = gapFrom; j < i; j++) {
+                int offset = previousTimed == GtfsStaticIndex.NONE ? 0 : mDepartureOffsets[previousTimed]
+                        + (mArrivalOffsets[i] - mDepartureOffsets[previousTimed]) * (j - previousTimed)
+                        / (i - previousTimed);
+                mArrivalOffsets[j] = offset;
+                mDepartureOffsets[j] = offset;
+            }
+            previousTimed = i;
+        }
+        for (int j = previousTimed + 1; j < to; j++) {
+            mArrivalOffsets[j] = mDepartureOffsets[previousTimed];
+            mDepartureOffsets[j] = mDepartureOffsets[previousTimed];
+        }
+        return start;
+    }
+
+    /**
+     * Match a vehicle to an instance of one of the given trips
+     *
+     * @param vehicleId   Syncromatics vehicle id, to follow the vehicle from one match to the next
+     * @param trips       the trips of the vehicle's route on the service day
+     * @param lat         latitude of the vehicle
+     * @param lon         longitude of the vehicle
+     * @param epochSecond time of that position, in seconds since the epoch
+     * @param serviceDay  the service day
+     * @return the match, or null if the vehicle isn't on any of the trips
+     */
+    Match match(String vehicleId, int[] trips, double lat, double lon, long epochSecond, ServiceDay serviceDay) {
+        int time = (int) (epochSecond - serviceDay.getStartEpochSeconds());
+        double x = mSpatialIndex.x(lon);
+        double y = mSpatialIndex.y(lat);
+        Match last = mLastMatches.get(vehicleId);
+        Match best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int trip : trips) {
+            Match match = matchTrip(trip, x, y, time, last != null && last.mTrip == trip ? last : null);
+            // Routes with several trips a day (e.g. a morning and an afternoon one) are told apart by the
+            // time, which counts for 1 m per 10 s of delay
+            double score = match == null ? Double.MAX_VALUE : mLastScore + Math.abs(match.mDelay) / 10.0;
+            if (score < bestScore) {
+                bestScore = score;
+                best = match;
+            }
+        }
+        if (best == null) {
+            mLastMatches.remove(vehicleId);
+        } else {
+            mLastMatches.put(vehicleId, best);
+        }
+        return best;
+    }
+
+    /**
+     * Match a vehicle to an instance of the given trip, leaving the score of the match in mLastScore
+     *
+     * @param last last match of the vehicle if it was on the same trip, null otherwise
+     * @return the match, or null if the vehicle isn't on the trip
+     */
+    private Match matchTrip(int trip, double x, double y, int time, Match last) {
+        int from = mIndex.getStopTimesStart(trip);
+        int to = mIndex.getStopTimesEnd(trip);
+        int shape = mSpatialIndex.getTripShape(trip);
+        if (mTripStarts[trip] == GtfsStaticIndex.NONE || shape == GtfsStaticIndex.NONE || to - from < 2) {
+            return null;
+        }
+        int count = mSpatialIndex.findSegments(shape, x, y, MAX_DISTANCE_METERS, mSegments);
+        if (count > mSegments.length) {
+            mSegments = new int[2 * count];
+            count = mSpatialIndex.findSegments(shape, x, y, MAX_DISTANCE_METERS, mSegments);
+        }
+
+        double bestScore = Double.MAX_VALUE;
+        double bestDistance = 0;
+        double bestDistanceAlong = 0;
+        int bestOffset = 0;
+        int bestInstance = 0;
+        for (int i = 0; i < count; i++) {
+            mSpatialIndex.project(mSegments[i], x, y, mSnap);
+            // Scheduled offset of that point of the shape, between the stop times around it
+            int next = nextStopTime(trip, mSnap.mDistanceAlong);
+            double previousDistance = mSpatialIndex.getStopTimeDistance(next - 1);
+            double legLength = mSpatialIndex.getStopTimeDistance(next) - previousDistance;
+            double fraction = legLength <= 0 ? 0
+                    : Math.max(0, Math.min(1, (mSnap.mDistanceAlong - previousDistance) / legLength));
+            int offset = (int) Math.round(mDepartureOffsets[next - 1]
+                    + fraction * (mArrivalOffsets[next] - mDepartureOffsets[next - 1]));
+            int instance = instanceStart(trip, time - offset);
+            double score = mSnap.mDistance;
+            if (last != null && (instance < last.mInstanceStart
+                    || (instance == last.mInstanceStart && offset < last.mOffset - BACKWARD_TOLERANCE_SECONDS))) {
+                score += BACKWARD_PENALTY_METERS;
+            }
+            if (score < bestScore) {
+                bestScore = score;
+                bestDistance = mSnap.mDistance;
+                bestDistanceAlong = mSnap.mDistanceAlong;
+                bestOffset = offset;
+                bestInstance = instance;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        int stopTime = nextStopTime(trip, bestDistanceAlong);
+        boolean stoppedAt = false;
+        if (length(mSpatialIndex.getStopTimeDistance(stopTime) - bestDistanceAlong, bestDistance)
+                <= STOPPED_AT_METERS) {
+            stoppedAt = true;
+        } else if (length(bestDistanceAlong - mSpatialIndex.getStopTimeDistance(stopTime - 1), bestDistance)
+                <= STOPPED_AT_METERS) {
+            stopTime--;
+            stoppedAt = true;
+        }
+        mLastScore = bestScore;
+        return new Match(trip, bestInstance, stopTime, stoppedAt, bestOffset, time - bestOffset - bestInstance);
+    }
+
+    /**
+     * @return the stop time a vehicle at the given distance along the shape of the trip is going to, never the
+     * first one so that there is always one before it
+     */
+    private int nextStopTime(int trip, double distanceAlong) {
+        return Math.max(mIndex.getStopTimesStart(trip) + 1,
+                Math.min(mIndex.getStopTimesEnd(trip) - 1, mSpatialIndex.nextStopTime(trip, distanceAlong)));
+    }
+
+    /**
+     * Forget the vehicles that aren't in the given ones any more
+     */
+    void retainVehicles(Collection<String> vehicleIds) {
+        mLastMatches.keySet().retainAll(vehicleIds);
+    }
+
+    /**
+     * @return the scheduled arrival of the given stop time, in seconds after the start of its trip
+     */
+    int getArrivalOffset(int stopTime) {
+        return mArrivalOffsets[stopTime];
+    }
+
+    /**
+     * @return the scheduled departure of the given stop time, in seconds after the start of its trip
+     */
+    int getDepartureOffset(int stopTime) {
+        return mDepartureOffsets[stopTime];
+    }
+
+    /**
+     * @param start when the vehicle started the trip, in seconds after the start of the service day
+     * @return the start of the trip instance the vehicle is on: for frequency-based trips, the scheduled
+     * departure closest to the given start, otherwise the start of the trip
+     */
+    private int instanceStart(int trip, int start) {
+        int from = mIndex.getFrequenciesStart(trip);
+        int to = mIndex.getFrequenciesEnd(trip);
+        if (from == to) {
+            return mTripStarts[trip];
+        }
+        int best = GtfsStaticIndex.NONE;
+        for (int i = from; i < to; i++) {
+            int first = mIndex.getFrequencyStartTime(i);
+            int headway = Math.max(1, mIndex.getFrequencyHeadway(i));
+            // The last departure is before end_time
+            int last = first + Math.max(0, mIndex.getFrequencyEndTime(i) - 1 - first) / headway * headway;
+            int departure;
+            if (start <= first) {
+                departure = first;
+            } else if (start >= last) {
+                departure = last;
+            } else {
+                departure = first + Math.round((float) (start - first) / headway) * headway;
+            }
+            if (best == GtfsStaticIndex.NONE || Math.abs(departure - start) < Math.abs(best - start)) {
+                best = departure;
+            }
+        }
+        return best;
+    }
+
+    private static double length(double dx, double dy) {
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
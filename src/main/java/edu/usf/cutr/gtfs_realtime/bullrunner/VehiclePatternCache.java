@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the Syncromatics pattern name (e.g. "Route C" or "MSC Express") last seen for each vehicle, so
+ * the arrivals endpoint only has to be queried when a vehicle is new, its entry has expired, it has jumped
+ * to a different position or its trip has changed. Until the new lookup succeeds, the old pattern name is still
+ * there to fall back on.
+ */
+class VehiclePatternCache {
+
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private final long mTtlMillis;
+    private final double mMaxJumpMeters;
+
+    /**
+     * @param ttlMillis     how long a pattern name is trusted after it was looked up, in milliseconds
+     * @param maxJumpMeters a vehicle that moved further than this since the lookup is looked up again
+     */
+    VehiclePatternCache(long ttlMillis, double maxJumpMeters) {
+        mTtlMillis = ttlMillis;
+        mMaxJumpMeters = maxJumpMeters;
+    }
+
+    /**
+     * @return the cached pattern name for the vehicle, or null if it has to be looked up again
+     */
+    String get(String vehicleId, double lat, double lon, String tripId, long now) {
+        Entry entry = mEntries.get(vehicleId);
+        if (entry == null) {
+            return null;
+        }
+        if (now - entry.mLookupTime > mTtlMillis
+                || !entry.mTripId.equals(tripId)
+                || distanceMeters(entry.mLat, entry.mLon, lat, lon) > mMaxJumpMeters) {
+            // Kept for getLastKnown() until the lookup replaces it
+            return null;
+        }
+        // Track the vehicle so that the jump check compares consecutive positions
+        mEntries.put(vehicleId, new Entry(entry.mPatternName, lat, lon, tripId, entry.mLookupTime));
+        return entry.mPatternName;
+    }
+
+    /**
+     * @return the pattern name last looked up for the vehicle, even if get() wants it looked up again, or null if
+     * there is none
+     */
+    String getLastKnown(String vehicleId) {
+        Entry entry = mEntries.get(vehicleId);
+        return entry == null ? null : entry.mPatternName;
+    }
+
+    void put(String vehicleId, String patternName, double lat, double lon, String tripId, long now) {
+        mEntries.put(vehicleId, new Entry(patternName, lat, lon, tripId, now));
+    }
+
+    /**
+     * Drop the vehicles that are no longer reported by the API
+     */
+    void retainAll(Collection<String> vehicleIds) {
+        // retainAll calls contains() for every cached vehicle, which would scan a list each time
+        Set<String> current = vehicleIds instanceof Set ? (Set<String>) vehicleIds : new HashSet<>(vehicleIds);
+        mEntries.keySet().retainAll(current);
+    }
+
+    private static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        // Equirectangular approximation, plenty accurate for the distances a bus covers between two polls
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_METERS;
+    }
+
+    private static class Entry {
+        private final String mPatternName;
+        private final double mLat;
+        private final double mLon;
+        private final String mTripId;
+        private final long mLookupTime;
+
+        Entry(String patternName, double lat, double lon, String tripId, long lookupTime) {
+            mPatternName = patternName;
+            mLat = lat;
+            mLon = lon;
+            mTripId = tripId;
+            mLookupTime = lookupTime;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import edu.usf.cutr.gtfs_realtime.bullrunner.AdaptiveRefreshScheduler.RefreshOutcome;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveRefreshSchedulerTest {
+
+    private static final long MIN_INTERVAL_MS = 5000;
+    private static final long INTERVAL_MS = 15000;
+    private static final long IDLE_INTERVAL_MS = 60000;
+    private static final long MAX_BACKOFF_MS = 120000;
+
+    private boolean mServiceToday = true;
+
+    private final AdaptiveRefreshScheduler mScheduler = new AdaptiveRefreshScheduler(null, null,
+            () -> mServiceToday, MIN_INTERVAL_MS, INTERVAL_MS, IDLE_INTERVAL_MS, MAX_BACKOFF_MS);
+
+    @Test
+    public void betweenMinimumAndBaseInterval() {
+        assertEquals(MIN_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 10), 100));
+        assertEquals(INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 0), 100));
+        assertEquals(10000, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 5), 100));
+    }
+
+    @Test
+    public void idleWithoutServiceOrVehicles() {
+        mServiceToday = false;
+        assertEquals(IDLE_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 10), 100));
+
+        // Growing by the base interval up to the idle interval
+        mServiceToday = true;
+        assertEquals(2 * INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 0, 0), 100));
+        assertEquals(3 * INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 0, 0), 100));
+        assertEquals(IDLE_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 0, 0), 100));
+        assertEquals(IDLE_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 0, 0), 100));
+        // And back once vehicles show up
+        assertEquals(MIN_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 10), 100));
+        assertEquals(2 * INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 0, 0), 100));
+    }
+
+    @Test
+    public void backoffWithJitter() {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            AdaptiveRefreshScheduler scheduler = new AdaptiveRefreshScheduler(null, null, () -> true,
+                    MIN_INTERVAL_MS, INTERVAL_MS, IDLE_INTERVAL_MS, MAX_BACKOFF_MS);
+            long backoff = INTERVAL_MS;
+            for (int failures = 1; failures <= 20; failures++) {
+                backoff = Math.min(MAX_BACKOFF_MS, 2 * backoff);
+                long delay = scheduler.nextDelay(null, 100);
+                assertTrue(failures + " failures: " + delay, delay >= backoff / 2 && delay <= backoff);
+            }
+            // Back to normal after a success
+            assertEquals(MIN_INTERVAL_MS, scheduler.nextDelay(new RefreshOutcome(4, 0, 10, 10), 100));
+            long delay = scheduler.nextDelay(null, 100);
+            assertTrue(delay >= INTERVAL_MS && delay <= 2 * INTERVAL_MS);
+        }
+    }
+
+    @Test
+    public void failedRoutes() {
+        // Half of the routes may fail
+        assertEquals(MIN_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 2, 10, 10), 100));
+        long delay = mScheduler.nextDelay(new RefreshOutcome(4, 3, 10, 10), 100);
+        assertTrue(delay >= INTERVAL_MS && delay <= 2 * INTERVAL_MS);
+    }
+
+    @Test
+    public void neverLessThanTwiceTheCycle() {
+        assertEquals(20000, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 10), 10000));
+        assertEquals(INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 0), 7000));
+        mServiceToday = false;
+        assertEquals(2 * IDLE_INTERVAL_MS, mScheduler.nextDelay(new RefreshOutcome(4, 0, 10, 10), IDLE_INTERVAL_MS));
+    }
+
+    @Test
+    public void keepsRunningAfterAnError() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AtomicInteger cycles = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(3);
+            AdaptiveRefreshScheduler scheduler = new AdaptiveRefreshScheduler(executor, () -> {
+                done.countDown();
+                if (cycles.incrementAndGet() == 1) {
+                    throw new AssertionError("Not an Exception");
+                }
+                return new RefreshOutcome(1, 0, 1, 1);
+            }, () -> true, 1, 1, 1, 2);
+            scheduler.start();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AgencyExecutorTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test
+    public void blockedAgencyDoesNotHoldUpAnother() throws Exception {
+        SharedPool pool = new SharedPool();
+        AgencyExecutor slow = pool.newExecutor(2);
+        AgencyExecutor fast = pool.newExecutor(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(2);
+        AtomicInteger slowDone = new AtomicInteger();
+        try {
+            // Every slot of the slow agency blocked, and more of its tasks queued
+            for (int i = 0; i < 5; i++) {
+                slow.execute(() -> {
+                    blocked.countDown();
+                    await(release);
+                    slowDone.incrementAndGet();
+                });
+            }
+            assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int value = i;
+                results.add(fast.submit(() -> value));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, (int) results.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+            assertEquals(0, slowDone.get());
+        } finally {
+            release.countDown();
+        }
+        slow.shutdown();
+        assertTrue(slow.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(5, slowDone.get());
+        fast.shutdown();
+    }
+
+    @Test
+    public void maxConcurrencyNeverExceeded() throws Exception {
+        SharedPool pool = new SharedPool();
+        AgencyExecutor executor = pool.newExecutor(3);
+        // Workers to spare, so that only the executor's limit holds the tasks back
+        pool.newExecutor(10);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            tasks.add(() -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return null;
+            });
+        }
+        for (Future<Void> result : executor.invokeAll(tasks)) {
+            result.get();
+        }
+        assertEquals(3, maxRunning.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invokeAllWithTimeout() throws Exception {
+        SharedPool pool = new SharedPool();
+        AgencyExecutor executor = pool.newExecutor(1);
+        Callable<String> fast = () -> "fast";
+        Callable<String> slow = () -> {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            return "slow";
+        };
+        long start = System.nanoTime();
+        List<Future<String>> results = executor.invokeAll(Arrays.asList(fast, slow, fast), 200,
+                TimeUnit.MILLISECONDS);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS / 2));
+        assertEquals("fast", results.get(0).get());
+        // Interrupted, and the one queued behind it never ran
+        assertTrue(results.get(1).isCancelled());
+        assertTrue(results.get(2).isCancelled());
+
+        // The slot is free again
+        assertEquals("fast", executor.submit(fast).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void platformWorkersGrowToTheSumOfTheLimits() throws Exception {
+        SharedPool pool = new SharedPool(8, false);
+        AgencyExecutor first = pool.newExecutor(2);
+        assertEquals(2, pool.getMaxWorkers());
+        AgencyExecutor second = pool.newExecutor(3);
+        assertEquals(5, pool.getMaxWorkers());
+
+        // All the slots of both executors busy at once
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            (i < 2 ? first : second).execute(() -> {
+                started.countDown();
+                await(release);
+            });
+        }
+        try {
+            assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        first.shutdown();
+        second.shutdown();
+        assertTrue(first.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(second.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GtfsCsvReaderTest {
+
+    @Test
+    public void quotedFields() throws IOException {
+        GtfsCsvReader reader = reader("stop_id,stop_name,stop_desc\n"
+                + "S1,\"Fowler Ave, USF\",\"The \"\"Library\"\" stop\"\n"
+                + " S2 , \"Café\" ,\"\"\n");
+        int id = reader.requireColumn("stop_id");
+        int name = reader.requireColumn("stop_name");
+        int desc = reader.requireColumn("stop_desc");
+
+        assertTrue(reader.next());
+        assertEquals("S1", reader.getString(id));
+        assertEquals("Fowler Ave, USF", reader.getString(name));
+        assertEquals("The \"Library\" stop", reader.getString(desc));
+
+        // Spaces around fields are dropped, and quoted fields may be non-ASCII or empty
+        assertTrue(reader.next());
+        assertEquals("S2", reader.getString(id));
+        assertEquals("Café", reader.getString(name));
+        assertTrue(reader.isEmpty(desc));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void quotedLineBreak() throws IOException {
+        GtfsCsvReader reader = reader("stop_id,stop_desc\nS1,\"first\nsecond\"\nS2,x\n");
+        assertTrue(reader.next());
+        assertEquals("first\nsecond", reader.getString(1));
+        assertTrue(reader.next());
+        assertEquals("S2", reader.getString(0));
+    }
+
+    @Test
+    public void byteOrderMark() throws IOException {
+        byte[] csv = "stop_id,stop_name\nS1,South\n".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+        bytes.write(csv);
+        GtfsCsvReader reader = new GtfsCsvReader("stops.txt", ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals(0, reader.requireColumn("stop_id"));
+        assertTrue(reader.next());
+        assertEquals("S1", reader.getString(0));
+    }
+
+    @Test
+    public void crlfAndBlankLines() throws IOException {
+        GtfsCsvReader reader = reader("trip_id,stop_sequence\r\nT1,1\r\n\r\nT1,2\r\n\r\n");
+        assertTrue(reader.next());
+        assertEquals(1, reader.getInt(1));
+        assertTrue(reader.next());
+        assertEquals("T1", reader.getString(0));
+        assertEquals(2, reader.getInt(1));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void reorderedAndMissingColumns() throws IOException {
+        GtfsCsvReader reader = reader("stop_sequence, stop_id ,trip_id,arrival_time\n3,S9,T7,08:15:30\n2,S8,T7\n");
+        assertEquals(2, reader.requireColumn("trip_id"));
+        assertEquals(1, reader.requireColumn("stop_id"));
+        assertEquals(0, reader.requireColumn("stop_sequence"));
+        assertEquals(-1, reader.column("shape_dist_traveled"));
+        try {
+            reader.requireColumn("departure_time");
+            fail("Missing column was found");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        assertTrue(reader.next());
+        assertEquals("T7", reader.getString(reader.requireColumn("trip_id")));
+        assertEquals(3, reader.getInt(reader.requireColumn("stop_sequence")));
+        assertEquals(8 * 3600 + 15 * 60 + 30, reader.getTime(3));
+        // A record shorter than the header has its last columns empty
+        assertTrue(reader.next());
+        assertTrue(reader.isEmpty(3));
+        assertEquals(GtfsStaticIndex.NONE, reader.getTime(3));
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedQuote() throws IOException {
+        GtfsCsvReader reader = reader("stop_id,stop_name\nS1,\"South\n");
+        reader.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidInteger() throws IOException {
+        GtfsCsvReader reader = reader("stop_sequence\n1a\n");
+        reader.next();
+        reader.getInt(0);
+    }
+
+    @Test(expected = IOException.class)
+    public void empty() throws IOException {
+        reader("");
+    }
+
+    /**
+     * Every number of parts puts the part boundaries in other places, including inside quoted fields with
+     * line breaks and escaped quotes, and no record may be lost or read twice
+     */
+    @Test
+    public void splitKeepsEveryRecordOnce() throws IOException {
+        StringBuilder csv = new StringBuilder("trip_id,stop_sequence,stop_id,stop_headsign\r\n");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String headsign = i % 7 == 0 ? "\"Loop\nlap " + i + "\"" : i % 5 == 0 ? "\"Say \"\"" + i + "\"\"\"" : "";
+            csv.append("T").append(i / 10).append(',').append(i).append(",S").append(i % 13).append(',')
+                    .append(headsign).append(i % 2 == 0 ? "\r\n" : "\n");
+            expected.add(i + "|" + (i % 7 == 0 ? "Loop\nlap " + i : i % 5 == 0 ? "Say \"" + i + "\"" : ""));
+        }
+        for (int parts = 1; parts <= 64; parts++) {
+            GtfsCsvReader reader = reader(csv.toString());
+            List<GtfsCsvReader> readers = reader.split(parts);
+            assertTrue(readers.size() <= parts);
+            List<String> records = new ArrayList<>();
+            for (GtfsCsvReader part : readers) {
+                int sequence = part.requireColumn("stop_sequence");
+                int headsign = part.requireColumn("stop_headsign");
+                while (part.next()) {
+                    records.add(part.getInt(sequence) + "|" + part.getString(headsign));
+                }
+            }
+            assertEquals("Split in " + parts, expected, records);
+        }
+    }
+
+    /**
+     * Parts of stop_times.txt as large as those the GTFS is read in (at least 1 MB each)
+     */
+    @Test
+    public void splitLargeFile() throws IOException {
+        StringBuilder csv = new StringBuilder("trip_id,arrival_time,departure_time,stop_id,stop_sequence\n");
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            csv.append("trip-").append(i / 50).append(",08:00:00,08:00:30,\"stop, ").append(i % 97).append("\",")
+                    .append(i).append('\n');
+        }
+        assertTrue(csv.length() > 3 << 20);
+        List<GtfsCsvReader> readers = reader(csv.toString()).split(3);
+        assertEquals(3, readers.size());
+        int next = 0;
+        for (GtfsCsvReader part : readers) {
+            assertTrue(part.remaining() >= 1 << 20);
+            int sequence = part.requireColumn("stop_sequence");
+            while (part.next()) {
+                assertEquals(next++, part.getInt(sequence));
+            }
+        }
+        assertEquals(count, next);
+    }
+
+    @Test
+    public void splitAfterRecordsWereRead() throws IOException {
+        GtfsCsvReader reader = reader("stop_id\nS1\nS2\nS3\nS4\nS5\n");
+        assertTrue(reader.next());
+        List<String> records = new ArrayList<>();
+        for (GtfsCsvReader part : reader.split(2)) {
+            while (part.next()) {
+                records.add(part.getString(0));
+            }
+        }
+        assertEquals(4, records.size());
+        assertEquals("S2", records.get(0));
+        assertEquals("S5", records.get(3));
+    }
+
+    private static GtfsCsvReader reader(String csv) throws IOException {
+        return new GtfsCsvReader("test.txt", ByteBuffer.wrap(csv.getBytes(StandardCharsets.UTF_8)));
+    }
+}
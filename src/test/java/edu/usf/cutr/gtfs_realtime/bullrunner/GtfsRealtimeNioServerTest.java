@@ -0,0 +1,354 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GtfsRealtimeNioServerTest {
+
+    private static final String PATH = "/vehicle-positions";
+
+    private BullRunnerGtfsRealtimeExporter mExporter;
+
+    private GtfsRealtimeNioServer mServer;
+
+    private int mPort;
+
+    @Before
+    public void setUp() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            mPort = socket.getLocalPort();
+        }
+        mExporter = new BullRunnerGtfsRealtimeExporter();
+        mServer = new GtfsRealtimeNioServer();
+        mServer.setSource(mExporter);
+        mServer.setUrl(new URL("http", "127.0.0.1", mPort, PATH));
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.stop();
+        mExporter.stop();
+    }
+
+    @Test
+    public void plainGet() throws IOException {
+        try (Client client = new Client()) {
+            client.request("", "Accept-Encoding: gzip");
+            Response response = client.readResponse();
+            assertEquals(200, response.mStatus);
+            assertEquals("gzip", response.mHeaders.get("content-encoding"));
+            assertEquals(0, FeedMessage.parseFrom(gunzip(response.mBody)).getEntityCount());
+            assertEquals(Long.toString(mExporter.getSnapshot().getIncrementalIndex()),
+                    response.mHeaders.get("x-incremental-index"));
+
+            // Same connection, kept alive
+            client.request("?debug", null);
+            response = client.readResponse();
+            assertEquals("text/plain; charset=utf-8", response.mHeaders.get("content-type"));
+            assertTrue(new String(response.mBody, StandardCharsets.UTF_8).contains("gtfs_realtime_version"));
+        }
+    }
+
+    @Test
+    public void longPollAnsweredByUpdate() throws IOException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("?after=" + index + "&timeout=30", "Accept-Encoding: gzip");
+            client.assertNoResponse();
+            publish("bus-1");
+            Response response = client.readResponse();
+            assertEquals(200, response.mStatus);
+            // Answered in the form the request asked for
+            assertEquals("gzip", response.mHeaders.get("content-encoding"));
+            assertEquals(Long.toString(index + 1), response.mHeaders.get("x-incremental-index"));
+            assertEquals("bus-1", FeedMessage.parseFrom(gunzip(response.mBody)).getEntity(0).getId());
+        }
+    }
+
+    @Test
+    public void longPollDebug() throws IOException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("?after=" + index + "&debug", "Accept-Encoding: gzip");
+            client.assertNoResponse();
+            publish("bus-1");
+            Response response = client.readResponse();
+            assertNull(response.mHeaders.get("content-encoding"));
+            assertTrue(new String(response.mBody, StandardCharsets.UTF_8).contains("bus-1"));
+        }
+    }
+
+    @Test
+    public void longPollTimesOut() throws IOException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("?after=" + index + "&timeout=1", null);
+            Response response = client.readResponse();
+            assertEquals(304, response.mStatus);
+            assertEquals(Long.toString(index), response.mHeaders.get("x-incremental-index"));
+        }
+    }
+
+    @Test
+    public void stream() throws IOException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("?stream", null);
+            Response response = client.readHead();
+            assertEquals(200, response.mStatus);
+            assertEquals("chunked", response.mHeaders.get("transfer-encoding"));
+            // The current feed first, then every new one, as length-delimited messages
+            assertEquals(0, FeedMessage.parseDelimitedFrom(new ByteArrayInputStream(client.readChunk()))
+                    .getEntityCount());
+            publish("bus-1");
+            FeedMessage feed = FeedMessage.parseDelimitedFrom(new ByteArrayInputStream(client.readChunk()));
+            assertEquals("bus-1", feed.getEntity(0).getId());
+            publish("bus-2");
+            feed = FeedMessage.parseDelimitedFrom(new ByteArrayInputStream(client.readChunk()));
+            assertEquals("bus-2", feed.getEntity(0).getId());
+            assertEquals(index + 2, mExporter.getSnapshot().getIncrementalIndex());
+        }
+    }
+
+    @Test
+    public void serverSentEvents() throws IOException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("", "Accept: text/event-stream");
+            Response response = client.readHead();
+            assertEquals("text/event-stream", response.mHeaders.get("content-type"));
+            assertEquals("id: " + index, client.readLine());
+            assertEquals("event: feed", client.readLine());
+            assertTrue(client.readLine().startsWith("data: "));
+            assertEquals("", client.readLine());
+
+            publish("bus-1");
+            assertEquals("id: " + (index + 1), client.readLine());
+            assertEquals("event: feed", client.readLine());
+            String data = client.readLine();
+            assertEquals("", client.readLine());
+            FeedMessage feed = FeedMessage.parseFrom(Base64.getDecoder().decode(data.substring("data: ".length())));
+            assertEquals("bus-1", feed.getEntity(0).getId());
+        }
+    }
+
+    @Test
+    public void serverSentEventsResumeAfterLastEventId() throws IOException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("?sse", "Last-Event-ID: " + index);
+            client.readHead();
+            // Already has the current feed, so the first event is the next one
+            client.assertNoResponse();
+            publish("bus-1");
+            assertEquals("id: " + (index + 1), client.readLine());
+        }
+    }
+
+    /**
+     * A client that fills the request buffer while its long-poll waits must not keep the selector thread busy
+     */
+    @Test
+    public void floodWhileWaiting() throws IOException, InterruptedException {
+        long index = mExporter.getSnapshot().getIncrementalIndex();
+        try (Client client = new Client()) {
+            client.request("?after=" + index + "&timeout=30", null);
+            // Several times the 8 KB the server keeps of a request
+            byte[] junk = new byte[32 * 1024];
+            Arrays.fill(junk, (byte) 'x');
+            OutputStream out = client.mSocket.getOutputStream();
+            out.write(junk);
+            out.flush();
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long selector = selectorThread().getId();
+            Thread.sleep(200);
+            long cpuTime = threads.getThreadCpuTime(selector);
+            Thread.sleep(500);
+            cpuTime = threads.getThreadCpuTime(selector) - cpuTime;
+            assertTrue("Selector thread busy for " + TimeUnit.NANOSECONDS.toMillis(cpuTime) + " ms",
+                    cpuTime < TimeUnit.MILLISECONDS.toNanos(100));
+
+            // Others are still served, and so is the long-poll
+            try (Client other = new Client()) {
+                other.request("", null);
+                assertEquals(200, other.readResponse().mStatus);
+            }
+            publish("bus-1");
+            Response response = client.readResponse();
+            assertEquals(200, response.mStatus);
+            assertEquals("bus-1", FeedMessage.parseFrom(response.mBody).getEntity(0).getId());
+        }
+    }
+
+    private Thread selectorThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("gtfs-realtime-nio-" + mPort)) {
+                return thread;
+            }
+        }
+        throw new AssertionError("No selector thread");
+    }
+
+    private void publish(String vehicleId) {
+        GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+        update.addEntity(FeedEntity.newBuilder().setId(vehicleId).setVehicle(VehiclePosition.newBuilder()
+                .setPosition(Position.newBuilder().setLatitude(28.06f).setLongitude(-82.41f))).build());
+        mExporter.handleFullUpdate(update);
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return readFully(in, -1);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            new DataInputStream(in).readFully(bytes);
+            return bytes;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Response {
+        private int mStatus;
+        private final Map<String, String> mHeaders = new HashMap<>();
+        private byte[] mBody;
+    }
+
+    /**
+     * Plain HTTP/1.1 over a socket, to see exactly when the server answers
+     */
+    private class Client implements AutoCloseable {
+        private final Socket mSocket;
+        private final InputStream mIn;
+
+        Client() throws IOException {
+            mSocket = new Socket(InetAddress.getLoopbackAddress(), mPort);
+            mSocket.setSoTimeout(10000);
+            mIn = mSocket.getInputStream();
+        }
+
+        void request(String query, String header) throws IOException {
+            String request = "GET " + PATH + query + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (header != null ? header + "\r\n" : "") + "\r\n";
+            OutputStream out = mSocket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        void assertNoResponse() throws IOException {
+            mSocket.setSoTimeout(300);
+            try {
+                int b = mIn.read();
+                fail("Unexpected response, starting with " + (char) b);
+            } catch (SocketTimeoutException ex) {
+                // Still waiting, as expected
+            } finally {
+                mSocket.setSoTimeout(10000);
+            }
+        }
+
+        Response readHead() throws IOException {
+            Response response = new Response();
+            String statusLine = readLine();
+            response.mStatus = Integer.parseInt(statusLine.split(" ")[1]);
+            for (String line; !(line = readLine()).isEmpty(); ) {
+                int colon = line.indexOf(':');
+                response.mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+            return response;
+        }
+
+        Response readResponse() throws IOException {
+            Response response = readHead();
+            String length = response.mHeaders.get("content-length");
+            response.mBody = readFully(mIn, length == null ? 0 : Integer.parseInt(length));
+            return response;
+        }
+
+        byte[] readChunk() throws IOException {
+            int size = Integer.parseInt(readLine(), 16);
+            byte[] chunk = readFully(mIn, size);
+            assertEquals("", readLine());
+            return chunk;
+        }
+
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = mIn.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Connection closed");
+                }
+                line.append((char) b);
+            }
+            int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1
+                    : line.length();
+            return line.substring(0, end);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceDayTest {
+
+    private static final int SUNDAY = 1;
+    private static final int MONDAY = 1 << 1;
+    private static final int SATURDAY = 1 << 6;
+    private static final int WEEKDAYS = 0b0111110;
+
+    /**
+     * Sunday 4 to Saturday 10 March 2018
+     */
+    private static final LocalDate SUN = LocalDate.of(2018, 3, 4);
+    private static final LocalDate MON = SUN.plusDays(1);
+    private static final LocalDate WED = SUN.plusDays(3);
+    private static final LocalDate THU = SUN.plusDays(4);
+    private static final LocalDate SAT = SUN.plusDays(6);
+
+    @Test
+    public void weekdayBits() {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addService("sunday", SUNDAY, 20180101, 20181231);
+        builder.addService("monday", MONDAY, 20180101, 20181231);
+        builder.addService("saturday", SATURDAY, 20180101, 20181231);
+        GtfsStaticIndex index = builder.build();
+
+        assertEquals(Collections.singletonList("sunday"), index.getServiceDay(SUN).getActiveServiceIds());
+        assertEquals(Collections.singletonList("monday"), index.getServiceDay(MON).getActiveServiceIds());
+        assertEquals(Collections.singletonList("saturday"), index.getServiceDay(SAT).getActiveServiceIds());
+        assertFalse(index.getServiceDay(WED).hasService());
+    }
+
+    @Test
+    public void dateBoundsIncluded() {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addService("week", 0b1111111, 20180305, 20180308);
+        GtfsStaticIndex index = builder.build();
+
+        assertFalse(index.isServiceActive(0, SUN));
+        assertTrue(index.isServiceActive(0, MON));
+        assertTrue(index.isServiceActive(0, THU));
+        assertFalse(index.isServiceActive(0, THU.plusDays(1)));
+    }
+
+    @Test
+    public void holidayRemovesService() {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addService("weekday", WEEKDAYS, 20180101, 20181231);
+        builder.addServiceException("weekday", 20180307, 2);
+        builder.addRoute("A", "10");
+        builder.addTrip("A", "weekday", "A-weekday", null);
+        GtfsStaticIndex index = builder.build();
+
+        assertTrue(index.isServiceActive(0, MON));
+        assertFalse(index.isServiceActive(0, WED));
+        ServiceDay holiday = index.getServiceDay(WED);
+        assertFalse(holiday.hasService());
+        assertNull(holiday.getTripId(index.findRoute("A")));
+        assertEquals(0, holiday.getTrips(index.findRoute("A")).length);
+        assertEquals("A-weekday", index.getServiceDay(THU).getTripId(index.findRoute("A")));
+    }
+
+    @Test
+    public void exceptionAddsService() {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addService("weekday", WEEKDAYS, 20180101, 20181231);
+        // Only in calendar_dates.txt
+        builder.addServiceException("event", 20180310, GtfsStaticIndex.EXCEPTION_ADDED);
+        // In calendar.txt, added on a date outside its range
+        builder.addService("summer", WEEKDAYS, 20180601, 20180831);
+        builder.addServiceException("summer", 20180305, GtfsStaticIndex.EXCEPTION_ADDED);
+        GtfsStaticIndex index = builder.build();
+
+        assertEquals(Collections.singletonList("event"), index.getServiceDay(SAT).getActiveServiceIds());
+        assertFalse(index.getServiceDay(SAT.plusDays(7)).hasService());
+        assertEquals(Arrays.asList("weekday", "summer"), index.getServiceDay(MON).getActiveServiceIds());
+        assertEquals(Collections.singletonList("weekday"), index.getServiceDay(WED).getActiveServiceIds());
+    }
+
+    @Test
+    public void severalServicesOnTheSameDay() {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addService("weekday", WEEKDAYS, 20180101, 20181231);
+        builder.addService("thursday", 1 << 4, 20180101, 20181231);
+        builder.addRoute("A", "10");
+        builder.addTrip("A", "weekday", "A-weekday", null);
+        builder.addTrip("A", "thursday", "A-thursday", null);
+        GtfsStaticIndex index = builder.build();
+
+        ServiceDay thursday = index.getServiceDay(THU);
+        assertEquals(Arrays.asList("weekday", "thursday"), thursday.getActiveServiceIds());
+        int route = index.findRoute("A");
+        // Both trips run, the last service of calendar.txt gives the trip of the route
+        assertEquals(new HashSet<>(Arrays.asList("A-weekday", "A-thursday")), tripIds(index, thursday.getTrips(route)));
+        assertEquals("A-thursday", thursday.getTripId(route));
+
+        ServiceDay wednesday = index.getServiceDay(WED);
+        assertEquals(Collections.singleton("A-weekday"), tripIds(index, wednesday.getTrips(route)));
+        assertEquals("A-weekday", wednesday.getTripId(route));
+    }
+
+    private static HashSet<String> tripIds(GtfsStaticIndex index, int[] trips) {
+        HashSet<String> tripIds = new HashSet<>();
+        for (int trip : trips) {
+            tripIds.add(index.getTripId(trip));
+        }
+        return tripIds;
+    }
+}
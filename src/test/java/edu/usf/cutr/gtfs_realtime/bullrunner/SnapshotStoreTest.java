@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway.OneBusAwayFeedHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSnapshots;
+
+    private SnapshotStore mStore;
+
+    private BullRunnerConfigExtract mConfig;
+
+    @Before
+    public void setUp() throws IOException {
+        mSnapshots = new File(mFolder.getRoot(), "snapshots");
+        mStore = new SnapshotStore(mSnapshots);
+
+        // The GTFS is only looked at for its path and version
+        File gtfs = mFolder.newFile("gtfs.zip");
+        Files.write(gtfs.toPath(), new byte[]{1, 2, 3});
+        mConfig = new BullRunnerConfigExtract();
+        mConfig.setGtfsPath(gtfs);
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addRoute("A", "10");
+        builder.addService("ALL", 0b1111111, 20180101, 20181231);
+        builder.addTrip("A", "ALL", "A-morning", "north");
+        builder.addStop("S1", 28.05, -82.41);
+        builder.addStop("S2", 28.06, -82.41);
+        builder.addShapePoint("north", 1, 28.05, -82.41);
+        builder.addShapePoint("north", 2, 28.06, -82.41);
+        builder.addStopTime("A-morning", "S1", 1, 8 * 3600, 8 * 3600);
+        builder.addStopTime("A-morning", "S2", 2, 8 * 3600 + 300, 8 * 3600 + 300);
+        mConfig.mIndex = builder.build();
+        mConfig.mRoutesMap = Collections.singletonMap("Route A", 10);
+    }
+
+    @Test
+    public void configRoundTrip() throws IOException {
+        mStore.saveConfig(mConfig);
+
+        BullRunnerConfigExtract restored = restoredConfig();
+        assertTrue(mStore.loadConfig(restored));
+        assertEquals(mConfig.mRoutesMap, restored.mRoutesMap);
+        assertArrayEquals(bytes(mConfig.mIndex), bytes(restored.mIndex));
+        assertEquals("A-morning", restored.mIndex.findTripId("A", "ALL"));
+        // Saved again over the previous snapshot
+        mStore.saveConfig(restored);
+        assertTrue(mStore.loadConfig(restoredConfig()));
+    }
+
+    @Test
+    public void noSnapshot() {
+        assertFalse(mStore.loadConfig(restoredConfig()));
+        assertNull(mStore.loadFeed());
+    }
+
+    @Test
+    public void otherGtfsVersion() throws IOException {
+        mStore.saveConfig(mConfig);
+        Files.write(mConfig.getGtfsPath().toPath(), new byte[]{1, 2, 3, 4});
+
+        BullRunnerConfigExtract restored = restoredConfig();
+        GtfsStaticIndex index = restored.mIndex;
+        assertFalse(mStore.loadConfig(restored));
+        assertSame(index, restored.mIndex);
+
+        // Nor another GTFS
+        File other = mFolder.newFile("other.zip");
+        restored.setGtfsPath(other);
+        assertFalse(mStore.loadConfig(restored));
+    }
+
+    @Test
+    public void otherMagic() throws IOException {
+        mStore.saveConfig(mConfig);
+        overwrite(0, 0x42525453);
+        assertFalse(mStore.loadConfig(restoredConfig()));
+    }
+
+    @Test
+    public void otherFormatVersion() throws IOException {
+        mStore.saveConfig(mConfig);
+        overwrite(4, 3);
+        assertFalse(mStore.loadConfig(restoredConfig()));
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        mStore.saveConfig(mConfig);
+        File snapshot = new File(mSnapshots, "config.snapshot");
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.setLength(file.length() - 16);
+        }
+        assertFalse(mStore.loadConfig(restoredConfig()));
+    }
+
+    @Test
+    public void feedRoundTrip() {
+        FeedHeader.Builder header = FeedHeader.newBuilder().setGtfsRealtimeVersion("1.0").setTimestamp(1520500000);
+        header.setExtension(GtfsRealtimeOneBusAway.obaFeedHeader,
+                OneBusAwayFeedHeader.newBuilder().setIncrementalIndex(42).build());
+        FeedMessage feed = FeedMessage.newBuilder().setHeader(header).addEntity(FeedEntity.newBuilder()
+                .setId("bus-1").setVehicle(VehiclePosition.newBuilder().setPosition(Position.newBuilder()
+                        .setLatitude(28.06f).setLongitude(-82.41f)))).build();
+        mStore.saveFeed(new FeedSnapshot(feed, 42));
+
+        FeedMessage restored = mStore.loadFeed();
+        assertEquals(feed, restored);
+        // With the incremental index, which the exporter carries on from
+        assertEquals(42, restored.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader)
+                .getIncrementalIndex());
+        assertFalse(Arrays.asList(mSnapshots.list()).contains("vehicle-positions.pb.tmp"));
+    }
+
+    @Test
+    public void invalidFeed() throws IOException {
+        assertTrue(mSnapshots.mkdirs());
+        Files.write(new File(mSnapshots, "vehicle-positions.pb").toPath(), new byte[]{(byte) 0xff, 0x01});
+        assertNull(mStore.loadFeed());
+    }
+
+    private BullRunnerConfigExtract restoredConfig() {
+        BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+        config.setGtfsPath(mConfig.getGtfsPath());
+        return config;
+    }
+
+    private void overwrite(int position, int value) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(mSnapshots, "config.snapshot"), "rw")) {
+            file.seek(position);
+            file.writeInt(value);
+        }
+    }
+
+    private static byte[] bytes(GtfsStaticIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            index.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+}
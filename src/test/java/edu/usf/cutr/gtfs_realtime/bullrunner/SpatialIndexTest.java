@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shapes laid out in meters east (x) and north (y) of LAT, LON, far enough apart not to interfere:
+ * <ul>
+ * <li>loop: a 1000 x 800 m rectangle, counterclockwise from and back to (0, 0)</li>
+ * <li>back: 1000 m east along y = 3000, then back west along y = 3040</li>
+ * <li>dense: 1 m segments from (0, 9000) to (100, 9000), then on to (1000, 9000)</li>
+ * <li>a trip without shape, through (0, 6000), (300, 6000) and (300, 6400)</li>
+ * </ul>
+ */
+public class SpatialIndexTest {
+
+    private static final double LAT = 28.06;
+    private static final double LON = -82.41;
+
+    private static final double METERS_PER_DEGREE_LAT = Math.toRadians(6371000);
+
+    /**
+     * The index projects positions on a plane tangent to the middle of the GTFS, a few km north of LAT, which
+     * makes its distances east about 0.1% shorter than the ones here
+     */
+    private static final double DELTA = 2;
+
+    private GtfsStaticIndex mIndex;
+
+    private SpatialIndex mSpatialIndex;
+
+    @Before
+    public void setUp() {
+        GtfsStaticIndex.Builder builder = new GtfsStaticIndex.Builder();
+        builder.addRoute("R", "1");
+        builder.addService("ALL", 0b1111111, 20180101, 20181231);
+
+        shape(builder, "loop", 0, 0, 1000, 0, 1000, 800, 0, 800, 0, 0);
+        builder.addTrip("R", "ALL", "loop-trip", "loop");
+        stop(builder, "L0", 0, 0);
+        stop(builder, "L1", 500, -10);
+        // Too far from the shape for the grid search around it
+        stop(builder, "L2", 1080, 800);
+        stopTimes(builder, "loop-trip", "L0", "L1", "nowhere", "L2", "L0");
+
+        shape(builder, "back", 0, 3000, 1000, 3000, 1000, 3040, 0, 3040);
+        builder.addTrip("R", "ALL", "back-trip", "back");
+        stop(builder, "B0", 0, 3000);
+        // 25 m from the way out, 15 m from the way back
+        stop(builder, "B1", 500, 3025);
+        stop(builder, "B2", 1000, 3020);
+        stopTimes(builder, "back-trip", "B0", "B1", "B2", "B1");
+        builder.addTrip("R", "ALL", "return-trip", "back");
+        // 38 m from the way out, 2 m from the way back
+        stop(builder, "B3", 300, 3038);
+        stopTimes(builder, "return-trip", "B0", "B3");
+
+        double[] dense = new double[2 * 102];
+        for (int i = 0; i <= 100; i++) {
+            dense[2 * i] = i;
+            dense[2 * i + 1] = 9000;
+        }
+        dense[2 * 101] = 1000;
+        dense[2 * 101 + 1] = 9000;
+        shape(builder, "dense", dense);
+        builder.addTrip("R", "ALL", "dense-trip", "dense");
+        stop(builder, "D0", 0, 9000);
+        stop(builder, "D1", 50, 9005);
+        stopTimes(builder, "dense-trip", "D0", "D1");
+
+        builder.addTrip("R", "ALL", "shapeless-trip", null);
+        stop(builder, "S0", 0, 6000);
+        stop(builder, "S1", 300, 6000);
+        stop(builder, "S2", 300, 6400);
+        stopTimes(builder, "shapeless-trip", "S0", "S1", "S2");
+        // A single stop with a position, not enough for a shape
+        builder.addTrip("R", "ALL", "one-stop-trip", null);
+        stopTimes(builder, "one-stop-trip", "S0", "nowhere");
+
+        mIndex = builder.build();
+        mSpatialIndex = new SpatialIndex(mIndex);
+    }
+
+    @Test
+    public void snapToClosestSegment() {
+        SpatialIndex.Snap snap = new SpatialIndex.Snap();
+        // 120 m south of the bottom of the loop, a cell and more away
+        assertTrue(mSpatialIndex.snap(lat(-120), lon(500), 150, snap));
+        assertEquals(shape("loop"), snap.mShape);
+        assertEquals(120, snap.mDistance, DELTA);
+        assertEquals(500, snap.mDistanceAlong, DELTA);
+        assertFalse(mSpatialIndex.snap(lat(-120), lon(500), 100, snap));
+
+        // Inside the loop, closest to its east side
+        assertTrue(mSpatialIndex.snap(lat(400), lon(980), 150, snap));
+        assertEquals(20, snap.mDistance, DELTA);
+        assertEquals(1400, snap.mDistanceAlong, DELTA);
+
+        // The shape built through the stops of the shapeless trip
+        assertTrue(mSpatialIndex.snap(lat(6200), lon(250), 150, snap));
+        assertEquals(mSpatialIndex.getTripShape(trip("shapeless-trip")), snap.mShape);
+        assertEquals(50, snap.mDistance, DELTA);
+        assertEquals(500, snap.mDistanceAlong, DELTA);
+
+        // Only to the given shape, however far
+        assertTrue(mSpatialIndex.snap(shape("loop"), x(250), y(6200), 10000, snap));
+        assertEquals(shape("loop"), snap.mShape);
+        assertEquals(5400, snap.mDistance, DELTA);
+    }
+
+    @Test
+    public void findEveryPass() {
+        // Both ends of the loop
+        int[] segments = new int[8];
+        int count = mSpatialIndex.findSegments(shape("loop"), x(0), y(0), 50, segments);
+        assertEquals(2, count);
+        double[] along = new double[count];
+        SpatialIndex.Snap snap = new SpatialIndex.Snap();
+        for (int i = 0; i < count; i++) {
+            mSpatialIndex.project(segments[i], x(0), y(0), snap);
+            assertEquals(0, snap.mDistance, DELTA);
+            along[i] = snap.mDistanceAlong;
+        }
+        Arrays.sort(along);
+        assertEquals(0, along[0], DELTA);
+        assertEquals(3600, along[1], DELTA);
+
+        // Counted past the end of the buffer
+        assertEquals(2, mSpatialIndex.findSegments(shape("loop"), x(0), y(0), 50, new int[1]));
+        assertTrue(mSpatialIndex.findSegments(shape("dense"), x(50), y(9005), 100, new int[64]) > 64);
+    }
+
+    @Test
+    public void shapesOfTripsWithoutOne() {
+        assertEquals(shape("loop"), mSpatialIndex.getTripShape(trip("loop-trip")));
+        int shapeless = mSpatialIndex.getTripShape(trip("shapeless-trip"));
+        assertTrue(shapeless >= mIndex.getShapeCount());
+        assertDistances("shapeless-trip", 0, 300, 700);
+        assertEquals(GtfsStaticIndex.NONE, mSpatialIndex.getTripShape(trip("one-stop-trip")));
+        assertDistances("one-stop-trip", 0, 0);
+    }
+
+    @Test
+    public void stopsOfLoop() {
+        // The first stop is also at the end of the loop, it is snapped to the start, and the last to the end.
+        // The stop without a position is halfway between its neighbors, and the one too far for the grid search
+        // is snapped by going through the whole shape.
+        assertDistances("loop-trip", 0, 500, 1150, 1800, 3600);
+    }
+
+    @Test
+    public void stopsOnFirstPassWithinTolerance() {
+        // B1 is closer to the way back, but still snapped to the way out on the first visit, and to the way back
+        // on the second. B2 is snapped to the segment joining the two.
+        assertDistances("back-trip", 0, 500, 1020, 1540);
+        // 36 m closer to the way back, more than the tolerance
+        assertDistances("return-trip", 0, 1740);
+        // More segments near the stop than are looked at through the grid
+        assertDistances("dense-trip", 0, 50);
+    }
+
+    @Test
+    public void nextStopTime() {
+        int trip = trip("loop-trip");
+        int start = mIndex.getStopTimesStart(trip);
+        assertEquals(start, mSpatialIndex.nextStopTime(trip, -1));
+        // Further along, not at the same place
+        assertEquals(start + 1, mSpatialIndex.nextStopTime(trip, 0));
+        assertEquals(start + 2, mSpatialIndex.nextStopTime(trip, 600));
+        assertEquals(start + 4, mSpatialIndex.nextStopTime(trip, 1800));
+        assertEquals(mIndex.getStopTimesEnd(trip), mSpatialIndex.nextStopTime(trip, 3600));
+
+        trip = trip("one-stop-trip");
+        assertEquals(mIndex.getStopTimesEnd(trip), mSpatialIndex.nextStopTime(trip, 0));
+    }
+
+    private void assertDistances(String tripId, double... expected) {
+        int trip = trip(tripId);
+        int start = mIndex.getStopTimesStart(trip);
+        double[] distances = new double[mIndex.getStopTimesEnd(trip) - start];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = mSpatialIndex.getStopTimeDistance(start + i);
+        }
+        assertEquals(tripId, expected.length, distances.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(tripId + " " + Arrays.toString(distances), expected[i], distances[i], DELTA);
+        }
+    }
+
+    /**
+     * @param points x and y of each point, in meters
+     */
+    private static void shape(GtfsStaticIndex.Builder builder, String shapeId, double... points) {
+        for (int i = 0; i < points.length; i += 2) {
+            builder.addShapePoint(shapeId, i / 2 + 1, lat(points[i + 1]), lon(points[i]));
+        }
+    }
+
+    private static void stop(GtfsStaticIndex.Builder builder, String stopId, double x, double y) {
+        builder.addStop(stopId, lat(y), lon(x));
+    }
+
+    private static void stopTimes(GtfsStaticIndex.Builder builder, String tripId, String... stopIds) {
+        for (int i = 0; i < stopIds.length; i++) {
+            int time = 8 * 3600 + 120 * i;
+            builder.addStopTime(tripId, stopIds[i], i + 1, time, time);
+        }
+    }
+
+    private int trip(String tripId) {
+        for (int trip = 0; trip < mIndex.getTripCount(); trip++) {
+            if (mIndex.getTripId(trip).equals(tripId)) {
+                return trip;
+            }
+        }
+        throw new AssertionError("No trip " + tripId);
+    }
+
+    private int shape(String shapeId) {
+        for (int shape = 0; shape < mIndex.getShapeCount(); shape++) {
+            if (mIndex.getShapeId(shape).equals(shapeId)) {
+                return shape;
+            }
+        }
+        throw new AssertionError("No shape " + shapeId);
+    }
+
+    private double x(double x) {
+        return mSpatialIndex.x(lon(x));
+    }
+
+    private double y(double y) {
+        return mSpatialIndex.y(lat(y));
+    }
+
+    private static double lat(double y) {
+        return LAT + y / METERS_PER_DEGREE_LAT;
+    }
+
+    private static double lon(double x) {
+        return LON + x / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(LAT)));
+    }
+}
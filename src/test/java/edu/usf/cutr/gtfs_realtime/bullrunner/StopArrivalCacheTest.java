@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StopArrivalCacheTest {
+
+    private static final long TTL_MS = 180000;
+
+    private final StopArrivalCache mCache = new StopArrivalCache(TTL_MS);
+
+    @Test
+    public void expiry() {
+        mCache.put("bus-1", arrivals("S1", 1100, "S2", 1200), 1000000);
+        assertEquals(1100, mCache.getArrival("S1", "bus-1", 1000000 + TTL_MS));
+        assertEquals(1000000, mCache.getDownloadTime("bus-1", 1000000 + TTL_MS));
+
+        long expired = 1000000 + TTL_MS + 1;
+        assertEquals(StopArrivalCache.NO_ARRIVAL, mCache.getArrival("S2", "bus-1", expired));
+        assertTrue(mCache.getArrivals("bus-1", expired).isEmpty());
+        assertEquals(0, mCache.getDownloadTime("bus-1", expired));
+        // Dropped, not only hidden
+        assertEquals(StopArrivalCache.NO_ARRIVAL, mCache.getArrival("S1", "bus-1", 1000000));
+    }
+
+    @Test
+    public void replacedAsAWhole() {
+        mCache.put("bus-1", arrivals("S1", 1100, "S2", 1200), 1000000);
+        mCache.put("bus-2", arrivals("S2", 1250), 1000000);
+        mCache.put("bus-1", arrivals("S3", 1400, "S2", 1300), 1060000);
+
+        assertEquals(StopArrivalCache.NO_ARRIVAL, mCache.getArrival("S1", "bus-1", 1060000));
+        assertEquals(1300, mCache.getArrival("S2", "bus-1", 1060000));
+        assertEquals(1250, mCache.getArrival("S2", "bus-2", 1060000));
+        // Earliest first
+        assertEquals(Arrays.asList("S2", "S3"), Arrays.asList(mCache.getArrivals("bus-1", 1060000).keySet()
+                .toArray()));
+
+        mCache.retainAll(Collections.singleton("bus-2"));
+        assertEquals(StopArrivalCache.NO_ARRIVAL, mCache.getArrival("S2", "bus-1", 1060000));
+        assertEquals(1250, mCache.getArrival("S2", "bus-2", 1060000));
+    }
+
+    @Test
+    public void selectForDownload() {
+        mCache.put("recent", arrivals("S1", 1100), 1050000);
+        mCache.put("old", arrivals("S1", 1100), 1000000);
+        mCache.put("older", arrivals("S1", 1100), 990000);
+        List<String> vehicles = Arrays.asList("recent", "old", "none", "older");
+
+        // Those without predictions first, then the oldest, but none downloaded less than a minute ago
+        assertEquals(Arrays.asList("none", "older", "old"), mCache.selectForDownload(vehicles, 60000, 4, 1080000));
+        assertEquals(Arrays.asList("none", "older"), mCache.selectForDownload(vehicles, 60000, 2, 1080000));
+    }
+
+    /**
+     * A vehicle of route A of src/test/resources/gtfs, halfway from S1 to S2 on the morning trip at 08:03:30
+     */
+    @Test
+    public void matchedStopTimeUpdates() throws Exception {
+        BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+        config.setGtfsPath(new File(StopArrivalCacheTest.class.getResource("/gtfs").toURI()));
+        GtfsStaticIndex index = config.readIndex();
+        ServiceDay serviceDay = index.getServiceDay(LocalDate.of(2018, 3, 8));
+        TripMatcher tripMatcher = new TripMatcher(index);
+        long time = serviceDay.getStartEpochSeconds() + GtfsStaticIndex.parseTime("08:03:30");
+        SyncromaticsVehicle vehicle = new SyncromaticsVehicle("bus-1", "Bus 1", 28.0525, -82.410, 0, 0, time, 0,
+                null, "A");
+        TripMatcher.Match match = tripMatcher.match(vehicle.mId, serviceDay.getTrips(index.findRoute("A")),
+                vehicle.mLat, vehicle.mLon, time, serviceDay);
+        long now = time * 1000;
+
+        // On the schedule from where the vehicle is, 150 s of the 300 s to S2 left
+        List<StopTimeUpdate> updates = matched(index, tripMatcher, vehicle, match, now);
+        assertStopTimeUpdate(updates.get(0), 2, "S2", time + 150);
+        assertStopTimeUpdate(updates.get(1), 3, "S3", time + 450);
+        assertEquals(2, updates.size());
+
+        // Predicted at S3 only
+        mCache.put("bus-1", arrivals("S3", time + 600), now);
+        updates = matched(index, tripMatcher, vehicle, match, now);
+        assertStopTimeUpdate(updates.get(0), 2, "S2", time + 150);
+        assertStopTimeUpdate(updates.get(1), 3, "S3", time + 600);
+
+        // On the schedule from the prediction at S2, and the past ones ignored
+        mCache.put("bus-1", arrivals("S2", time + 60, "S3", time - 30), now);
+        updates = matched(index, tripMatcher, vehicle, match, now);
+        assertStopTimeUpdate(updates.get(0), 2, "S2", time + 60);
+        assertStopTimeUpdate(updates.get(1), 3, "S3", time + 360);
+
+        // Expired
+        updates = matched(index, tripMatcher, vehicle, match, now + TTL_MS + 1);
+        assertStopTimeUpdate(updates.get(0), 2, "S2", time + 150);
+    }
+
+    @Test
+    public void predictedStopTimeUpdates() throws Exception {
+        BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+        config.setGtfsPath(new File(StopArrivalCacheTest.class.getResource("/gtfs").toURI()));
+        GtfsStaticIndex index = config.readIndex();
+        long time = 1520500000;
+        SyncromaticsVehicle vehicle = new SyncromaticsVehicle("bus-1", "Bus 1", 28.0525, -82.410, 0, 0, time, 0,
+                "A-afternoon", "A");
+        // S4 isn't on the trip, the arrival at S1 in the past is left out, and the next one is on the next lap
+        mCache.put("bus-1", arrivals("S1", time - 60, "S2", time + 100, "S4", time + 150, "S3", time + 200),
+                time * 1000);
+        mCache.put("bus-2", arrivals("S2", time + 120), time * 1000);
+
+        TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+        GtfsRealtimeProviderImpl.addPredictedStopTimeUpdates(tripUpdate, index, mCache, vehicle, "A-afternoon",
+                time * 1000);
+        List<StopTimeUpdate> updates = tripUpdate.getStopTimeUpdateList();
+        assertEquals(2, updates.size());
+        assertEquals(20, updates.get(0).getStopSequence());
+        assertEquals("S2", updates.get(0).getStopId());
+        assertEquals(time + 100, updates.get(0).getArrival().getTime());
+        assertEquals(30, updates.get(1).getStopSequence());
+        assertEquals(time + 200, updates.get(1).getArrival().getTime());
+
+        // Back to the start of the trip
+        mCache.put("bus-1", arrivals("S2", time + 100, "S3", time + 200, "S1", time + 300), time * 1000);
+        tripUpdate = TripUpdate.newBuilder();
+        GtfsRealtimeProviderImpl.addPredictedStopTimeUpdates(tripUpdate, index, mCache, vehicle, "A-afternoon",
+                time * 1000);
+        assertEquals(2, tripUpdate.getStopTimeUpdateCount());
+        assertEquals("S3", tripUpdate.getStopTimeUpdate(1).getStopId());
+    }
+
+    private List<StopTimeUpdate> matched(GtfsStaticIndex index, TripMatcher tripMatcher,
+                                         SyncromaticsVehicle vehicle, TripMatcher.Match match, long now) {
+        TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+        GtfsRealtimeProviderImpl.addMatchedStopTimeUpdates(tripUpdate, index, tripMatcher, mCache, vehicle, match,
+                now);
+        return tripUpdate.getStopTimeUpdateList();
+    }
+
+    private static void assertStopTimeUpdate(StopTimeUpdate update, int stopSequence, String stopId, long arrival) {
+        assertEquals(stopSequence, update.getStopSequence());
+        assertEquals(stopId, update.getStopId());
+        assertEquals(arrival, update.getArrival().getTime());
+        assertEquals(arrival, update.getDeparture().getTime());
+    }
+
+    /**
+     * @param arrivals stop ids, each followed by its arrival time
+     */
+    private static Map<String, Long> arrivals(Object... arrivals) {
+        Map<String, Long> map = new HashMap<>();
+        for (int i = 0; i < arrivals.length; i += 2) {
+            map.put((String) arrivals[i], ((Number) arrivals[i + 1]).longValue());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SyncromaticsHttpClientTest {
+
+    private static final String BODY = "[{\"ID\":1,\"Name\":\"Bus 1\"}]";
+
+    private static final String ETAG = "\"v1\"";
+
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+
+    private HttpServer mServer;
+
+    private SyncromaticsHttpClient mClient;
+
+    /**
+     * Remote port of every request received, one per connection used
+     */
+    private final List<Integer> mPorts = new CopyOnWriteArrayList<>();
+
+    /**
+     * Validator headers of every request received, "If-None-Match|If-Modified-Since"
+     */
+    private final List<String> mConditions = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/plain", http -> respond(http, false, true, false));
+        mServer.createContext("/gzip", http -> respond(http, true, false, false));
+        mServer.createContext("/etag", http -> respond(http, false, true, false));
+        mServer.createContext("/last-modified", http -> respond(http, false, false, true));
+        mServer.start();
+        mClient = new SyncromaticsHttpClient(5000, 8);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void reusesConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(BODY, read(mClient.get(url("/plain"), null)));
+        }
+        assertEquals(5, mPorts.size());
+        assertEquals(1, new HashSet<>(mPorts).size());
+        assertEquals(5, mClient.getRequestCount());
+    }
+
+    @Test
+    public void decodesGzip() throws IOException {
+        assertEquals(BODY, read(mClient.get(url("/gzip"), null)));
+    }
+
+    @Test
+    public void countsBytesAsTransferred() throws IOException {
+        read(mClient.get(url("/plain"), null));
+        assertEquals(BODY.length(), mClient.getBytesReceived());
+        read(mClient.get(url("/gzip"), null));
+        assertEquals(BODY.length() + gzip(BODY).length, mClient.getBytesReceived());
+    }
+
+    @Test
+    public void notModifiedOnceCommitted() throws IOException {
+        URL url = url("/etag");
+        assertNotNull(read(mClient.getIfModified(url, null)));
+        // Not committed yet, so the whole body comes again
+        assertNotNull(read(mClient.getIfModified(url, null)));
+        mClient.commit(url);
+        assertNull(mClient.getIfModified(url, null));
+        assertEquals(1, mClient.getNotModifiedCount());
+        assertEquals("null|null", mConditions.get(0));
+        assertEquals("null|null", mConditions.get(1));
+        assertEquals(ETAG + "|null", mConditions.get(2));
+    }
+
+    @Test
+    public void notModifiedSinceLastModified() throws IOException {
+        URL url = url("/last-modified");
+        assertNotNull(read(mClient.getIfModified(url, null)));
+        mClient.commit(url);
+        assertNull(mClient.getIfModified(url, null));
+        assertEquals("null|" + LAST_MODIFIED, mConditions.get(1));
+    }
+
+    @Test
+    public void invalidateDropsValidators() throws IOException {
+        URL url = url("/etag");
+        read(mClient.getIfModified(url, null));
+        mClient.commit(url);
+        mClient.invalidate(url);
+        assertEquals(BODY, read(mClient.getIfModified(url, null)));
+        // The pending validators of that response are dropped too
+        mClient.invalidate(url);
+        mClient.commit(url);
+        assertEquals(BODY, read(mClient.getIfModified(url, null)));
+        assertEquals(0, mClient.getNotModifiedCount());
+    }
+
+    @Test
+    public void unconditionalRequestsSendNoValidators() throws IOException {
+        URL url = url("/etag");
+        read(mClient.getIfModified(url, null));
+        mClient.commit(url);
+        assertEquals(BODY, read(mClient.get(url, null)));
+        assertEquals("null|null", mConditions.get(1));
+    }
+
+    private void respond(HttpExchange http, boolean gzip, boolean eTag, boolean lastModified) throws IOException {
+        try {
+            mPorts.add(http.getRemoteAddress().getPort());
+            String ifNoneMatch = http.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = http.getRequestHeaders().getFirst("If-Modified-Since");
+            mConditions.add(ifNoneMatch + "|" + ifModifiedSince);
+            if ((eTag && ETAG.equals(ifNoneMatch)) || (lastModified && LAST_MODIFIED.equals(ifModifiedSince))) {
+                http.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                return;
+            }
+            if (eTag) {
+                http.getResponseHeaders().set("ETag", ETAG);
+            }
+            if (lastModified) {
+                http.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+            }
+            byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+            if (gzip && "gzip".equals(http.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                http.getResponseHeaders().set("Content-Encoding", "gzip");
+                body = gzip(BODY);
+            }
+            http.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            try (OutputStream out = http.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            http.close();
+        }
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http", mServer.getAddress().getHostString(), mServer.getAddress().getPort(), path);
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the whole body, or null for a 304
+     */
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        try (InputStream body = in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = body.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
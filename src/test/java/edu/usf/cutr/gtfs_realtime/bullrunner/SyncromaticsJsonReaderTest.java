@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SyncromaticsJsonReaderTest {
+
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void readVehicles() throws IOException {
+        List<SyncromaticsVehicle> vehicles;
+        try (InputStream in = fixture("vehicles.json")) {
+            vehicles = SyncromaticsJsonReader.readVehicles(in);
+        }
+        // Those with a null or missing lat, lon or lastUpdated are left out
+        assertEquals(3, vehicles.size());
+
+        SyncromaticsVehicle vehicle = vehicles.get(0);
+        assertEquals("3900", vehicle.mId);
+        assertEquals("1401", vehicle.mName);
+        assertEquals(28.060591, vehicle.mLat, EPSILON);
+        assertEquals(-82.416492, vehicle.mLon, EPSILON);
+        assertEquals(234.3, vehicle.mHeadingDegrees, EPSILON);
+        assertEquals(0.87, vehicle.mSpeed, EPSILON);
+        assertEquals(Instant.parse("2018-03-08T14:21:05Z").getEpochSecond(), vehicle.mLastUpdated);
+        assertEquals(0.35, vehicle.mPassengerLoad, EPSILON);
+        assertEquals("152000", vehicle.mTripId);
+        assertNull(vehicle.mRouteId);
+
+        // Escapes, exponents, and nulls for the optional fields
+        vehicle = vehicles.get(1);
+        assertEquals("3901", vehicle.mId);
+        assertEquals("Bus \"1402\" été \\ / \t", vehicle.mName);
+        assertEquals(28.062287, vehicle.mLat, EPSILON);
+        assertEquals(0, vehicle.mHeadingDegrees, 0);
+        assertEquals(0, vehicle.mSpeed, 0);
+        assertEquals(0, vehicle.mPassengerLoad, 0);
+        assertEquals("", vehicle.mTripId);
+
+        // Missing optional fields
+        vehicle = vehicles.get(2);
+        assertEquals("3905", vehicle.mId);
+        assertEquals("3905", vehicle.mName);
+        assertEquals("", vehicle.mTripId);
+    }
+
+    @Test
+    public void readVehiclesEmpty() throws IOException {
+        assertEquals(0, SyncromaticsJsonReader.readVehicles(json(" [ ] ")).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void readVehiclesWithoutId() throws IOException {
+        SyncromaticsJsonReader.readVehicles(json("[{\"name\": \"1401\", \"lat\": 28.06, \"lon\": -82.41, "
+                + "\"lastUpdated\": \"2018-03-08T14:21:05Z\"}]"));
+    }
+
+    @Test(expected = IOException.class)
+    public void readVehiclesInvalidLastUpdated() throws IOException {
+        SyncromaticsJsonReader.readVehicles(json("[{\"id\": 1, \"lat\": 28.06, \"lon\": -82.41, "
+                + "\"lastUpdated\": \"yesterday\"}]"));
+    }
+
+    @Test
+    public void readVehiclesTruncated() {
+        try {
+            SyncromaticsJsonReader.readVehicles(json("[{\"id\": 1, \"lat\": 28.06, \"lon\": -8"));
+            fail("Truncated response was read");
+        } catch (IOException ex) {
+            // expected
+        }
+        try {
+            SyncromaticsJsonReader.readVehicles(json("{\"error\": \"Invalid API key\"}"));
+            fail("Error object was read as vehicles");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readArrivals() throws IOException {
+        long now = Instant.parse("2018-03-08T14:21:00Z").getEpochSecond();
+        List<SyncromaticsArrival> arrivals;
+        try (InputStream in = fixture("arrivals.json")) {
+            arrivals = SyncromaticsJsonReader.readArrivals(in, now);
+        }
+        // Those without a stop or a time are kept, as the first one tells the vehicle's current pattern
+        assertEquals(4, arrivals.size());
+
+        SyncromaticsArrival arrival = arrivals.get(0);
+        assertNull(arrival.mStopNumber);
+        assertEquals("9001", arrival.mStopId);
+        assertEquals("MSC Express", arrival.mPatternName);
+        assertEquals(0, arrival.mArrivalTime);
+
+        arrival = arrivals.get(1);
+        assertEquals("102", arrival.mStopNumber);
+        assertEquals("9002", arrival.mStopId);
+        assertEquals("Route C", arrival.mPatternName);
+        // arriveTime wins over secondsToArrival
+        assertEquals(Instant.parse("2018-03-08T14:25:00Z").getEpochSecond(), arrival.mArrivalTime);
+
+        arrival = arrivals.get(2);
+        assertNull(arrival.mStopNumber);
+        assertNull(arrival.mStopId);
+        assertEquals("Route C", arrival.mPatternName);
+
+        arrival = arrivals.get(3);
+        assertNull(arrival.mStopNumber);
+        assertEquals("9004", arrival.mStopId);
+        assertNull(arrival.mPatternName);
+        assertEquals(now + 60, arrival.mArrivalTime);
+    }
+
+    @Test
+    public void readRoutes() throws IOException {
+        Map<String, Integer> routes = new HashMap<>();
+        try (InputStream in = fixture("routes.json")) {
+            SyncromaticsJsonReader.readRoutes(in, routes);
+        }
+        assertEquals(3, routes.size());
+        assertEquals(Integer.valueOf(10), routes.get("A"));
+        assertEquals(Integer.valueOf(11), routes.get("B"));
+        assertEquals(Integer.valueOf(12), routes.get("C"));
+    }
+
+    @Test(expected = IOException.class)
+    public void readRoutesWithoutDisplayName() throws IOException {
+        SyncromaticsJsonReader.readRoutes(json("[{\"ID\": 10, \"DisplayName\": null}]"), new HashMap<>());
+    }
+
+    private static InputStream fixture(String name) {
+        InputStream in = SyncromaticsJsonReaderTest.class.getResourceAsStream("/syncromatics/" + name);
+        if (in == null) {
+            throw new IllegalStateException("Missing test fixture " + name);
+        }
+        return in;
+    }
+
+    private static InputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
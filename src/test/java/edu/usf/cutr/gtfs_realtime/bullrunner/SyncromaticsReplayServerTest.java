@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncromaticsReplayServerTest {
+
+    private static final String VEHICLES_BODY = "[{\"ID\":1,\"Name\":\"Bus 1\"}]";
+
+    private static final String ARRIVALS_BODY = "[{\"StopId\":2,\"ArriveTime\":\"2018-03-08T08:05:00\"}]";
+
+    private static final String API_KEY = "s3cr3t-key";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mApi;
+
+    private SyncromaticsReplayServer mReplay;
+
+    private File mLog;
+
+    private URL mVehiclesUrl;
+
+    private URL mArrivalsUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mApi = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mApi.createContext("/portal/v1/routes/10/vehicles", http -> respond(http, VEHICLES_BODY, true));
+        mApi.createContext("/portal/v1/vehicles/5/arrivals", http -> respond(http, ARRIVALS_BODY, false));
+        mApi.start();
+        String base = "http://127.0.0.1:" + mApi.getAddress().getPort() + "/portal/v1/";
+        mVehiclesUrl = new URL(base + "routes/10/vehicles?api-key=" + API_KEY);
+        mArrivalsUrl = new URL(base + "vehicles/5/arrivals?count=3&api-key=" + API_KEY);
+
+        mLog = new File(mFolder.getRoot(), "traffic.log");
+        SyncromaticsHttpClient client = new SyncromaticsHttpClient(5000, 8);
+        try (SyncromaticsTrafficLog log = new SyncromaticsTrafficLog(mLog)) {
+            assertEquals(VEHICLES_BODY, read(client.get(mVehiclesUrl, log)));
+            assertEquals(ARRIVALS_BODY, read(client.get(mArrivalsUrl, log)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mApi.stop(0);
+        if (mReplay != null) {
+            mReplay.stop();
+        }
+    }
+
+    @Test
+    public void recorded() throws IOException {
+        List<SyncromaticsTrafficLog.Exchange> exchanges = SyncromaticsTrafficLog.read(mLog);
+        assertEquals(2, exchanges.size());
+        SyncromaticsTrafficLog.Exchange vehicles = exchanges.get(0);
+        assertEquals("/portal/v1/routes/10/vehicles", vehicles.mKey);
+        assertEquals(200, vehicles.mStatus);
+        // As transferred
+        assertTrue(vehicles.mGzip);
+        assertEquals(VEHICLES_BODY, read(new GZIPInputStream(new ByteArrayInputStream(vehicles.mBody))));
+        SyncromaticsTrafficLog.Exchange arrivals = exchanges.get(1);
+        assertEquals("/portal/v1/vehicles/5/arrivals?count=3", arrivals.mKey);
+        assertFalse(arrivals.mGzip);
+        assertEquals(ARRIVALS_BODY, new String(arrivals.mBody, StandardCharsets.UTF_8));
+        assertTrue(arrivals.mTime >= vehicles.mTime);
+
+        String log = new String(Files.readAllBytes(mLog.toPath()), StandardCharsets.ISO_8859_1);
+        assertFalse(log.contains(API_KEY));
+    }
+
+    @Test
+    public void keyWithoutApiKey() {
+        assertEquals("/v1/routes", SyncromaticsTrafficLog.getKey("/v1/routes", null));
+        assertEquals("/v1/routes", SyncromaticsTrafficLog.getKey("/v1/routes", "api-key=k"));
+        assertEquals("/v1/arrivals?count=3&stop=2",
+                SyncromaticsTrafficLog.getKey("/v1/arrivals", "count=3&api-key=k&stop=2"));
+    }
+
+    @Test
+    public void truncatedLastRecord() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mLog, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        assertEquals(1, SyncromaticsTrafficLog.read(mLog).size());
+    }
+
+    @Test
+    public void replayThroughClient() throws IOException {
+        mReplay = new SyncromaticsReplayServer(mLog, 1);
+        mReplay.start();
+        SyncromaticsHttpClient client = new SyncromaticsHttpClient(5000, 8);
+        URL vehiclesUrl = mReplay.getUrl(mVehiclesUrl);
+        assertEquals(VEHICLES_BODY, read(client.getIfModified(vehiclesUrl, null)));
+        client.commit(vehiclesUrl);
+        // Same body, so not modified
+        assertNull(client.getIfModified(vehiclesUrl, null));
+        assertEquals(1, client.getNotModifiedCount());
+        assertEquals(ARRIVALS_BODY, read(client.get(mReplay.getUrl(mArrivalsUrl), null)));
+    }
+
+    @Test
+    public void replayedHeaders() throws IOException {
+        mReplay = new SyncromaticsReplayServer(mLog, 1);
+        mReplay.start();
+        URL vehiclesUrl = mReplay.getUrl(mVehiclesUrl);
+
+        // Gzipped as recorded to clients that accept it
+        HttpURLConnection connection = (HttpURLConnection) vehiclesUrl.openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals("application/json", connection.getHeaderField("Content-Type"));
+        String eTag = connection.getHeaderField("ETag");
+        assertEquals("\"0\"", eTag);
+        assertEquals(VEHICLES_BODY, read(new GZIPInputStream(connection.getInputStream())));
+
+        // Decompressed for the others
+        connection = (HttpURLConnection) vehiclesUrl.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(VEHICLES_BODY, read(connection.getInputStream()));
+
+        connection = (HttpURLConnection) vehiclesUrl.openConnection();
+        connection.setRequestProperty("If-None-Match", eTag);
+        assertEquals(304, connection.getResponseCode());
+
+        // A body recorded without gzip, with the ETag of its own record
+        connection = (HttpURLConnection) mReplay.getUrl(mArrivalsUrl).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals("\"1\"", connection.getHeaderField("ETag"));
+        assertEquals(ARRIVALS_BODY, read(connection.getInputStream()));
+
+        connection = (HttpURLConnection) mReplay.getUrl(new URL("http://localhost/portal/v1/routes/11/vehicles"))
+                .openConnection();
+        assertEquals(404, connection.getResponseCode());
+    }
+
+    private static void respond(HttpExchange http, String body, boolean gzip) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = http.getRequestHeaders().getFirst("Accept-Encoding");
+        if (gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            http.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        http.getResponseHeaders().set("Content-Type", "application/json");
+        http.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = http.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = body.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
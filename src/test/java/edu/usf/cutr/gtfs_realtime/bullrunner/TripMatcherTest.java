@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2012-2018 Google, Inc., University of South Florida
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfs_realtime.bullrunner;
+
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.LocalDate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matches vehicles on the GTFS of src/test/resources/gtfs: route A runs a morning and an afternoon trip north
+ * from S1 to S3, 5 minutes between stops, and route B a frequency-based trip east from S4 to S6 every 10 minutes
+ * from 06:00 to 10:00, 4 minutes between stops.
+ */
+public class TripMatcherTest {
+
+    private static final LocalDate DATE = LocalDate.of(2018, 3, 8);
+
+    private GtfsStaticIndex mIndex;
+
+    private ServiceDay mServiceDay;
+
+    private TripMatcher mMatcher;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        BullRunnerConfigExtract config = new BullRunnerConfigExtract();
+        config.setGtfsPath(new File(TripMatcherTest.class.getResource("/gtfs").toURI()));
+        mIndex = config.readIndex();
+        mServiceDay = mIndex.getServiceDay(DATE);
+        mMatcher = new TripMatcher(mIndex);
+    }
+
+    @Test
+    public void scheduledTripBetweenStops() {
+        // Halfway from S1 to S2, a minute late
+        TripMatcher.Match match = match("bus-1", "A", 28.0525, -82.410, "08:03:30");
+        assertEquals("A-morning", mIndex.getTripId(match.mTrip));
+        assertEquals(time("08:00:00"), match.mInstanceStart);
+        assertEquals(150, match.mOffset, 1);
+        assertEquals(60, match.mDelay, 1);
+        assertFalse(match.mStoppedAt);
+        assertEquals(2, mIndex.getStopTimeSequence(match.mStopTime));
+
+        TripDescriptor trip = descriptor("A", match);
+        assertEquals("A-morning", trip.getTripId());
+        assertEquals("A", trip.getRouteId());
+        assertEquals("20180308", trip.getStartDate());
+        assertEquals("08:00:00", trip.getStartTime());
+        assertEquals(TripDescriptor.ScheduleRelationship.SCHEDULED, trip.getScheduleRelationship());
+    }
+
+    @Test
+    public void scheduledTripPickedByTime() {
+        // Same place as the morning trip, but in the afternoon, and at the stop
+        TripMatcher.Match match = match("bus-1", "A", 28.055, -82.410, "14:06:00");
+        assertEquals("A-afternoon", mIndex.getTripId(match.mTrip));
+        assertEquals(time("14:00:00"), match.mInstanceStart);
+        assertEquals(60, match.mDelay, 1);
+        assertTrue(match.mStoppedAt);
+        // The stop_sequence of stop_times.txt, not the position of the stop in the trip
+        assertEquals(20, mIndex.getStopTimeSequence(match.mStopTime));
+        assertEquals("S2", mIndex.getStopId(mIndex.getStopTimeStop(match.mStopTime)));
+        assertEquals("14:00:00", descriptor("A", match).getStartTime());
+    }
+
+    @Test
+    public void frequencyInstance() {
+        // Halfway from S4 to S5, 2 minutes in, so it left at 07:11: the 07:10 departure, a minute late
+        TripMatcher.Match match = match("bus-2", "B", 28.070, -82.4175, "07:13:00");
+        assertEquals("B-frequent", mIndex.getTripId(match.mTrip));
+        assertEquals(time("07:10:00"), match.mInstanceStart);
+        assertEquals(120, match.mOffset, 1);
+        assertEquals(60, match.mDelay, 1);
+        assertEquals(2, mIndex.getStopTimeSequence(match.mStopTime));
+
+        TripDescriptor trip = descriptor("B", match);
+        assertEquals("07:10:00", trip.getStartTime());
+        // exact_times=0 instances
+        assertEquals(TripDescriptor.ScheduleRelationship.UNSCHEDULED, trip.getScheduleRelationship());
+    }
+
+    @Test
+    public void frequencyInstanceAfterTheLastDeparture() {
+        // The last departure is 09:50, as end_time is excluded
+        TripMatcher.Match match = match("bus-2", "B", 28.070, -82.415, "10:30:00");
+        assertEquals(time("09:50:00"), match.mInstanceStart);
+        assertEquals(time("10:30:00") - time("09:54:00"), match.mDelay, 1);
+        assertTrue(match.mStoppedAt);
+    }
+
+    @Test
+    public void noCandidate() {
+        // A kilometer east of route A
+        assertNull(match("bus-1", "A", 28.055, -82.400, "08:05:00"));
+        // Not on a trip of the route
+        assertNull(mMatcher.match("bus-1", new int[0], 28.055, -82.410, epochSecond("08:05:00"), mServiceDay));
+    }
+
+    @Test
+    public void followsVehicleAlongTrip() {
+        match("bus-1", "A", 28.0505, -82.410, "08:01:00");
+        TripMatcher.Match match = match("bus-1", "A", 28.0575, -82.410, "08:08:00");
+        assertEquals("A-morning", mIndex.getTripId(match.mTrip));
+        assertEquals(3, mIndex.getStopTimeSequence(match.mStopTime));
+        assertEquals(450, match.mOffset, 1);
+    }
+
+    private TripMatcher.Match match(String vehicleId, String routeId, double lat, double lon, String time) {
+        int[] trips = mServiceDay.getTrips(mIndex.findRoute(routeId));
+        return mMatcher.match(vehicleId, trips, lat, lon, epochSecond(time), mServiceDay);
+    }
+
+    private TripDescriptor descriptor(String routeId, TripMatcher.Match match) {
+        return GtfsRealtimeProviderImpl.buildTripDescriptor(mIndex, mServiceDay, routeId, match).build();
+    }
+
+    private long epochSecond(String time) {
+        return mServiceDay.getStartEpochSeconds() + time(time);
+    }
+
+    private static int time(String time) {
+        return GtfsStaticIndex.parseTime(time);
+    }
+}